@@ -23,17 +23,156 @@
 package com.aliyun.atp.tool;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @SuppressWarnings("unused")
 public class ATPClient {
     private static final String ATP_CLIENT_TOOL_JAR = "atp-client-tool.jar";
-    private static final Random RAND = new Random();
+    private static final String JAVA_COMMAND = findJavaCommand();
+    private static final Object EXTRACT_LOCK = new Object();
+    private static final String TOOL_MAIN_CLASS = "com.aliyun.atp.tool.Main";
+    private static final String TOOL_VM_CLASS = "com.aliyun.atp.tool.HotSpotVM";
+    private static final Object IN_PROCESS_LOCK = new Object();
+    private static final int CURRENT_PID = findCurrentPid();
+    private static final Object WORKER_LOCK = new Object();
+    // Worker protocol, must match com.aliyun.atp.tool.Worker
+    private static final String WORKER_OPTION = "-worker";
+    private static final String IDLE_TIMEOUT_OPTION = "-idle=";
+    private static final int FRAME_ERROR = 2;
+    private static final int FRAME_DONE = 3;
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private static volatile Mode mode = Mode.FORK;
+    private static Method inProcessEntry;
+    private static boolean inProcessUnavailable;
+    private static byte[] clientToolContent;
+    private static File extractedClientTool;
+    private static volatile Boolean javaCommandExist;
+    private static volatile long workerIdleTimeout = 60 * 1000L;
+    private static volatile long workerRequestTimeout = TimeUnit.HOURS.toMillis(1);
+    // Kills a worker that does not complete a request in time, its thread is started on demand
+    private static final ScheduledExecutorService WORKER_WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ATP worker watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+    private static Process worker;
+    private static DataOutputStream workerIn;
+    private static DataInputStream workerOut;
+
+    /**
+     * Receives output of client tool chunk by chunk, the buffer is reused after returning
+     */
+    public interface ChunkConsumer {
+        void accept(byte[] buf, int off, int len) throws IOException;
+    }
+
+    public enum Mode {
+        /**
+         * Launch the client tool in a new JVM for every request
+         */
+        FORK,
+        /**
+         * Load the client tool into an isolated class loader and attach from the calling process,
+         * falling back to {@link #FORK} if libattach can not be loaded or the target is this process.
+         * <p>
+         * A native library belongs to the first class loader that loads it. If the application has
+         * used {@code com.sun.tools.attach} before, libattach is taken and this mode falls back to
+         * {@link #FORK}. Otherwise the first request binds libattach to the class loader of the
+         * client tool for the life of the process, and later attaches of the application itself
+         * fail with {@link UnsatisfiedLinkError}. Applications that attach on their own should use
+         * {@link #WORKER} or {@link #FORK} instead.
+         */
+        IN_PROCESS,
+        /**
+         * Send requests to one long-lived client tool process, which is restarted on demand and
+         * exits after being idle for {@link #setWorkerIdleTimeout(long)}
+         */
+        WORKER
+    }
+
+    public static void setMode(Mode newMode) {
+        if (newMode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        mode = newMode;
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Set how long the worker of {@link Mode#WORKER} stays alive without requests, it takes
+     * effect when the worker is started next time.
+     */
+    public static void setWorkerIdleTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("idle timeout must be positive");
+        }
+        workerIdleTimeout = millis;
+    }
+
+    /**
+     * Set how long a request to the worker of {@link Mode#WORKER} may take, one hour by default.
+     * A worker that has not completed the request by then, e.g. because the target JVM never
+     * answers, is killed and the request fails.
+     */
+    public static void setWorkerRequestTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("request timeout must be positive");
+        }
+        workerRequestTimeout = millis;
+    }
+
+    private static int findCurrentPid() {
+        // RuntimeMXBean name is "pid@hostname" on all HotSpot based JVMs
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        try {
+            return Integer.parseInt(at > 0 ? name.substring(0, at) : name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isSelfAttach(String[] args) {
+        if (args == null || args.length < 1) {
+            return false;
+        }
+        if (args[0].equals("list") || args[0].equals("read")) {
+            return false;
+        }
+        // A comma separated list of pids and main classes fans out to all of them, see com.aliyun.atp.tool.FanOut
+        for (String target : args[0].split(",")) {
+            try {
+                if (Integer.parseInt(target.trim()) == CURRENT_PID) {
+                    return true;
+                }
+            } catch (NumberFormatException e) {
+                // A main class may select this process too
+                return true;
+            }
+        }
+        return false;
+    }
 
     private static String findJavaCommand() {
         String javaHome = System.getProperty("java.home");
@@ -64,41 +203,116 @@ public class ATPClient {
         }
     }
 
-    private static File extractClientTool() throws ClientException {
-        File file;
-        try {
-            file = File.createTempFile(".ATP", ATP_CLIENT_TOOL_JAR);
-        } catch (IOException e) {
-            throw new ClientException("Failed to create temporary file: " + e.getMessage());
+    private static String probeJavaCommand() {
+        // The probe spawns a process, do it only once for the life of this process
+        Boolean exist = javaCommandExist;
+        if (exist == null) {
+            synchronized (EXTRACT_LOCK) {
+                exist = javaCommandExist;
+                if (exist == null) {
+                    exist = isJavaCommandExist(JAVA_COMMAND);
+                    javaCommandExist = exist;
+                }
+            }
         }
+        return exist ? JAVA_COMMAND : null;
+    }
 
+    private static byte[] readClientTool() throws ClientException {
         ClassLoader loader = ATPClient.class.getClassLoader();
         if (loader == null) {
             throw new ClientException("Can not find client tool: it should not be loaded by bootclassloader");
         }
 
-        InputStream link = loader.getResourceAsStream(ATP_CLIENT_TOOL_JAR);
-        if (link == null) {
-            throw new ClientException("Can not find client tool");
+        try (InputStream link = loader.getResourceAsStream(ATP_CLIENT_TOOL_JAR)) {
+            if (link == null) {
+                throw new ClientException("Can not find client tool");
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = link.read(buf)) != -1) {
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new ClientException("Failed to read client tool from jar: " + e.getMessage());
         }
+    }
 
+    private static String digest(byte[] content) throws ClientException {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", hash[i] & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ClientException("Failed to digest client tool: " + e.getMessage());
+        }
+    }
+
+    private static boolean isSameContent(File file, byte[] content) {
+        if (!file.isFile() || file.length() != content.length) {
+            return false;
+        }
         try {
-            Files.copy(link, file.getAbsoluteFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return Arrays.equals(Files.readAllBytes(file.toPath()), content);
         } catch (IOException e) {
-            // fallback to create temporary file in working directory
-            file = new File(".T" + RAND.nextInt() + ATP_CLIENT_TOOL_JAR);
+            return false;
+        }
+    }
+
+    private static void writeAtomically(File target, byte[] content) throws IOException {
+        // Write to a private file first so that concurrent extractors never observe a partial jar
+        File tmp = File.createTempFile(".ATP", ".tmp", target.getAbsoluteFile().getParentFile());
+        try {
+            Files.write(tmp.toPath(), content);
             try {
-                Files.copy(link, file.getAbsoluteFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
-                return file;
-            } catch (IOException ex) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
-            throw new ClientException("Failed to extract client tool from jar: " + e.getMessage());
+        } finally {
+            tmp.delete();
         }
+    }
 
-        return file;
+    private static File extractClientTool() throws ClientException {
+        synchronized (EXTRACT_LOCK) {
+            // Fast path: already extracted by this process and not removed by tmp cleaner since then
+            if (extractedClientTool != null && extractedClientTool.length() == clientToolContent.length) {
+                return extractedClientTool;
+            }
+            if (clientToolContent == null) {
+                clientToolContent = readClientTool();
+            }
+
+            // File name is derived from content, so an existing file of same name can be reused once verified
+            String name = ".ATP-" + digest(clientToolContent) + "-" + ATP_CLIENT_TOOL_JAR;
+            File file = new File(System.getProperty("java.io.tmpdir"), name);
+            if (!isSameContent(file, clientToolContent)) {
+                try {
+                    writeAtomically(file, clientToolContent);
+                } catch (IOException e) {
+                    // fallback to working directory
+                    file = new File(name).getAbsoluteFile();
+                    if (!isSameContent(file, clientToolContent)) {
+                        try {
+                            writeAtomically(file, clientToolContent);
+                        } catch (IOException ex) {
+                            throw new ClientException("Failed to extract client tool from jar: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+            extractedClientTool = file;
+            return file;
+        }
     }
 
-    public static Process startProcess(String javaCommand, String clientToolPath, String[] args) throws IOException {
+    private static ProcessBuilder newProcessBuilder(String javaCommand, String clientToolPath, String[] args) {
         // launch client tool jar as standalone application
         ArrayList<String> cmdArgs = new ArrayList<>();
         cmdArgs.add(javaCommand);
@@ -108,34 +322,273 @@ public class ATPClient {
         if (args != null) {
             cmdArgs.addAll(Arrays.asList(args));
         }
-        ProcessBuilder ps = new ProcessBuilder(cmdArgs);
+        return new ProcessBuilder(cmdArgs);
+    }
+
+    public static Process startProcess(String javaCommand, String clientToolPath, String[] args) throws IOException {
+        ProcessBuilder ps = newProcessBuilder(javaCommand, clientToolPath, args);
         ps.redirectErrorStream(true);
         return ps.start();
     }
 
-    public static void execute(String[] args) throws ClientException {
+    private static Method findInProcessEntry() {
+        synchronized (IN_PROCESS_LOCK) {
+            if (inProcessEntry != null || inProcessUnavailable) {
+                return inProcessEntry;
+            }
+            try {
+                File clientTool = extractClientTool();
+                // Parent is the bootstrap loader: since JDK9 sun.tools.attach belongs to jdk.attach module
+                // of the application class loader, which would shadow the attach stubs of client tool
+                ClassLoader loader = new URLClassLoader(new URL[]{clientTool.toURI().toURL()}, null);
+                Class.forName(TOOL_VM_CLASS, true, loader).getMethod("loadAttachLibrary").invoke(null);
+                inProcessEntry = Class.forName(TOOL_MAIN_CLASS, true, loader)
+                    .getMethod("run", String[].class, OutputStream.class, OutputStream.class);
+            } catch (ClientException | ReflectiveOperationException | IOException | LinkageError e) {
+                // e.g. libattach is already owned by jdk.attach of the application, use forked client
+                // tool instead. The reverse order can not be detected, see Mode.IN_PROCESS
+                inProcessUnavailable = true;
+            }
+            return inProcessEntry;
+        }
+    }
+
+    private static void executeInProcess(Method entry, String[] args, OutputStream out, OutputStream err)
+        throws ClientException {
+        try {
+            entry.invoke(null, args, out, err);
+        } catch (InvocationTargetException e) {
+            throw new ClientException("Failed to execute client tool: " + e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new ClientException("Failed to execute client tool: " + e.getMessage());
+        }
+    }
+
+    private static void transfer(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[TRANSFER_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        out.flush();
+    }
+
+    private static void executeForked(String[] args, OutputStream out, OutputStream err) throws ClientException {
         File clientTool = extractClientTool();
 
         // before launching client tool, we need to check if "java" exists
-        String javaCommand = findJavaCommand();
-        if (!isJavaCommandExist(javaCommand)) {
+        String javaCommand = probeJavaCommand();
+        if (javaCommand == null) {
             throw new ClientException("Failed to execute client tool: can not find java command");
         }
 
         try {
-            Process pr = startProcess(javaCommand, clientTool.getAbsolutePath(), args);
-            try (InputStreamReader ir = new InputStreamReader(pr.getInputStream());
-                 BufferedReader br = new BufferedReader(ir)) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    System.out.println(line);
+            ProcessBuilder ps = newProcessBuilder(javaCommand, clientTool.getAbsolutePath(), args);
+            ps.redirectErrorStream(out == err);
+            Process pr = ps.start();
+            IOException[] errFailure = new IOException[1];
+            Thread errPump = null;
+            if (out != err) {
+                errPump = new Thread(() -> {
+                    try (InputStream is = pr.getErrorStream()) {
+                        transfer(is, err);
+                    } catch (IOException e) {
+                        errFailure[0] = e;
+                    }
+                }, "ATP client tool stderr pump");
+                errPump.setDaemon(true);
+                errPump.start();
+            }
+            try (InputStream is = pr.getInputStream()) {
+                transfer(is, out);
+            }
+            if (errPump != null) {
+                errPump.join();
+                if (errFailure[0] != null) {
+                    throw errFailure[0];
                 }
-                pr.waitFor(1, TimeUnit.HOURS);
             }
+            pr.waitFor(1, TimeUnit.HOURS);
         } catch (IOException | InterruptedException ex) {
             throw new ClientException("Failed to execute client tool: " + ex.getMessage());
-        } finally {
-            clientTool.delete();
         }
     }
+
+    private static void startWorker() throws ClientException {
+        File clientTool = extractClientTool();
+        String javaCommand = probeJavaCommand();
+        if (javaCommand == null) {
+            throw new ClientException("Failed to start client tool worker: can not find java command");
+        }
+        try {
+            // stdout carries the frames, so stderr must not be merged into it
+            Process pr = newProcessBuilder(javaCommand, clientTool.getAbsolutePath(),
+                new String[]{WORKER_OPTION, IDLE_TIMEOUT_OPTION + workerIdleTimeout}).start();
+            Thread drainer = new Thread(() -> {
+                try (InputStream err = pr.getErrorStream()) {
+                    byte[] buf = new byte[1024];
+                    while (err.read(buf) != -1) {
+                        // discard JVM warnings of worker
+                    }
+                } catch (IOException ignored) {
+                }
+            }, "ATP worker stderr drainer");
+            drainer.setDaemon(true);
+            drainer.start();
+            worker = pr;
+            workerIn = new DataOutputStream(new BufferedOutputStream(pr.getOutputStream()));
+            workerOut = new DataInputStream(new BufferedInputStream(pr.getInputStream()));
+        } catch (IOException e) {
+            throw new ClientException("Failed to start client tool worker: " + e.getMessage());
+        }
+    }
+
+    private static void stopWorker() {
+        if (worker != null) {
+            worker.destroy();
+            worker = null;
+            workerIn = null;
+            workerOut = null;
+        }
+    }
+
+    private static void executeInWorker(String[] args, OutputStream out, OutputStream err) throws ClientException {
+        synchronized (WORKER_LOCK) {
+            for (int attempt = 0; ; attempt++) {
+                if (worker == null || !worker.isAlive()) {
+                    stopWorker();
+                    startWorker();
+                }
+                boolean responded = false;
+                Process current = worker;
+                long timeout = workerRequestTimeout;
+                AtomicBoolean expired = new AtomicBoolean();
+                // Reads from the worker can not time out, killing it makes them fail instead
+                ScheduledFuture<?> watchdog = WORKER_WATCHDOG.schedule(() -> {
+                    expired.set(true);
+                    current.destroyForcibly();
+                }, timeout, TimeUnit.MILLISECONDS);
+                try {
+                    String[] request = args != null ? args : new String[0];
+                    workerIn.writeInt(request.length);
+                    for (String arg : request) {
+                        workerIn.writeUTF(arg);
+                    }
+                    workerIn.flush();
+
+                    byte[] buf = new byte[TRANSFER_BUFFER_SIZE];
+                    // Failure of caller's stream is not a failure of worker, keep consuming the
+                    // response so that the worker can serve next request
+                    IOException outputFailure = null;
+                    while (true) {
+                        int type = workerOut.readByte();
+                        int len = workerOut.readInt();
+                        responded = true;
+                        if (type == FRAME_DONE) {
+                            byte[] message = new byte[len];
+                            workerOut.readFully(message);
+                            if (len > 0) {
+                                throw new ClientException("Failed to execute client tool: " + new String(message, "UTF-8"));
+                            }
+                            try {
+                                out.flush();
+                                err.flush();
+                            } catch (IOException e) {
+                                outputFailure = outputFailure != null ? outputFailure : e;
+                            }
+                            if (outputFailure != null) {
+                                throw new ClientException("Failed to write output of client tool: " + outputFailure.getMessage());
+                            }
+                            return;
+                        }
+                        OutputStream target = type == FRAME_ERROR ? err : out;
+                        while (len > 0) {
+                            int n = Math.min(buf.length, len);
+                            workerOut.readFully(buf, 0, n);
+                            if (outputFailure == null) {
+                                try {
+                                    target.write(buf, 0, n);
+                                } catch (IOException e) {
+                                    outputFailure = e;
+                                }
+                            }
+                            len -= n;
+                        }
+                    }
+                } catch (IOException e) {
+                    stopWorker();
+                    if (expired.get()) {
+                        throw new ClientException("Failed to execute client tool: no response from worker within "
+                            + timeout + " ms");
+                    }
+                    // The worker may have idle-exited right before receiving this request, which is
+                    // safe to retry only if it had not started to respond
+                    if (responded || attempt > 0) {
+                        throw new ClientException("Failed to execute client tool: worker exited unexpectedly");
+                    }
+                } finally {
+                    watchdog.cancel(false);
+                }
+            }
+        }
+    }
+
+    private static OutputStream toOutputStream(ChunkConsumer consumer) {
+        if (consumer == null) {
+            throw new IllegalArgumentException("output consumer must not be null");
+        }
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                consumer.accept(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len > 0) {
+                    consumer.accept(b, off, len);
+                }
+            }
+        };
+    }
+
+    public static void execute(String[] args) throws ClientException {
+        // Output and errors of client tool are merged into System.out as before
+        execute(args, System.out, System.out);
+    }
+
+    /**
+     * Execute client tool and write its output to {@code out} and its own errors to {@code err},
+     * raw bytes are transferred in bulk as they arrive. Passing the same stream twice merges them.
+     */
+    public static void execute(String[] args, OutputStream out, OutputStream err) throws ClientException {
+        if (out == null || err == null) {
+            throw new IllegalArgumentException("output streams must not be null");
+        }
+        if (mode == Mode.WORKER) {
+            executeInWorker(args, out, err);
+            return;
+        }
+        if (mode == Mode.IN_PROCESS && !isSelfAttach(args)) {
+            Method entry = findInProcessEntry();
+            if (entry != null) {
+                executeInProcess(entry, args, out, err);
+                return;
+            }
+        }
+        executeForked(args, out, err);
+    }
+
+    public static void execute(String[] args, WritableByteChannel out, WritableByteChannel err) throws ClientException {
+        if (out == null || err == null) {
+            throw new IllegalArgumentException("output channels must not be null");
+        }
+        OutputStream outStream = Channels.newOutputStream(out);
+        execute(args, outStream, out == err ? outStream : Channels.newOutputStream(err));
+    }
+
+    public static void execute(String[] args, ChunkConsumer out, ChunkConsumer err) throws ClientException {
+        OutputStream outStream = toOutputStream(out);
+        execute(args, outStream, out == err ? outStream : toOutputStream(err));
+    }
 }
@@ -0,0 +1,178 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Collect several artifacts in one attach session into a single zip archive. Every artifact is
+ * compressed as a separate entry and the central directory of zip records offset and size of
+ * each of them, so a reader can extract one artifact without decompressing the others, e.g.
+ * {@code unzip -p bundle.zip thread.txt}. An extra {@value #TOC_ENTRY} entry records capture
+ * timestamp, duration, size and status of every artifact. The heap histogram counts all objects
+ * by default, {@code -object=live} counts only live ones at the cost of a full GC of the target.
+ */
+class BundleCommand extends Command {
+    private static final String TOC_ENTRY = "toc.txt";
+    private static final String VM_OPERATION_JCMD = "jcmd";
+    private static final String VM_OPERATION_INSPECT_HEAP = "inspectheap";
+    // artifact name, attach operation, operation argument
+    private static final String[][] ARTIFACTS = {
+        {"thread", "threaddump", "-l"},
+        {"list_heap", VM_OPERATION_INSPECT_HEAP, "-all"},
+        {"gc_heap_info", VM_OPERATION_JCMD, "GC.heap_info"},
+        {"vm_native_memory", VM_OPERATION_JCMD, "VM.native_memory summary"},
+        {"vm_flags", VM_OPERATION_JCMD, "VM.flags"},
+        {"vm_system_properties", VM_OPERATION_JCMD, "VM.system_properties"},
+    };
+
+    BundleCommand(String commandName, String description) {
+        super(commandName, description, new CommandOption[]{
+            new CommandOption("-file", "", true, null),
+            new CommandOption("-artifacts", artifactNames(), false, null),
+            new CommandOption("-level", String.valueOf(Deflater.DEFAULT_COMPRESSION), false, null),
+            new CommandOption("-object", "all", false, new String[]{"all", "live"}),
+        });
+    }
+
+    private static String artifactNames() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ARTIFACTS.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(ARTIFACTS[i][0]);
+        }
+        return sb.toString();
+    }
+
+    private static String[] findArtifact(String name) throws Exception {
+        for (int i = 0; i < ARTIFACTS.length; i++) {
+            if (ARTIFACTS[i][0].equals(name)) {
+                return ARTIFACTS[i];
+            }
+        }
+        throw new Exception("Unknown artifact " + name + ", expected some of " + artifactNames());
+    }
+
+    @Override
+    protected void execute(HotSpotVM vm, String[] args) throws Exception {
+        List<String[]> selected = new ArrayList<String[]>();
+        String[] names = getOption("-artifacts").getValue().split(",");
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].trim().length() > 0) {
+                selected.add(findArtifact(names[i].trim()));
+            }
+        }
+        int level;
+        try {
+            level = Integer.parseInt(getOption("-level").getValue());
+        } catch (NumberFormatException e) {
+            level = Integer.MIN_VALUE;
+        }
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new Exception("Option -level expects a number between 0 and 9");
+        }
+
+        StringBuilder toc = new StringBuilder();
+        toc.append("# name\tcapture_time_ms\tduration_ms\tsize\tstatus\n");
+        ZipOutputStream zos = new ZipOutputStream(
+            new BufferedOutputStream(new FileOutputStream(getOption("-file").getValue()), 64 * 1024));
+        try {
+            zos.setLevel(level);
+            for (String[] artifact : selected) {
+                String entryName = artifact[0] + ".txt";
+                long start = System.currentTimeMillis();
+                ZipEntry entry = new ZipEntry(entryName);
+                entry.setTime(start);
+                zos.putNextEntry(entry);
+                CountingOutputStream cos = new CountingOutputStream(zos);
+                String status = "ok";
+                String argument = artifact[2];
+                if (artifact[1].equals(VM_OPERATION_INSPECT_HEAP)) {
+                    argument = "-" + getOption("-object").getValue();
+                }
+                OutputStream oldOut = HotSpotVM.redirectOutput(cos);
+                try {
+                    vm.execute(artifact[1], argument);
+                } catch (Exception e) {
+                    // Keep collecting other artifacts
+                    status = String.valueOf(e.getMessage()).replace('\n', ' ').replace('\t', ' ');
+                } finally {
+                    HotSpotVM.redirectOutput(oldOut);
+                }
+                zos.closeEntry();
+                toc.append(entryName).append('\t')
+                    .append(start).append('\t')
+                    .append(System.currentTimeMillis() - start).append('\t')
+                    .append(cos.count).append('\t')
+                    .append(status).append('\n');
+            }
+            ZipEntry entry = new ZipEntry(TOC_ENTRY);
+            entry.setTime(System.currentTimeMillis());
+            zos.putNextEntry(entry);
+            zos.write(toc.toString().getBytes("UTF-8"));
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+        PrintStream out = output();
+        out.print(toc);
+        out.flush();
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream os;
+        private long count;
+
+        CountingOutputStream(OutputStream os) {
+            this.os = os;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            os.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            os.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            os.flush();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Class histogram parsed from the text printed by inspectheap or {@code jmap -histo}. Class
+ * names are interned by their bytes in a {@link NameTable}: a name is decoded once when the
+ * class is first seen, and every further line only fills the reused line buffer. Counts and
+ * bytes are kept in arrays parallel to the names, lines of classes with the same name from
+ * different class loaders are added up, and the module suffix of JDK 9 and later is dropped.
+ */
+class ClassHistogram extends LineParser {
+    private final NameTable names = new NameTable();
+    private long[] counts = new long[1024];
+    private long[] bytes = new long[1024];
+
+    static ClassHistogram read(File file) throws IOException {
+        ClassHistogram histogram = new ClassHistogram();
+        histogram.parse(file);
+        return histogram;
+    }
+
+    // e.g. "   1:         11245        1079520  [B (java.base@17.0.9)"
+    @Override
+    protected void parseLine() {
+        int p = skipDigits(skipSpaces(0));
+        if (p == 0 || p >= lineLength || line[p] != ':') {
+            // Header, separator and the "Total" line
+            return;
+        }
+        int countStart = skipSpaces(p + 1);
+        int countEnd = skipDigits(countStart);
+        int bytesStart = skipSpaces(countEnd);
+        int bytesEnd = skipDigits(bytesStart);
+        int nameStart = skipSpaces(bytesEnd);
+        int nameEnd = nameStart;
+        while (nameEnd < lineLength && line[nameEnd] != ' ' && line[nameEnd] != '\t') {
+            nameEnd++;
+        }
+        if (countEnd == countStart || bytesEnd == bytesStart || nameEnd == nameStart) {
+            return;
+        }
+        int i = names.find(line, nameStart, nameEnd, true);
+        grow();
+        counts[i] += parseNumber(countStart, countEnd);
+        bytes[i] += parseNumber(bytesStart, bytesEnd);
+    }
+
+    private void grow() {
+        if (names.size() > counts.length) {
+            counts = Arrays.copyOf(counts, counts.length * 2);
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+    }
+
+    /**
+     * Forget all classes but keep the arrays, so a histogram can be reused for the next sample
+     */
+    void reset() {
+        Arrays.fill(counts, 0, names.size(), 0);
+        Arrays.fill(bytes, 0, names.size(), 0);
+        names.reset();
+        lineLength = 0;
+    }
+
+    /**
+     * Index of the class at {@code index} of another histogram, -1 if it is not in this one
+     */
+    int indexOf(ClassHistogram other, int index) {
+        return names.find(other.names, index);
+    }
+
+    /**
+     * Index of the class, -1 if it is not in the histogram
+     */
+    int indexOf(String name) {
+        return names.find(name, false);
+    }
+
+    /**
+     * Index of the class, which is added with no instances if it is not in the histogram yet
+     */
+    int add(String name) {
+        int index = names.find(name, true);
+        grow();
+        return index;
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    String name(int index) {
+        return names.name(index);
+    }
+
+    long count(int index) {
+        return counts[index];
+    }
+
+    long bytes(int index) {
+        return bytes[index];
+    }
+
+    long totalCount() {
+        long total = 0;
+        for (int i = 0; i < names.size(); i++) {
+            total += counts[i];
+        }
+        return total;
+    }
+
+    long totalBytes() {
+        long total = 0;
+        for (int i = 0; i < names.size(); i++) {
+            total += bytes[i];
+        }
+        return total;
+    }
+}
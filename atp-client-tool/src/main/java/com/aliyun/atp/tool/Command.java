@@ -31,6 +31,7 @@ abstract class Command {
     private final String description;
     private final CommandOption[] options;
     private PrintStream newOut;
+    private PrintStream newErr;
 
 
     public Command() {
@@ -55,6 +56,14 @@ abstract class Command {
         return name;
     }
 
+    /**
+     * Whether the command talks to the attach listener of the target. Commands that only read
+     * what the target exports anyway, like its hsperfdata, are executed with a null HotSpotVM.
+     */
+    public boolean requiresAttach() {
+        return true;
+    }
+
     public CommandOption getOption(String name) {
         for (int i = 0; i < options.length; i++) {
             if (options[i].getName().equals(name)) {
@@ -64,13 +73,20 @@ abstract class Command {
         return null;
     }
 
+    /**
+     * Whether the argument is the option, as a flag or with a value, -for does not match -format
+     */
+    private static boolean matches(String arg, CommandOption option) {
+        return arg.equals(option.getName()) || arg.startsWith(option.getName() + "=");
+    }
+
     protected void parseInputArguments(String[] args) throws Exception {
         for (int i = 0; options != null && i < options.length; i++) {
             CommandOption option = options[i];
             if (option.isMandatory()) {
                 boolean found = false;
                 for (int k = 0; k < args.length; k++) {
-                    if (args[k].startsWith(option.getName())) {
+                    if (matches(args[k], option)) {
                         found = true;
                         option.setValue(args[k]);
                         break;
@@ -80,9 +96,9 @@ abstract class Command {
                     throw new Exception("Option " + option.getName() + " is mandatory");
                 }
             } else {
-                for (int k = 0; k < args.length; k++) {
-                    if (args[i].startsWith(option.getName())) {
-                        option.setValue(args[i]);
+                for (int k = 0; args != null && k < args.length; k++) {
+                    if (matches(args[k], option)) {
+                        option.setValue(args[k]);
                         break;
                     }
                 }
@@ -95,18 +111,65 @@ abstract class Command {
         return this;
     }
 
+    public Command redirectError(PrintStream os) {
+        newErr = os;
+        return this;
+    }
+
+    /**
+     * Stream for diagnostics that must stay out of the output, e.g. while the output carries a
+     * heap dump. It is the error stream of the caller of Main.run, System.err if none was set.
+     */
+    protected PrintStream error() {
+        return newErr != null ? newErr : System.err;
+    }
+
+    /**
+     * Stream for text printed by the command itself, it follows the redirection of current thread
+     * just like output of attach operations. Callers are responsible for flushing it.
+     */
+    protected static PrintStream output() {
+        OutputStream os = HotSpotVM.currentOutput();
+        return os instanceof PrintStream ? (PrintStream) os : new PrintStream(os);
+    }
+
+    /**
+     * Milliseconds of a duration like 500ms, 30s, 10m, 2h or plain seconds
+     */
+    protected static long parseDuration(String option, String value) throws Exception {
+        long unit = 1000;
+        String number = value;
+        if (value.endsWith("ms")) {
+            unit = 1;
+            number = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("s") || value.endsWith("m") || value.endsWith("h")) {
+            char c = value.charAt(value.length() - 1);
+            unit = c == 's' ? 1000 : c == 'm' ? 60 * 1000 : 60 * 60 * 1000;
+            number = value.substring(0, value.length() - 1);
+        }
+        try {
+            long duration = Long.parseLong(number) * unit;
+            if (duration > 0) {
+                return duration;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new Exception("Option " + option + " expects a duration like 500ms, 30s, 10m or 2h but got " + value);
+    }
+
     public final void executeCommand(HotSpotVM vm, String[] args) throws Exception {
         parseInputArguments(args);
-        PrintStream oldOut = null;
+        OutputStream oldOut = null;
         if (newOut != null) {
-            oldOut = System.out;
-            System.setOut(newOut);
+            oldOut = HotSpotVM.redirectOutput(newOut);
         }
         try {
             execute(vm, args);
         } finally {
-            if (oldOut != null) {
-                System.setOut(oldOut);
+            if (newOut != null) {
+                newOut.flush();
+                HotSpotVM.redirectOutput(oldOut);
             }
         }
     }
@@ -29,6 +29,7 @@ class CommandOption {
     private final String[] valueSet;
     private final boolean mandatory;
     private String value;
+    private boolean specified;
 
     public CommandOption(String name, String defaultValue, boolean mandatory, String[] valueSet) {
         this.name = name;
@@ -66,6 +67,14 @@ class CommandOption {
             }
         }
         this.value = userValue;
+        this.specified = true;
+    }
+
+    /**
+     * Whether user passed this option, flags like {@code -lock} carry no value
+     */
+    public boolean isSpecified() {
+        return specified;
     }
 
     public String getName() {
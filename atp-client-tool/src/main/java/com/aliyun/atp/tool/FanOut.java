@@ -0,0 +1,329 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run one subcommand against several JVMs, e.g. {@code 1234,5678 thread}. A target that is not a
+ * number selects all JVMs of that main class found by {@link VMDiscovery}, e.g. {@code OrderService
+ * thread}, see {@link VMDiscovery.VM#matches(String)}. The attach listener of
+ * a JVM handles one request at a time, so every target is served by exactly one task, while up to
+ * {@code -concurrency=N} targets run in parallel, 8 by default. Output of a target is kept
+ * in memory until its command finishes and is then printed as one block under a header, in the
+ * order targets complete, so a slow or hanging JVM does not hold back results of the others.
+ * {@code %p} in any argument is replaced by the pid of the target, files written by commands must
+ * use it to keep targets apart, {@code -file=-} is only accepted when the targets resolve to one
+ * JVM, which then runs directly on the streams of the caller. A target that has not finished within
+ * {@code -timeout}, by default 10 minutes plus {@code -for} of the command, is reported as failed
+ * and its attach connection is aborted, its slot goes to the next target once its thread has
+ * exited. The command fails after all targets are reported if any of them failed.
+ */
+class FanOut {
+    static final String CONCURRENCY_OPTION = "-concurrency";
+    static final String PID_PLACEHOLDER = "%p";
+    static final String TIMEOUT_OPTION = "-timeout";
+    private static final int DEFAULT_CONCURRENCY = 8;
+    // Added to -for of the command, if any
+    private static final long DEFAULT_TIMEOUT = 10 * 60 * 1000L;
+    private static final long ABORT_RETRY = 100;
+    // A timed out target blocked where HotSpotVM.abort() can not reach, e.g. a pipe of Windows,
+    // holds its slot this long before it is abandoned
+    private static final long ABORT_WAIT = 10 * 1000L;
+    // Threads abandoned after ABORT_WAIT by pid, e.g. blocked in connect() while the backlog of
+    // a hung attach listener is full, which neither closing the socket nor an interrupt ends. A
+    // target fails at once while its thread is alive rather than piling up more of them in a
+    // long running process like the Worker.
+    private static final Map<Integer, Thread> ABANDONED = new HashMap<Integer, Thread>();
+
+    private static final class Result {
+        final int pid;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Throwable failure;
+        Thread thread;
+        long start;
+        long elapsed;
+        // Set by the thread of the target and by the loop reporting results, each checks the other
+        volatile HotSpotVM vm;
+        volatile boolean timedOut;
+
+        Result(int pid) {
+            this.pid = pid;
+        }
+    }
+
+    /**
+     * Whether the first argument of Main is a list of targets or a selector rather than one pid
+     */
+    static boolean isTargetList(String arg) {
+        for (int i = 0; i < arg.length(); i++) {
+            if (!Character.isDigit(arg.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Distinct pids of a comma separated list of pids and main classes in their original order
+     */
+    static List<Integer> parseTargets(String arg) throws Exception {
+        Set<Integer> pids = new LinkedHashSet<Integer>();
+        List<VMDiscovery.VM> vms = null;
+        for (String part : arg.split(",")) {
+            part = part.trim();
+            if (part.length() == 0) {
+                continue;
+            }
+            if (!isTargetList(part)) {
+                pids.add(Integer.valueOf(part));
+                continue;
+            }
+            if (vms == null) {
+                vms = VMDiscovery.discover();
+            }
+            boolean found = false;
+            for (VMDiscovery.VM vm : vms) {
+                if (vm.matches(part)) {
+                    pids.add(vm.pid);
+                    found = true;
+                }
+            }
+            if (!found) {
+                throw new Exception("No JVM with main class " + part + " found");
+            }
+        }
+        if (pids.isEmpty()) {
+            throw new Exception("No pid in target list " + arg);
+        }
+        return new ArrayList<Integer>(pids);
+    }
+
+    static void run(String[] args, OutputStream out, PrintStream err) throws Exception {
+        List<Integer> pids = parseTargets(args[0]);
+        int concurrency = DEFAULT_CONCURRENCY;
+        long timeout = -1;
+        long commandDuration = 0;
+        final List<String> commandArgs = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith(CONCURRENCY_OPTION + "=")) {
+                String value = args[i].substring(CONCURRENCY_OPTION.length() + 1);
+                try {
+                    concurrency = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    concurrency = -1;
+                }
+                if (concurrency < 1) {
+                    throw new Exception("Option " + CONCURRENCY_OPTION + " expects a positive number but got " + value);
+                }
+            } else if (args[i].startsWith(TIMEOUT_OPTION + "=")) {
+                timeout = Command.parseDuration(TIMEOUT_OPTION, args[i].substring(TIMEOUT_OPTION.length() + 1));
+            } else {
+                if (pids.size() > 1 && args[i].equals("-file=-")) {
+                    throw new Exception("Option -file=- streams to the output, which needs a single target");
+                }
+                if (pids.size() > 1 && args[i].startsWith("-file=") && !args[i].contains(PID_PLACEHOLDER)) {
+                    throw new Exception("Option -file must contain " + PID_PLACEHOLDER
+                        + ", which is replaced by the pid, when there are several targets");
+                }
+                if (args[i].startsWith("-for=")) {
+                    // Checked again by the command itself
+                    commandDuration = Command.parseDuration("-for", args[i].substring("-for=".length()));
+                }
+                commandArgs.add(args[i]);
+            }
+        }
+        if (timeout < 0) {
+            timeout = commandDuration + DEFAULT_TIMEOUT;
+        }
+        if (pids.size() == 1) {
+            // e.g. a selector matching one JVM, runs like a plain pid without buffering its output
+            Main.run(targetArgs(pids.get(0), commandArgs), out, err);
+            return;
+        }
+
+        BlockingQueue<Result> done = new LinkedBlockingQueue<Result>();
+        List<Result> running = new ArrayList<Result>();
+        List<Integer> failed = new ArrayList<Integer>();
+        PrintStream ps = out instanceof PrintStream ? (PrintStream) out : new PrintStream(out);
+        int next = 0;
+        int reported = 0;
+        try {
+            // Timed out targets keep their slot until their thread has exited, -concurrency limits
+            // the attach connections really open
+            while (reported < pids.size() || !running.isEmpty()) {
+                while (next < pids.size() && running.size() < concurrency) {
+                    running.add(start(pids.get(next++), commandArgs, done));
+                }
+                long now = System.currentTimeMillis();
+                long wakeUp = Long.MAX_VALUE;
+                for (Result result : running) {
+                    wakeUp = Math.min(wakeUp, result.timedOut ? now + ABORT_RETRY : result.start + timeout);
+                }
+                Result result = done.poll(Math.max(wakeUp - now, 0), TimeUnit.MILLISECONDS);
+                if (result != null) {
+                    running.remove(result);
+                    if (!result.timedOut) {
+                        report(ps, result, null);
+                        if (result.failure != null) {
+                            failed.add(result.pid);
+                        }
+                        reported++;
+                    }
+                    continue;
+                }
+                now = System.currentTimeMillis();
+                Iterator<Result> iter = running.iterator();
+                while (iter.hasNext()) {
+                    Result expired = iter.next();
+                    if (!expired.timedOut && now - expired.start >= timeout) {
+                        expired.timedOut = true;
+                        report(ps, expired, String.format("timed out after %.2f s", timeout / 1000.0));
+                        failed.add(expired.pid);
+                        reported++;
+                    }
+                    if (expired.timedOut) {
+                        // Closes the attach connection the thread is blocked on, interrupt ends sleeps
+                        HotSpotVM vm = expired.vm;
+                        if (vm != null) {
+                            vm.abort();
+                        }
+                        expired.thread.interrupt();
+                        if (now - expired.start - timeout >= ABORT_WAIT) {
+                            synchronized (ABANDONED) {
+                                ABANDONED.put(expired.pid, expired.thread);
+                            }
+                            iter.remove();
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (Result result : running) {
+                result.thread.interrupt();
+            }
+        }
+        err.println("Completed on " + (pids.size() - failed.size()) + " of " + pids.size() + " targets");
+        if (!failed.isEmpty()) {
+            throw new Exception("Failed on targets " + failed);
+        }
+    }
+
+    private static String[] targetArgs(int pid, List<String> commandArgs) {
+        String[] targetArgs = new String[commandArgs.size() + 1];
+        targetArgs[0] = String.valueOf(pid);
+        for (int i = 0; i < commandArgs.size(); i++) {
+            targetArgs[i + 1] = commandArgs.get(i).replace(PID_PLACEHOLDER, String.valueOf(pid));
+        }
+        return targetArgs;
+    }
+
+    private static Result start(final int pid, List<String> commandArgs, final BlockingQueue<Result> done) {
+        final Result result = new Result(pid);
+        final String[] targetArgs = targetArgs(pid, commandArgs);
+        result.start = System.currentTimeMillis();
+        synchronized (ABANDONED) {
+            Thread abandoned = ABANDONED.get(pid);
+            if (abandoned != null && abandoned.isAlive()) {
+                result.failure = new Exception("An earlier attach to this target is still blocked");
+                result.thread = abandoned;
+                done.add(result);
+                return result;
+            }
+            ABANDONED.remove(pid);
+        }
+        result.thread = new Thread("ATP target " + pid) {
+            @Override
+            public void run() {
+                try {
+                    if (!Main.requiresAttach(targetArgs)) {
+                        Main.run(targetArgs, result.output, result.output);
+                    } else {
+                        attachAndRun(result, targetArgs);
+                    }
+                } catch (Throwable t) {
+                    // e.g. "No such process" wrapped by reflective creation of HotSpotVM
+                    while (t instanceof InvocationTargetException && t.getCause() != null) {
+                        t = t.getCause();
+                    }
+                    result.failure = t;
+                }
+                result.elapsed = System.currentTimeMillis() - result.start;
+                done.add(result);
+            }
+        };
+        // Threads of abandoned targets must not keep the tool alive once all targets are reported
+        result.thread.setDaemon(true);
+        result.thread.start();
+        return result;
+    }
+
+    /**
+     * Attach the target here rather than in Main.run, so the loop reporting results can abort it
+     */
+    private static void attachAndRun(Result result, String[] targetArgs) throws Exception {
+        HotSpotVM vm = HotSpotVM.creatHotSpotVM(result.pid);
+        result.vm = vm;
+        if (result.timedOut) {
+            vm.abort();
+        }
+        PrintStream err = new PrintStream(result.output);
+        OutputStream oldOut = HotSpotVM.redirectOutput(result.output);
+        try {
+            Main.run(targetArgs, vm, err);
+        } finally {
+            err.flush();
+            HotSpotVM.redirectOutput(oldOut);
+            vm.detach();
+        }
+    }
+
+    private static void report(PrintStream ps, Result result, String timeout) throws IOException {
+        if (timeout != null) {
+            // Output written so far, the thread of the target may still add to it
+            ps.println("==> " + result.pid + " failed: " + timeout + " <==");
+        } else if (result.failure != null) {
+            ps.println(String.format("==> %d failed after %.2f s: %s <==",
+                result.pid, result.elapsed / 1000.0, result.failure));
+        } else {
+            ps.println(String.format("==> %d done in %.2f s <==", result.pid, result.elapsed / 1000.0));
+        }
+        result.output.writeTo(ps);
+        ps.println();
+        ps.flush();
+    }
+}
@@ -1,7 +1,15 @@
 package com.aliyun.atp.tool;
 
 import java.io.*;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FullJcmdCommand extends Command {
     private static final String[] VALID = {
@@ -35,50 +43,151 @@ public class FullJcmdCommand extends Command {
         "VM.version",
     };
 
+    // Commands that run as VM operations at a safepoint, they are never executed concurrently
+    // so that target VM is not stacked with pauses
+    private static final String[] SAFEPOINT = {
+        "GC.class_histogram",
+        "GC.class_stats",
+        "Thread.print",
+        "VM.class_hierarchy",
+        "VM.classloader_stats",
+        "VM.classloaders",
+        "VM.metaspace",
+        "VM.print_touched_methods",
+        "VM.stringtable",
+        "VM.symboltable",
+        "VM.systemdictionary",
+    };
+
     FullJcmdCommand(String name, String description) {
         super(name, description, new CommandOption[]{
             new CommandOption("-file", "jcmd.log", false, null),
+            new CommandOption("-parallel", "1", false, null),
         });
     }
 
+    private static boolean isSafepointCommand(String jcmd) {
+        for (String cmd : SAFEPOINT) {
+            if (jcmd.contains(cmd)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> selectCommands(HotSpotVM vm) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new JcmdCommand("", "help", "")
+            .redirectOutput(new PrintStream(bos))
+            .executeCommand(vm, null);
+        List<String> selected = new ArrayList<String>();
+        String[] lines = bos.toString().split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].matches("[a-zA-Z_]+?\\.[a-zA-Z_]+")) {
+                for (String valid : VALID) {
+                    if (lines[i].contains(valid)) {
+                        selected.add(lines[i]);
+                    }
+                }
+            }
+        }
+        return selected;
+    }
+
+    private static void writeHead(OutputStream os, String jcmd) throws IOException {
+        String head = "#LN_START#" + jcmd + "#LN_END#\n";
+        os.write(head.getBytes());
+    }
+
     @Override
     protected void execute(HotSpotVM vm, String[] args) throws Exception {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int parallel;
+        try {
+            parallel = Integer.parseInt(getOption("-parallel").getValue());
+        } catch (NumberFormatException e) {
+            throw new Exception("Option -parallel expects a positive number");
+        }
+        if (parallel < 1) {
+            throw new Exception("Option -parallel expects a positive number");
+        }
+
         FileOutputStream fos = null;
         try {
-            new JcmdCommand("", "help", "")
-                .redirectOutput(new PrintStream(bos))
-                .executeCommand(vm, null);
+            List<String> jcmds = selectCommands(vm);
             fos = new FileOutputStream(getOption("-file").getValue());
-            String availableJcmd = bos.toString();
-            String[] lines = availableJcmd.split("\n");
-            for (int i = 0; i < lines.length; i++) {
-                if (lines[i].matches("[a-zA-Z_]+?\\.[a-zA-Z_]+")) {
-                    for (String valid : VALID) {
-                        if (lines[i].contains(valid)) {
-                            String head = "#LN_START#" + lines[i] + "#LN_END#\n";
-                            fos.write(head.getBytes());
-                            // Read help document of jcmd subcommands
-                            new JcmdCommand("", lines[i], "")
-                                .redirectOutput(new PrintStream(fos))
-                                .executeCommand(vm, null);
-                        }
-                    }
-                }
+            if (parallel == 1) {
+                executeSerially(vm, jcmds, fos);
+            } else {
+                executeConcurrently(vm, jcmds, parallel, fos);
             }
         } catch (Exception e) {
-            e.printStackTrace();
-            // Failed to execute Jcmd operations
-            // Skip...
+            // Failed to execute Jcmd operations, sections written so far are kept
+            error().println("Failed to execute jcmd commands: " + e);
         } finally {
-            try {
-                bos.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
             if (fos != null) {
                 fos.close();
             }
         }
     }
+
+    private void executeSerially(HotSpotVM vm, List<String> jcmds, FileOutputStream fos) throws Exception {
+        for (String jcmd : jcmds) {
+            writeHead(fos, jcmd);
+            new JcmdCommand("", jcmd, "")
+                .redirectOutput(new PrintStream(fos))
+                .executeCommand(vm, null);
+        }
+    }
+
+    /**
+     * Cheap commands run on a pool of {@code parallel} threads while safepoint commands run one
+     * after another on a dedicated thread. Output of every command is buffered separately and
+     * written in the same order as {@link #executeSerially}, as soon as all preceding sections
+     * are written, so only results that complete out of order are held in memory.
+     */
+    private void executeConcurrently(final HotSpotVM vm, List<String> jcmds, int parallel, FileOutputStream fos)
+        throws Exception {
+        ExecutorService cheap = Executors.newFixedThreadPool(parallel, new JcmdThreadFactory());
+        ExecutorService safepoint = Executors.newSingleThreadExecutor(new JcmdThreadFactory());
+        try {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for (final String jcmd : jcmds) {
+                Callable<byte[]> task = new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                        new JcmdCommand("", jcmd, "")
+                            .redirectOutput(new PrintStream(bos))
+                            .executeCommand(vm, null);
+                        return bos.toByteArray();
+                    }
+                };
+                results.add(isSafepointCommand(jcmd) ? safepoint.submit(task) : cheap.submit(task));
+            }
+            for (int i = 0; i < jcmds.size(); i++) {
+                writeHead(fos, jcmds.get(i));
+                try {
+                    fos.write(results.get(i).get());
+                } catch (ExecutionException e) {
+                    // Keep the section and carry on with other commands
+                    error().println("Failed to execute " + jcmds.get(i) + ": " + e.getCause());
+                }
+                results.set(i, null);
+            }
+        } finally {
+            cheap.shutdownNow();
+            safepoint.shutdownNow();
+        }
+    }
+
+    private static class JcmdThreadFactory implements ThreadFactory {
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ATP jcmd worker " + COUNTER.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
 }
@@ -22,20 +22,393 @@
  */
 package com.aliyun.atp.tool;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 class HeapDumpCommand extends Command {
     private static final String VM_OPERATION_HEAP_DUMP = "dumpheap";
+    private static final String VM_OPERATION_JCMD = "jcmd";
+    private static final String JCMD_HEAP_DUMP = "GC.heap_dump";
+    private static final String TCP_PREFIX = "tcp://";
+    private static final String STDOUT = "-";
+    private static final String TMP_DIR = "/tmp";
+    private static final byte[] UID = "Uid:".getBytes();
+    private static final byte[] GID = "Gid:".getBytes();
 
     HeapDumpCommand(String commandName, String description) {
         super(commandName, description, new CommandOption[]{
             new CommandOption("-file", "", true, null),
             new CommandOption("-object", "", true, new String[]{"all", "live"}),
+            new CommandOption("-compress", "", false, null),
+            new CommandOption("-parallel", "", false, null),
+            new CommandOption("-stream", "", false, null),
+            new CommandOption("-checksum", "", false, null),
         });
     }
 
+    private static int parseLevel(String value) throws Exception {
+        try {
+            int level = Integer.parseInt(value);
+            if (level >= 1 && level <= 9) {
+                return level;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through
+        }
+        throw new Exception("Option -compress expects a number between 1 and 9");
+    }
+
+    private static int parseParallel(String value) throws Exception {
+        try {
+            int parallel = Integer.parseInt(value);
+            if (parallel >= 1) {
+                return parallel;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through
+        }
+        throw new Exception("Option -parallel expects a positive number");
+    }
+
+    /**
+     * Options of GC.heap_dump supported by target VM, e.g. "-gz" since JDK15, "-overwrite" since JDK17
+     * and "-parallel" since JDK22.
+     * Targets without jcmd support nothing.
+     */
+    private static String heapDumpHelp(HotSpotVM vm) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            new JcmdCommand("", "help " + JCMD_HEAP_DUMP, "")
+                .redirectOutput(new PrintStream(bos))
+                .executeCommand(vm, null);
+        } catch (Exception e) {
+            return "";
+        }
+        return bos.toString();
+    }
+
     @Override
     protected void execute(HotSpotVM vm, String[] args) throws Exception {
         String filePath = getOption("-file").getValue();
         String dumpOption = getOption("-object").getValue();
-        vm.execute(VM_OPERATION_HEAP_DUMP, filePath, "-" + dumpOption);
+        String compressValue = getOption("-compress").getValue();
+        String parallelValue = getOption("-parallel").getValue();
+        int level = compressValue.length() > 0 ? parseLevel(compressValue) : 0;
+        int parallel = parallelValue.length() > 0 ? parseParallel(parallelValue) : 0;
+        if (getOption("-stream").isSpecified()) {
+            streamDump(vm, args, filePath, dumpOption, level, parallel);
+            return;
+        }
+        if (level == 0 && parallel == 0) {
+            vm.execute(VM_OPERATION_HEAP_DUMP, filePath, "-" + dumpOption);
+            return;
+        }
+
+        String help = heapDumpHelp(vm);
+        boolean vmCompress = help.contains("-gz");
+        boolean vmParallel = help.contains("-parallel");
+        if (level > 0 && !vmCompress) {
+            dumpAndCompress(vm, args, filePath, dumpOption, level, parallel);
+            return;
+        }
+        if (level == 0 && !vmParallel) {
+            // Nothing to gain from jcmd
+            vm.execute(VM_OPERATION_HEAP_DUMP, filePath, "-" + dumpOption);
+            return;
+        }
+
+        String jcmd = JCMD_HEAP_DUMP;
+        if (dumpOption.equals("all")) {
+            jcmd += " -all";
+        }
+        if (level > 0) {
+            jcmd += " -gz=" + level;
+        }
+        if (parallel > 0 && vmParallel) {
+            jcmd += " -parallel=" + parallel;
+        }
+        vm.execute(VM_OPERATION_JCMD, jcmd + " " + filePath);
+    }
+
+    private static void compress(File source, File target, int level, int threads) throws IOException {
+        InputStream is = new FileInputStream(source);
+        try {
+            OutputStream os = new ParallelGzipOutputStream(new FileOutputStream(target), level, threads);
+            try {
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = is.read(buf)) != -1) {
+                    os.write(buf, 0, n);
+                }
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Target VM can not compress heap dump, let it write an uncompressed dump next to the
+     * requested file and compress it on multiple threads of client tool.
+     */
+    private void dumpAndCompress(HotSpotVM vm, String[] args, String filePath, String dumpOption,
+                                 int level, int parallel) throws Exception {
+        // Target resolves relative path against its own working directory
+        File file = new File(filePath).getAbsoluteFile();
+        File raw = new File(file.getPath() + ".raw");
+        vm.execute(VM_OPERATION_HEAP_DUMP, raw.getPath(), "-" + dumpOption);
+        File readable = raw;
+        if (!readable.exists() && args != null && args.length > 0) {
+            // Target lives in another mount namespace
+            readable = new File("/proc/" + args[0] + "/root" + raw.getPath());
+            file = new File("/proc/" + args[0] + "/root" + file.getPath());
+        }
+        int threads = parallel > 0 ? parallel : Runtime.getRuntime().availableProcessors();
+        try {
+            compress(readable, file, level, threads);
+        } catch (Exception e) {
+            // The raw dump is the only complete copy, keep it and drop the truncated one
+            file.delete();
+            throw new Exception("Failed to compress heap dump to " + file.getPath() + ": " + e
+                + ", the uncompressed heap dump is kept at " + readable.getPath(), e);
+        }
+        readable.delete();
+        PrintStream out = output();
+        out.println("Heap dump compressed by client tool to " + file.getPath() + " [" + file.length() + " bytes]");
+        out.flush();
+    }
+
+    /**
+     * Root of the target's mount namespace as seen by client tool, empty if both share it
+     */
+    private static String namespaceRoot(String[] args) {
+        if (args == null || args.length < 1) {
+            return "";
+        }
+        File root = new File("/proc/" + args[0] + "/root");
+        File tmp = new File(root, TMP_DIR);
+        return tmp.isDirectory() && root.canRead() ? root.getPath() : "";
+    }
+
+    private static OutputStream openConsumer(String destination) throws IOException {
+        if (destination.equals(STDOUT)) {
+            // Output of this thread, captured here because the reader runs on its own thread
+            return new BufferedOutputStream(output(), 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+        if (destination.startsWith(TCP_PREFIX)) {
+            String address = destination.substring(TCP_PREFIX.length());
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IOException("Expected " + TCP_PREFIX + "<host>:<port> but got " + destination);
+            }
+            final Socket socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            return new BufferedOutputStream(socket.getOutputStream(), 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        socket.close();
+                    }
+                }
+            };
+        }
+        return new BufferedOutputStream(new FileOutputStream(destination), 64 * 1024);
+    }
+
+    /**
+     * Let target VM write the dump into a FIFO and hand the bytes to a consumer while they are
+     * produced, the dump never lands on target's disk. The consumer is chosen by {@code -file}:
+     * a local file, {@code tcp://host:port} of a collector, or {@code -} for the output of this
+     * command, e.g. to pipe the dump into a post-processor. Bytes are compressed in target VM
+     * or client tool if {@code -compress} is given, and digested with SHA-256 if
+     * {@code -checksum} is given.
+     */
+    private void streamDump(HotSpotVM vm, String[] args, String destination, String dumpOption,
+                            int level, int parallel) throws Exception {
+        String help = heapDumpHelp(vm);
+        if (!help.contains("-overwrite")) {
+            // Without it target refuses to open an existing file, i.e. our FIFO
+            throw new Exception("Target VM does not support streaming heap dump, JDK17 or later is required");
+        }
+        boolean vmCompress = level > 0 && help.contains("-gz");
+
+        // Only the target may write into the FIFO, anyone else could inject bytes into the dump.
+        // mkdir fails on an existing directory, so a name planted in the shared /tmp is not used.
+        String dir = TMP_DIR + "/.atp-heap-" + Math.abs(new SecureRandom().nextLong());
+        String fifo = dir + "/heap.fifo";
+        final File localDir = new File(namespaceRoot(args) + dir);
+        final File localFifo = new File(namespaceRoot(args) + fifo);
+        exec("mkdir", "-m", "700", localDir.getPath());
+        try {
+            exec("mkfifo", "-m", "600", localFifo.getPath());
+            String owner = targetOwner(args);
+            if (owner != null) {
+                exec("chown", owner, localDir.getPath(), localFifo.getPath());
+            }
+            streamDump(vm, destination, dumpOption, level, parallel, vmCompress, fifo, localFifo);
+        } finally {
+            localFifo.delete();
+            localDir.delete();
+        }
+    }
+
+    private static void exec(String... command) throws Exception {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        InputStream is = process.getInputStream();
+        try {
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                bos.write(buf, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        if (process.waitFor() != 0) {
+            throw new Exception("Failed to run " + command[0] + " " + command[command.length - 1] + ": "
+                + bos.toString().trim());
+        }
+    }
+
+    /**
+     * "uid:gid" of the target for chown when it differs from the tool, e.g. the tool runs as root,
+     * null if both are the same or the target is unknown
+     */
+    private static String targetOwner(String[] args) {
+        if (args == null || args.length < 1) {
+            return null;
+        }
+        long[] uid = statusLine(args[0], UID);
+        long[] gid = statusLine(args[0], GID);
+        long[] selfUid = statusLine("self", UID);
+        long[] selfGid = statusLine("self", GID);
+        // Real, effective, saved and filesystem ids, the target opens the FIFO by its effective ids
+        if (uid == null || gid == null || uid.length < 2 || gid.length < 2 || selfUid == null || selfGid == null
+            || selfUid.length < 2 || selfGid.length < 2) {
+            return null;
+        }
+        if (uid[1] == selfUid[1] && gid[1] == selfGid[1]) {
+            return null;
+        }
+        return uid[1] + ":" + gid[1];
+    }
+
+    private static long[] statusLine(String pid, byte[] key) {
+        byte[] buf = new byte[VMDiscovery.STATUS_BUFFER_SIZE];
+        int length = VMDiscovery.readFile("/proc/" + pid + "/status", buf);
+        return length < 0 ? null : VMDiscovery.parseLine(buf, length, key);
+    }
+
+    private void streamDump(HotSpotVM vm, String destination, String dumpOption, int level, int parallel,
+                            boolean vmCompress, String fifo, final File localFifo) throws Exception {
+
+        MessageDigest digest = getOption("-checksum").isSpecified() ? MessageDigest.getInstance("SHA-256") : null;
+        OutputStream consumer = openConsumer(destination);
+        if (digest != null) {
+            consumer = new DigestOutputStream(consumer, digest);
+        }
+        if (level > 0 && !vmCompress) {
+            int threads = parallel > 0 ? parallel : Runtime.getRuntime().availableProcessors();
+            consumer = new ParallelGzipOutputStream(consumer, level, threads);
+        }
+
+        final OutputStream sink = consumer;
+        final AtomicBoolean opened = new AtomicBoolean();
+        final AtomicLong transferred = new AtomicLong();
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        Thread reader = new Thread("ATP heap dump reader") {
+            @Override
+            public void run() {
+                try {
+                    // Blocks until target opens the FIFO for writing
+                    InputStream is = new FileInputStream(localFifo);
+                    opened.set(true);
+                    try {
+                        byte[] buf = new byte[256 * 1024];
+                        int n;
+                        while ((n = is.read(buf)) != -1) {
+                            sink.write(buf, 0, n);
+                            transferred.addAndGet(n);
+                        }
+                    } finally {
+                        is.close();
+                        sink.close();
+                    }
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+        String jcmd = JCMD_HEAP_DUMP + " -overwrite";
+            if (dumpOption.equals("all")) {
+                jcmd += " -all";
+            }
+        if (vmCompress) {
+            jcmd += " -gz=" + level;
+        }
+        // -parallel of target writes segment files next to the dump, it does not work with FIFO
+        boolean toStdout = destination.equals(STDOUT);
+        // Keep the response of target out of the dump bytes
+        OutputStream previous = toStdout ? HotSpotVM.redirectOutput(error()) : null;
+        try {
+            vm.execute(VM_OPERATION_JCMD, jcmd + " " + fifo);
+        } finally {
+            if (toStdout) {
+                HotSpotVM.redirectOutput(previous);
+            }
+            // Target may have failed before opening the FIFO, then the reader waits for a writer.
+            // Opening a FIFO for reading and writing never blocks on Linux, unlike opening it for
+            // writing once the reader is gone, and the reader sees end of file when it is closed.
+            while (!opened.get() && reader.isAlive()) {
+                new RandomAccessFile(localFifo, "rw").close();
+                reader.join(100);
+            }
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        if (transferred.get() == 0) {
+            // Reason is in the response of target printed above, e.g. it could not open the FIFO
+            throw new Exception("Target did not write the heap dump to " + destination);
+        }
+
+        // The dump itself may occupy the output
+        PrintStream out = destination.equals(STDOUT) ? error() : output();
+        out.println("Heap dump streamed to " + destination + " [" + transferred.get() + " bytes from target]");
+        if (digest != null) {
+            StringBuilder sb = new StringBuilder();
+            byte[] hash = digest.digest();
+            for (int i = 0; i < hash.length; i++) {
+                sb.append(String.format("%02x", hash[i] & 0xff));
+            }
+            out.println("SHA-256 " + sb);
+        }
+        out.flush();
     }
 }
@@ -22,15 +22,144 @@
  */
 package com.aliyun.atp.tool;
 
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Print the class histogram of the Java heap. Without options the text of inspectheap is
+ * streamed as is, with any of the options it is parsed into a {@link ClassHistogram} and
+ * printed sorted and limited to the top classes. {@code -diff} compares with a histogram saved
+ * earlier from list_heap or {@code jmap -histo} and also lists classes that disappeared.
+ * {@code -every} and {@code -for} sample the histogram periodically in one attach session, see
+ * {@link HistogramSampler}, {@code -top} then limits the reported leak suspects.
+ */
 class HeapHistogramCommand extends Command {
     private static final String VM_OPERATION_INSPECT_HEAP = "inspectheap";
+    private static final String SORT_BYTES = "bytes";
+    private static final String SORT_COUNT = "count";
+    private static final String SORT_GROWTH = "growth";
+    private static final int DEFAULT_SUSPECTS = 20;
 
     HeapHistogramCommand(String commandName, String description) {
-        super(commandName, description, new CommandOption[]{});
+        super(commandName, description, new CommandOption[]{
+            new CommandOption("-diff", "", false, null),
+            new CommandOption("-top", "0", false, null),
+            new CommandOption("-sort", "", false, new String[]{SORT_BYTES, SORT_COUNT, SORT_GROWTH}),
+            new CommandOption("-every", "", false, null),
+            new CommandOption("-for", "", false, null),
+            new CommandOption("-file", "", false, null),
+        });
     }
 
     @Override
     protected void execute(HotSpotVM vm, String[] args) throws Exception {
-        vm.execute(VM_OPERATION_INSPECT_HEAP);
+        CommandOption diff = getOption("-diff");
+        CommandOption top = getOption("-top");
+        CommandOption sort = getOption("-sort");
+        CommandOption every = getOption("-every");
+        CommandOption duration = getOption("-for");
+        if (!diff.isSpecified() && !top.isSpecified() && !sort.isSpecified() && !every.isSpecified()) {
+            vm.execute(VM_OPERATION_INSPECT_HEAP);
+            return;
+        }
+        int limit;
+        try {
+            limit = Integer.parseInt(top.getValue());
+        } catch (NumberFormatException e) {
+            throw new Exception("Option -top expects a number but got " + top.getValue());
+        }
+        if (every.isSpecified()) {
+            if (!duration.isSpecified()) {
+                throw new Exception("Option -every requires -for");
+            }
+            if (diff.isSpecified() || sort.isSpecified()) {
+                throw new Exception("Option -every can not be combined with -diff or -sort");
+            }
+            CommandOption file = getOption("-file");
+            new HistogramSampler(top.isSpecified() ? limit : DEFAULT_SUSPECTS).run(vm,
+                parseDuration("-every", every.getValue()),
+                parseDuration("-for", duration.getValue()),
+                file.isSpecified() ? file.getValue() : null, output());
+            return;
+        }
+        String key = sort.isSpecified() ? sort.getValue() : diff.isSpecified() ? SORT_GROWTH : SORT_BYTES;
+        if (key.equals(SORT_GROWTH) && !diff.isSpecified()) {
+            throw new Exception("Option -sort=" + SORT_GROWTH + " requires -diff");
+        }
+        ClassHistogram previous = null;
+        if (diff.isSpecified()) {
+            previous = ClassHistogram.read(new File(diff.getValue()));
+            if (previous.size() == 0) {
+                throw new Exception("No class histogram found in " + diff.getValue());
+            }
+        }
+
+        ClassHistogram current = new ClassHistogram();
+        OutputStream oldOut = HotSpotVM.redirectOutput(current);
+        try {
+            vm.execute(VM_OPERATION_INSPECT_HEAP);
+        } finally {
+            HotSpotVM.redirectOutput(oldOut);
+        }
+        current.close();
+        print(current, previous, key, limit);
+    }
+
+    private static void print(final ClassHistogram current, ClassHistogram previous, String key, int limit) {
+        if (previous != null) {
+            // Classes that disappeared show up with negative growth
+            for (int i = 0; i < previous.size(); i++) {
+                current.add(previous.name(i));
+            }
+        }
+        final long[] countGrowth = new long[current.size()];
+        final long[] bytesGrowth = new long[current.size()];
+        Integer[] order = new Integer[current.size()];
+        for (int i = 0; i < current.size(); i++) {
+            order[i] = i;
+            int p = previous != null ? previous.indexOf(current.name(i)) : -1;
+            countGrowth[i] = current.count(i) - (p >= 0 ? previous.count(p) : 0);
+            bytesGrowth[i] = current.bytes(i) - (p >= 0 ? previous.bytes(p) : 0);
+        }
+        final int sortKey = key.equals(SORT_COUNT) ? 0 : key.equals(SORT_BYTES) ? 1 : 2;
+        Arrays.sort(order, new Comparator<Integer>() {
+            private long value(int i) {
+                return sortKey == 0 ? current.count(i) : sortKey == 1 ? current.bytes(i) : bytesGrowth[i];
+            }
+
+            @Override
+            public int compare(Integer a, Integer b) {
+                long va = value(a);
+                long vb = value(b);
+                return va != vb ? (va < vb ? 1 : -1) : current.name(a).compareTo(current.name(b));
+            }
+        });
+
+        int rows = limit > 0 ? Math.min(limit, order.length) : order.length;
+        PrintStream out = output();
+        if (previous == null) {
+            out.println(" num     #instances         #bytes  class name");
+            out.println("----------------------------------------------");
+            for (int i = 0; i < rows; i++) {
+                int c = order[i];
+                out.println(String.format("%4d: %14d %14d  %s", i + 1, current.count(c), current.bytes(c), current.name(c)));
+            }
+            out.println(String.format("Total %14d %14d", current.totalCount(), current.totalBytes()));
+        } else {
+            out.println(" num     #instances            +/-         #bytes            +/-  class name");
+            out.println("----------------------------------------------");
+            for (int i = 0; i < rows; i++) {
+                int c = order[i];
+                out.println(String.format("%4d: %14d %+14d %14d %+14d  %s", i + 1, current.count(c), countGrowth[c],
+                    current.bytes(c), bytesGrowth[c], current.name(c)));
+            }
+            out.println(String.format("Total %14d %+14d %14d %+14d", current.totalCount(),
+                current.totalCount() - previous.totalCount(), current.totalBytes(),
+                current.totalBytes() - previous.totalBytes()));
+        }
+        out.flush();
     }
 }
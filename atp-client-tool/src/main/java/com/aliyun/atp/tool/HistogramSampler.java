@@ -0,0 +1,242 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Take class histograms of one attached VM at a fixed rate and report classes that kept growing,
+ * a histogram that takes longer than the interval skips the samples it missed instead of
+ * catching up with histograms back to back.
+ * Histograms include unreachable objects, which is the cheapest variant as it never forces a
+ * full GC. Only the current and the previous histogram are kept and their arrays are reused,
+ * growth between them feeds a space saving heavy hitter table of a fixed number of candidate
+ * classes, so memory stays flat however long sampling runs. A candidate evicting the lightest
+ * one inherits its weight, as usual for space saving, and its instance counts are followed
+ * from the sample before it was admitted. Candidates that never lost instances and
+ * grew over at least {@value #MIN_INTERVALS} intervals are reported as leak suspects. Optionally
+ * totals and the top candidates of every sample are appended to a CSV time series.
+ */
+class HistogramSampler {
+    private static final String VM_OPERATION_INSPECT_HEAP = "inspectheap";
+    private static final String TOTAL_ROW = "<total>";
+    private static final int MIN_INTERVALS = 2;
+    private static final int MIN_CANDIDATES = 256;
+
+    private static final class Candidate {
+        String name;
+        long weight;
+        int firstSample;
+        long firstCount;
+        long firstBytes;
+        int lastSample;
+        long lastCount;
+        long lastBytes;
+        int decreases;
+    }
+
+    private final int top;
+    private final Candidate[] candidates;
+    private final Map<String, Candidate> byName = new HashMap<String, Candidate>();
+    private int candidateCount;
+    private ClassHistogram previous = new ClassHistogram();
+    private ClassHistogram current = new ClassHistogram();
+    private int samples;
+
+    HistogramSampler(int top) {
+        this.top = top;
+        this.candidates = new Candidate[Math.max(MIN_CANDIDATES, top * 8)];
+    }
+
+    void run(HotSpotVM vm, long interval, long duration, String file, PrintStream out) throws Exception {
+        Writer series = null;
+        if (file != null) {
+            series = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            series.write("timestamp_ms,class,instances,bytes\n");
+        }
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
+        try {
+            long start = System.currentTimeMillis();
+            for (long next = start; next <= start + duration; next += interval) {
+                long now = System.currentTimeMillis();
+                if (next > now) {
+                    Thread.sleep(next - now);
+                } else if (next < now - interval) {
+                    // A histogram of a large heap took longer than the interval, skip missed samples
+                    next = now;
+                }
+                long timestamp = System.currentTimeMillis();
+                sample(vm);
+                out.println(String.format("%s %8d classes %14d instances %14d bytes",
+                    format.format(new Date(timestamp)), current.size(), current.totalCount(), current.totalBytes()));
+                out.flush();
+                if (series != null) {
+                    writeSample(series, timestamp);
+                }
+                ClassHistogram swap = previous;
+                previous = current;
+                current = swap;
+            }
+        } finally {
+            if (series != null) {
+                series.close();
+            }
+        }
+        printSuspects(out);
+        out.flush();
+    }
+
+    private void sample(HotSpotVM vm) throws Exception {
+        current.reset();
+        OutputStream oldOut = HotSpotVM.redirectOutput(current);
+        try {
+            vm.execute(VM_OPERATION_INSPECT_HEAP, "-all");
+        } finally {
+            HotSpotVM.redirectOutput(oldOut);
+        }
+        current.close();
+        if (samples++ == 0) {
+            return;
+        }
+        for (int i = 0; i < current.size(); i++) {
+            int p = previous.indexOf(current, i);
+            long previousCount = p >= 0 ? previous.count(p) : 0;
+            long previousBytes = p >= 0 ? previous.bytes(p) : 0;
+            long growth = current.bytes(i) - previousBytes;
+            Candidate c = byName.get(current.name(i));
+            if (c == null && growth > 0) {
+                c = admit(current.name(i), growth, previousCount, previousBytes);
+            } else if (c != null && growth > 0) {
+                c.weight += growth;
+            }
+            if (c != null) {
+                update(c, current.count(i), current.bytes(i));
+            }
+        }
+        // Classes without instances are missing from the histogram
+        for (int i = 0; i < candidateCount; i++) {
+            if (candidates[i].lastSample != samples) {
+                update(candidates[i], 0, 0);
+            }
+        }
+    }
+
+    private Candidate admit(String name, long growth, long previousCount, long previousBytes) {
+        Candidate c;
+        if (candidateCount < candidates.length) {
+            c = new Candidate();
+            candidates[candidateCount++] = c;
+        } else {
+            c = candidates[0];
+            for (int i = 1; i < candidates.length; i++) {
+                if (candidates[i].weight < c.weight) {
+                    c = candidates[i];
+                }
+            }
+            byName.remove(c.name);
+        }
+        c.name = name;
+        c.weight += growth;
+        // Followed from the previous sample, samples were already counted up for the current one
+        c.firstSample = samples - 2;
+        c.firstCount = previousCount;
+        c.firstBytes = previousBytes;
+        c.lastCount = previousCount;
+        c.lastBytes = previousBytes;
+        c.decreases = 0;
+        byName.put(name, c);
+        return c;
+    }
+
+    private void update(Candidate c, long count, long bytes) {
+        if (count < c.lastCount) {
+            c.decreases++;
+        }
+        c.lastSample = samples;
+        c.lastCount = count;
+        c.lastBytes = bytes;
+    }
+
+    private List<Candidate> sorted(Comparator<Candidate> comparator) {
+        List<Candidate> list = new ArrayList<Candidate>();
+        for (int i = 0; i < candidateCount; i++) {
+            list.add(candidates[i]);
+        }
+        Collections.sort(list, comparator);
+        return list;
+    }
+
+    private void writeSample(Writer series, long timestamp) throws IOException {
+        series.write(timestamp + "," + TOTAL_ROW + "," + current.totalCount() + "," + current.totalBytes() + "\n");
+        List<Candidate> heaviest = sorted(new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return a.weight != b.weight ? (a.weight < b.weight ? 1 : -1) : a.name.compareTo(b.name);
+            }
+        });
+        for (int i = 0; i < heaviest.size() && i < top; i++) {
+            Candidate c = heaviest.get(i);
+            series.write(timestamp + "," + c.name + "," + c.lastCount + "," + c.lastBytes + "\n");
+        }
+        series.flush();
+    }
+
+    private void printSuspects(PrintStream out) {
+        List<Candidate> suspects = new ArrayList<Candidate>();
+        for (Candidate c : sorted(new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                long ga = a.lastBytes - a.firstBytes;
+                long gb = b.lastBytes - b.firstBytes;
+                return ga != gb ? (ga < gb ? 1 : -1) : a.name.compareTo(b.name);
+            }
+        })) {
+            if (c.decreases == 0 && c.lastCount > c.firstCount && samples - 1 - c.firstSample >= MIN_INTERVALS) {
+                suspects.add(c);
+            }
+        }
+        out.println();
+        out.println("Leak suspects, classes whose instances never decreased over " + samples + " samples:");
+        out.println(" num     #instances            +/-         #bytes            +/-  samples  class name");
+        out.println("----------------------------------------------");
+        for (int i = 0; i < suspects.size() && i < top; i++) {
+            Candidate c = suspects.get(i);
+            out.println(String.format("%4d: %14d %+14d %14d %+14d %8d  %s", i + 1, c.lastCount,
+                c.lastCount - c.firstCount, c.lastBytes, c.lastBytes - c.firstBytes, samples - c.firstSample, c.name));
+        }
+    }
+}
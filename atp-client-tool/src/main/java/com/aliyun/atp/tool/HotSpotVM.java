@@ -31,6 +31,11 @@ import sun.tools.attach.WindowsVirtualMachine;
 
 import java.io.*;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 // Do not use advance syntax and JDK methods, this class is expected to work with JRE6
@@ -41,6 +46,9 @@ public abstract class HotSpotVM {
     private final static String PROTOCOL_VERSION = "1";
     private final static String TMP_DIR = "/tmp";
     private final static int ATTACH_ERROR_BAD_VERSION = 101;
+    private final static int READ_BUFFER_SIZE = 8192;
+    private final static long ABORT_GRACE_MILLIS = 100;
+    private final static ThreadLocal<OutputStream> OUTPUT = new ThreadLocal<OutputStream>();
 
     private static boolean isMacOS() {
         return OS_NAME.toLowerCase().contains("mac");
@@ -54,8 +62,17 @@ public abstract class HotSpotVM {
         return OS_NAME.toLowerCase().contains("nux");
     }
 
-    public static HotSpotVM creatHotSpotVM(int pid) throws Exception {
+    /**
+     * Bind the native methods of the attach stubs to libattach. A JNI library can only be
+     * owned by one class loader, so this fails when the hosting process has already loaded
+     * libattach elsewhere, e.g. through the JDK Attach API.
+     */
+    public static void loadAttachLibrary() {
         System.loadLibrary("attach");
+    }
+
+    public static HotSpotVM creatHotSpotVM(int pid) throws Exception {
+        loadAttachLibrary();
 
         String expectedVM;
         expectedVM = (getJreVersion() < 9 ? "Old" : "New");
@@ -87,14 +104,38 @@ public abstract class HotSpotVM {
         return Integer.parseInt(version);
     }
 
+    /**
+     * Route output of commands executed by the current thread to the given stream instead of
+     * System.out, null restores System.out. The previous stream is returned so that callers
+     * can nest redirections.
+     */
+    public static OutputStream redirectOutput(OutputStream os) {
+        OutputStream old = OUTPUT.get();
+        if (os == null) {
+            OUTPUT.remove();
+        } else {
+            OUTPUT.set(os);
+        }
+        return old;
+    }
+
+    /**
+     * Stream that output of current thread goes to, see {@link #redirectOutput(OutputStream)}
+     */
+    public static OutputStream currentOutput() {
+        OutputStream os = OUTPUT.get();
+        return os != null ? os : System.out;
+    }
+
     protected static void readRemaining(InputStream sis) throws IOException {
-        byte[] b = new byte[256];
+        // Relay raw bytes, output of some commands is hundreds of MB
+        OutputStream os = currentOutput();
+        byte[] b = new byte[READ_BUFFER_SIZE];
         int n;
         do {
             n = sis.read(b);
             if (n > 0) {
-                String s = new String(b, 0, n, "UTF-8");
-                System.out.print(s);
+                os.write(b, 0, n);
             }
         } while (n > 0);
         sis.close();
@@ -243,6 +284,95 @@ public abstract class HotSpotVM {
 
     public abstract void detach() throws IOException;
 
+    // Sockets of the operations in progress, several threads may share this VM, mapped to
+    // System.nanoTime() when the pending read on them started, 0 if no read is pending
+    private final Map<Integer, Long> activeSockets = new HashMap<Integer, Long>();
+    private boolean aborted;
+
+    /**
+     * Fail the operations in progress and all later ones, from any thread, e.g. when the target
+     * does not answer in time. A reader that has been blocked on its socket for
+     * {@value #ABORT_GRACE_MILLIS} ms is woken by closing it, the native close shuts the socket
+     * down first. Otherwise the reader notices the abort before its next read and closes the
+     * socket itself, so a descriptor is never closed while a read on it may be about to start,
+     * when its number could already belong to another file. Returns whether no operation is left
+     * in progress, an operation that is not blocked on a socket, like a pipe of Windows, can not
+     * be aborted.
+     */
+    public boolean abort() {
+        List<Integer> blocked = new ArrayList<Integer>();
+        boolean idle;
+        synchronized (this) {
+            aborted = true;
+            long now = System.nanoTime();
+            Iterator<Map.Entry<Integer, Long>> iter = activeSockets.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<Integer, Long> entry = iter.next();
+                long readStart = entry.getValue();
+                if (readStart != 0 && now - readStart >= ABORT_GRACE_MILLIS * 1000000L) {
+                    blocked.add(entry.getKey());
+                    iter.remove();
+                }
+            }
+            idle = activeSockets.isEmpty();
+        }
+        for (int fd : blocked) {
+            try {
+                closeSocket(fd);
+            } catch (IOException e) {
+                // Reader fails anyway
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * Register the connected socket of an operation, it is closed if this VM has been aborted
+     */
+    protected void beginOperation(int fd) throws IOException {
+        synchronized (this) {
+            if (!aborted) {
+                activeSockets.put(fd, 0L);
+                return;
+            }
+        }
+        closeSocket(fd);
+        throw new IOException("Attach operation aborted");
+    }
+
+    /**
+     * Whether the socket may be read, false once this VM has been aborted
+     */
+    protected synchronized boolean beginRead(int fd) {
+        if (aborted || !activeSockets.containsKey(fd)) {
+            return false;
+        }
+        activeSockets.put(fd, System.nanoTime());
+        return true;
+    }
+
+    protected synchronized void endRead(int fd) {
+        if (activeSockets.containsKey(fd)) {
+            activeSockets.put(fd, 0L);
+        }
+    }
+
+    /**
+     * Close the socket of the operation unless {@link #abort()} has closed it already
+     */
+    protected void endOperation(int fd) throws IOException {
+        synchronized (this) {
+            if (activeSockets.remove(fd) == null) {
+                return;
+            }
+        }
+        closeSocket(fd);
+    }
+
+    protected void closeSocket(int fd) throws IOException {
+        throw new IOException("Not a socket based attach mechanism");
+    }
+
     public abstract void execute(String cmd, Object... args) throws Exception;
 
     private static class OldWindowsHotSpotVM extends HotSpotVM {
@@ -368,6 +498,10 @@ public abstract class HotSpotVM {
             }
         }
 
+        protected void closeSocket(int fd) throws IOException {
+            BsdVirtualMachine.close(fd);
+        }
+
         public void execute(String cmd, Object... args) throws Exception {
             int s = BsdVirtualMachine.socket();
 
@@ -377,8 +511,9 @@ public abstract class HotSpotVM {
                 BsdVirtualMachine.close(s);
                 throw x;
             }
+            beginOperation(s);
             IOException ioe = HotSpotVM.writeCommand(s, cmd, args);
-            OldBsdSocketInputStream sis = new OldBsdSocketInputStream(s);
+            OldBsdSocketInputStream sis = new OldBsdSocketInputStream(this, s);
             HotSpotVM.checkExecReturn(ioe, cmd, sis);
             HotSpotVM.readRemaining(sis);
         }
@@ -390,9 +525,11 @@ public abstract class HotSpotVM {
         }
 
         private static class OldBsdSocketInputStream extends InputStream {
+            private final HotSpotVM vm;
             private final int s;
 
-            public OldBsdSocketInputStream(int s) {
+            public OldBsdSocketInputStream(HotSpotVM vm, int s) {
+                this.vm = vm;
                 this.s = s;
             }
 
@@ -405,11 +542,19 @@ public abstract class HotSpotVM {
                     return 0;
                 }
                 checkBeforeRead(bs, off, len);
-                return BsdVirtualMachine.read(s, bs, off, len);
+                if (!vm.beginRead(s)) {
+                    // Aborted, the response ends here
+                    return -1;
+                }
+                try {
+                    return BsdVirtualMachine.read(s, bs, off, len);
+                } finally {
+                    vm.endRead(s);
+                }
             }
 
             public void close() throws IOException {
-                BsdVirtualMachine.close(s);
+                vm.endOperation(s);
             }
         }
     }
@@ -460,6 +605,10 @@ public abstract class HotSpotVM {
             }
         }
 
+        protected void closeSocket(int fd) throws IOException {
+            LinuxVirtualMachine.close(fd);
+        }
+
         public void execute(String cmd, Object... args) throws Exception {
             int s = LinuxVirtualMachine.socket();
 
@@ -469,8 +618,9 @@ public abstract class HotSpotVM {
                 LinuxVirtualMachine.close(s);
                 throw x;
             }
+            beginOperation(s);
             IOException ioe = HotSpotVM.writeCommand(s, cmd, args);
-            OldLinuxSocketInputStream sis = new OldLinuxSocketInputStream(s);
+            OldLinuxSocketInputStream sis = new OldLinuxSocketInputStream(this, s);
             HotSpotVM.checkExecReturn(ioe, cmd, sis);
             HotSpotVM.readRemaining(sis);
         }
@@ -497,9 +647,11 @@ public abstract class HotSpotVM {
         }
 
         private static class OldLinuxSocketInputStream extends InputStream {
+            private final HotSpotVM vm;
             private final int fd;
 
-            public OldLinuxSocketInputStream(int s) {
+            public OldLinuxSocketInputStream(HotSpotVM vm, int s) {
+                this.vm = vm;
                 this.fd = s;
             }
 
@@ -512,11 +664,19 @@ public abstract class HotSpotVM {
                     return 0;
                 }
                 checkBeforeRead(bs, off, len);
-                return LinuxVirtualMachine.read(fd, bs, off, len);
+                if (!vm.beginRead(fd)) {
+                    // Aborted, the response ends here
+                    return -1;
+                }
+                try {
+                    return LinuxVirtualMachine.read(fd, bs, off, len);
+                } finally {
+                    vm.endRead(fd);
+                }
             }
 
             public void close() throws IOException {
-                LinuxVirtualMachine.close(fd);
+                vm.endOperation(fd);
             }
         }
     }
@@ -525,7 +685,7 @@ public abstract class HotSpotVM {
         private String socketPath;
 
         public NewLinuxHotSpotVM(int pid) throws Exception {
-            int ns_pid = getNamespacePid(pid);
+            int ns_pid = VMDiscovery.namespacePid(pid);
             File socket_file = findSocketFile(pid, ns_pid);
             socketPath = socket_file.getPath();
             if (!socket_file.exists()) {
@@ -555,10 +715,15 @@ public abstract class HotSpotVM {
             }
         }
 
+        protected void closeSocket(int fd) throws IOException {
+            VirtualMachineImpl.close(fd);
+        }
+
         public void execute(String cmd, Object... args) throws Exception {
             int fd = VirtualMachineImpl.connectToVM(socketPath);
+            beginOperation(fd);
             IOException ioe = HotSpotVM.writeCommand(fd, cmd, args);
-            NewLinuxSocketInputStream sis = new NewLinuxSocketInputStream(fd);
+            NewLinuxSocketInputStream sis = new NewLinuxSocketInputStream(this, fd);
             HotSpotVM.checkExecReturn(ioe, cmd, sis);
             HotSpotVM.readRemaining(sis);
         }
@@ -587,50 +752,12 @@ public abstract class HotSpotVM {
             return f;
         }
 
-        private int getNamespacePid(int pid) throws Exception {
-            String statusFile = "/proc/" + pid + "/status";
-            File f = new File(statusFile);
-            if (!f.exists()) {
-                return pid;
-            }
-
-            BufferedReader br = null;
-            FileReader fr = null;
-            try {
-                fr = new FileReader(f);
-                br = new BufferedReader(fr);
-                String line;
-                while ((line = br.readLine()) != null) {
-                    String[] parts = line.split(":");
-                    if (parts.length == 2 && parts[0].trim().equals("NSpid")) {
-                        parts = parts[1].trim().split("\\s+");
-                        return Integer.parseInt(parts[parts.length - 1]);
-                    }
-                }
-                return pid;
-            } catch (NumberFormatException x) {
-                throw new Exception("Unable to parse namespace");
-            } catch (IOException ioe) {
-                throw new Exception("Unable to parse namespace");
-            } finally {
-                try {
-                    if (fr != null) {
-
-                        fr.close();
-                    }
-                    if (br != null) {
-                        br.close();
-                    }
-                } catch (IOException ioe1) {
-                    throw new Exception("Unable to close stream when parsing NSpid");
-                }
-            }
-        }
-
         private static class NewLinuxSocketInputStream extends InputStream {
+            private final HotSpotVM vm;
             private final int sock;
 
-            public NewLinuxSocketInputStream(int s) {
+            public NewLinuxSocketInputStream(HotSpotVM vm, int s) {
+                this.vm = vm;
                 this.sock = s;
             }
 
@@ -643,11 +770,19 @@ public abstract class HotSpotVM {
                     return 0;
                 }
                 checkBeforeRead(bs, off, len);
-                return VirtualMachineImpl.read(sock, bs, off, len);
+                if (!vm.beginRead(sock)) {
+                    // Aborted, the response ends here
+                    return -1;
+                }
+                try {
+                    return VirtualMachineImpl.read(sock, bs, off, len);
+                } finally {
+                    vm.endRead(sock);
+                }
             }
 
             public void close() throws IOException {
-                VirtualMachineImpl.close(sock);
+                vm.endOperation(sock);
             }
         }
     }
@@ -692,10 +827,15 @@ public abstract class HotSpotVM {
             }
         }
 
+        protected void closeSocket(int fd) throws IOException {
+            VirtualMachineImpl.close(fd);
+        }
+
         public void execute(String cmd, Object... args) throws Exception {
             int fd = VirtualMachineImpl.connectToVM(socketFile);
+            beginOperation(fd);
             IOException ioe = HotSpotVM.writeCommand(fd, cmd, args);
-            NewBsdSocketInputStream sis = new NewBsdSocketInputStream(fd);
+            NewBsdSocketInputStream sis = new NewBsdSocketInputStream(this, fd);
             HotSpotVM.checkExecReturn(ioe, cmd, sis);
             HotSpotVM.readRemaining(sis);
         }
@@ -707,9 +847,11 @@ public abstract class HotSpotVM {
         }
 
         private static class NewBsdSocketInputStream extends InputStream {
+            private final HotSpotVM vm;
             private final int sock;
 
-            public NewBsdSocketInputStream(int s) {
+            public NewBsdSocketInputStream(HotSpotVM vm, int s) {
+                this.vm = vm;
                 this.sock = s;
             }
 
@@ -722,11 +864,19 @@ public abstract class HotSpotVM {
                     return 0;
                 }
                 checkBeforeRead(bs, off, len);
-                return VirtualMachineImpl.read(sock, bs, off, len);
+                if (!vm.beginRead(sock)) {
+                    // Aborted, the response ends here
+                    return -1;
+                }
+                try {
+                    return VirtualMachineImpl.read(sock, bs, off, len);
+                } finally {
+                    vm.endRead(sock);
+                }
             }
 
             public void close() throws IOException {
-                VirtualMachineImpl.close(sock);
+                vm.endOperation(sock);
             }
         }
     }
@@ -0,0 +1,253 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Threads of a live process ranked by CPU time, the {@code top -H} and jstack routine of a CPU
+ * incident in one step. Scheduler statistics of every task in {@code /proc/<pid>/task} are read
+ * at the start and at the end of {@code -interval}, a number without unit means milliseconds,
+ * then a thread dump is taken and its threads are matched to tasks by {@code nid}. When the target runs in another pid namespace, nid is its
+ * thread id inside the namespace, which is the last entry of {@code NSpid} in the task status.
+ * Context switches tell a thread spinning on CPU from one that is woken up all the time, the
+ * involuntary ones grow when runnable threads outnumber the cores they may use. Tasks that are
+ * not in the dump, like threads of native libraries, are reported by their kernel name.
+ */
+class HotThreadsCommand extends Command {
+    private static final String VM_OPERATION_THREAD_DUMP = "threaddump";
+    // USER_HZ, the unit of times in /proc/<pid>/task/<tid>/stat, is 100 on every Linux platform
+    static final int CLOCK_TICKS_PER_SECOND = 100;
+    private static final byte[] VOLUNTARY_SWITCHES = "voluntary_ctxt_switches:".getBytes();
+    private static final byte[] INVOLUNTARY_SWITCHES = "nonvoluntary_ctxt_switches:".getBytes();
+
+    private static final class TaskSample {
+        int tid;
+        // Thread id in the pid namespace of the target, equal to tid without namespaces
+        int nsTid;
+        String name;
+        long userTicks;
+        long systemTicks;
+        long voluntarySwitches;
+        long involuntarySwitches;
+    }
+
+    HotThreadsCommand(String commandName, String description) {
+        super(commandName, description, new CommandOption[]{
+            new CommandOption("-interval", "1s", false, null),
+            new CommandOption("-top", "10", false, null),
+        });
+    }
+
+    /**
+     * Statistics of all tasks of the process by tid, tasks exiting while they are read are left out
+     */
+    private static Map<Integer, TaskSample> readTasks(File taskDir) {
+        Map<Integer, TaskSample> tasks = new HashMap<Integer, TaskSample>();
+        byte[] buf = new byte[VMDiscovery.STATUS_BUFFER_SIZE];
+        String[] tids = taskDir.list();
+        if (tids == null) {
+            return tasks;
+        }
+        for (String tid : tids) {
+            try {
+                TaskSample task = new TaskSample();
+                task.tid = Integer.parseInt(tid);
+                task.nsTid = task.tid;
+                readStat(new File(taskDir, tid + "/stat"), task);
+                readStatus(new File(taskDir, tid + "/status"), task, buf);
+                tasks.put(task.tid, task);
+            } catch (IOException e) {
+                // Thread has exited
+            } catch (NumberFormatException e) {
+                // Not a task
+            }
+        }
+        return tasks;
+    }
+
+    // e.g. "4711 (C2 CompilerThre) S 4700 ...", the name may contain spaces and parentheses
+    private static void readStat(File file, TaskSample task) throws IOException {
+        String line = readFirstLine(file);
+        int open = line.indexOf('(');
+        int close = line.lastIndexOf(')');
+        if (open < 0 || close < open) {
+            throw new IOException("Unexpected content of " + file);
+        }
+        task.name = line.substring(open + 1, close);
+        // state ppid pgrp session tty_nr tpgid flags minflt cminflt majflt cmajflt utime stime
+        String[] fields = line.substring(close + 2).split(" ");
+        if (fields.length < 13) {
+            throw new IOException("Unexpected content of " + file);
+        }
+        task.userTicks = Long.parseLong(fields[11]);
+        task.systemTicks = Long.parseLong(fields[12]);
+    }
+
+    private static void readStatus(File file, TaskSample task, byte[] buf) throws IOException {
+        int length = VMDiscovery.readFile(file.getPath(), buf);
+        if (length < 0) {
+            throw new IOException("Unable to read " + file);
+        }
+        task.nsTid = VMDiscovery.namespacePid(buf, length, task.tid);
+        task.voluntarySwitches = parseValue(buf, length, VOLUNTARY_SWITCHES);
+        task.involuntarySwitches = parseValue(buf, length, INVOLUNTARY_SWITCHES);
+    }
+
+    private static long parseValue(byte[] buf, int length, byte[] key) {
+        long[] values = VMDiscovery.parseLine(buf, length, key);
+        return values != null && values.length > 0 ? values[0] : 0;
+    }
+
+    private static String readFirstLine(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Empty " + file);
+            }
+            return line;
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    protected void execute(HotSpotVM vm, String[] args) throws Exception {
+        int pid = Integer.parseInt(args[0]);
+        String intervalValue = getOption("-interval").getValue();
+        if (intervalValue.length() > 0 && Character.isDigit(intervalValue.charAt(intervalValue.length() - 1))) {
+            // Seconds elsewhere, but a bare number is read as milliseconds like sampling intervals
+            intervalValue += "ms";
+        }
+        long interval = parseDuration("-interval", intervalValue);
+        CommandOption topOption = getOption("-top");
+        int top;
+        try {
+            top = Integer.parseInt(topOption.getValue());
+        } catch (NumberFormatException e) {
+            top = -1;
+        }
+        if (top < 1) {
+            throw new Exception("Option -top expects a positive number but got " + topOption.getValue());
+        }
+        File taskDir = new File("/proc/" + pid + "/task");
+        if (!taskDir.isDirectory()) {
+            throw new Exception("Unable to read " + taskDir + ", hot_threads is only supported on Linux");
+        }
+
+        long start = System.nanoTime();
+        Map<Integer, TaskSample> before = readTasks(taskDir);
+        Thread.sleep(interval);
+        Map<Integer, TaskSample> after = readTasks(taskDir);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // Deltas are kept in the samples of the second read, threads started in between count from zero
+        long totalTicks = 0;
+        final List<TaskSample> active = new ArrayList<TaskSample>();
+        for (TaskSample task : after.values()) {
+            TaskSample previous = before.get(task.tid);
+            if (previous != null) {
+                task.userTicks -= previous.userTicks;
+                task.systemTicks -= previous.systemTicks;
+                task.voluntarySwitches -= previous.voluntarySwitches;
+                task.involuntarySwitches -= previous.involuntarySwitches;
+            }
+            totalTicks += task.userTicks + task.systemTicks;
+            if (task.userTicks + task.systemTicks + task.voluntarySwitches + task.involuntarySwitches > 0) {
+                active.add(task);
+            }
+        }
+        Collections.sort(active, new Comparator<TaskSample>() {
+            @Override
+            public int compare(TaskSample a, TaskSample b) {
+                long ticksA = a.userTicks + a.systemTicks;
+                long ticksB = b.userTicks + b.systemTicks;
+                if (ticksA != ticksB) {
+                    return ticksA < ticksB ? 1 : -1;
+                }
+                long switchesA = a.voluntarySwitches + a.involuntarySwitches;
+                long switchesB = b.voluntarySwitches + b.involuntarySwitches;
+                return switchesA != switchesB ? (switchesA < switchesB ? 1 : -1) : a.tid - b.tid;
+            }
+        });
+
+        // Stacks right after the interval, closest to what the hot threads were doing
+        ThreadDump dump = new ThreadDump();
+        OutputStream oldOut = HotSpotVM.redirectOutput(dump);
+        try {
+            vm.execute(VM_OPERATION_THREAD_DUMP, "");
+        } finally {
+            HotSpotVM.redirectOutput(oldOut);
+        }
+        dump.close();
+        Map<Long, ThreadDump.ThreadInfo> byNid = new HashMap<Long, ThreadDump.ThreadInfo>();
+        for (ThreadDump.ThreadInfo thread : dump.threads()) {
+            byNid.put(thread.nid, thread);
+        }
+
+        PrintStream out = output();
+        out.println(String.format("CPU of process %d over %.2f s: %.1f%% of one core, %d of %d threads active",
+            pid, seconds, percent(totalTicks, seconds), active.size(), after.size()));
+        out.println(String.format("%7s %7s %7s %9s %9s %8s  %s",
+            "cpu", "user", "sys", "vol-cs", "invol-cs", "tid", "thread"));
+        for (int i = 0; i < active.size() && i < top; i++) {
+            TaskSample task = active.get(i);
+            ThreadDump.ThreadInfo thread = byNid.get((long) task.nsTid);
+            String name = thread != null
+                ? "\"" + thread.name + "\" nid=0x" + Long.toHexString(thread.nid) + " " + thread.state
+                : "(" + task.name + ") not in thread dump";
+            out.println();
+            out.println(String.format("%6.1f%% %6.1f%% %6.1f%% %9d %9d %8d  %s",
+                percent(task.userTicks + task.systemTicks, seconds), percent(task.userTicks, seconds),
+                percent(task.systemTicks, seconds), task.voluntarySwitches, task.involuntarySwitches,
+                task.tid, name.trim()));
+            if (thread == null) {
+                continue;
+            }
+            for (int frame : dump.stack(thread.stack)) {
+                out.println("\tat " + dump.frame(frame));
+            }
+            if (thread.waiting != null) {
+                out.println(String.format("\t- %s <0x%016x> (a %s)",
+                    thread.waitKind, thread.waiting.address, thread.waiting.type));
+            }
+        }
+        out.flush();
+    }
+
+    private static double percent(long ticks, double seconds) {
+        return seconds > 0 ? ticks * 100.0 / CLOCK_TICKS_PER_SECOND / seconds : 0;
+    }
+}
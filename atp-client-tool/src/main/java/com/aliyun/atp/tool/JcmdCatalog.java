@@ -0,0 +1,252 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Available jcmd commands of target VM and their descriptions. Building the catalog costs one
+ * attach round trip per jcmd command, so it is persisted in {@code ~/.atp} and keyed by version
+ * and build of target VM. The key is read from the hsperfdata file of target, only a target
+ * without one, e.g. started with {@code -XX:-UsePerfData}, is asked for its system properties.
+ */
+class JcmdCatalog {
+    private static final String VM_OPERATION_PROPERTIES = "properties";
+    // All of them are exported to hsperfdata as well
+    private static final String[] KEY_PROPERTIES = {
+        "java.vm.name",
+        "java.vm.vendor",
+        "java.vm.version",
+        "java.home",
+    };
+    private static final String PERF_DATA_PROPERTY_PREFIX = "java.property.";
+    // Private to the user, unlike java.io.tmpdir where others could plant a catalog
+    private static final String CACHE_DIR = ".atp";
+    private static final String SEPARATOR = "\t";
+
+    private JcmdCatalog() {
+    }
+
+    static List<JcmdCommand> load(int pid, HotSpotVM vm) {
+        File cache = null;
+        try {
+            cache = cacheFile(pid, vm);
+            if (cache != null && cache.isFile()) {
+                return read(cache);
+            }
+        } catch (Exception e) {
+            // Broken or unreadable cache, query target instead
+        }
+
+        List<String[]> entries = new ArrayList<String[]>();
+        boolean complete = false;
+        try {
+            query(vm, entries);
+            complete = true;
+        } catch (Exception e) {
+            // e.g. a timeout halfway, commands found so far serve this invocation only
+        }
+        if (cache != null && complete && !entries.isEmpty()) {
+            try {
+                write(cache, entries);
+            } catch (IOException e) {
+                // Skip persisting...
+            }
+        }
+        return toCommands(entries);
+    }
+
+    private static File cacheFile(int pid, HotSpotVM vm) throws Exception {
+        String[] key = keyFromPerfData(pid);
+        if (key == null) {
+            key = keyFromProperties(vm);
+        }
+        if (key == null) {
+            return null;
+        }
+
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        for (int i = 0; i < key.length; i++) {
+            md.update(key[i].getBytes("UTF-8"));
+            md.update((byte) 0);
+        }
+        byte[] hash = md.digest();
+        StringBuilder sb = new StringBuilder("jcmd-");
+        for (int i = 0; i < 8; i++) {
+            sb.append(String.format("%02x", hash[i] & 0xff));
+        }
+        sb.append(".catalog");
+        File dir = new File(System.getProperty("user.home"), CACHE_DIR);
+        if (!dir.isDirectory() && dir.mkdirs()) {
+            dir.setReadable(false, false);
+            dir.setWritable(false, false);
+            dir.setExecutable(false, false);
+            dir.setReadable(true, true);
+            dir.setWritable(true, true);
+            dir.setExecutable(true, true);
+        }
+        return new File(dir, sb.toString());
+    }
+
+    /**
+     * Values of KEY_PROPERTIES without attaching, null if target has no usable hsperfdata file
+     */
+    private static String[] keyFromPerfData(int pid) {
+        File file = VMDiscovery.findPerfData(pid);
+        if (file == null) {
+            return null;
+        }
+        try {
+            PerfData perfData = PerfData.open(file);
+            String[] key = new String[KEY_PROPERTIES.length];
+            for (int i = 0; i < KEY_PROPERTIES.length; i++) {
+                key[i] = perfData.getString(PERF_DATA_PROPERTY_PREFIX + KEY_PROPERTIES[i]);
+                if (key[i] == null) {
+                    return null;
+                }
+            }
+            return key;
+        } catch (IOException e) {
+            // Ask target instead
+            return null;
+        }
+    }
+
+    private static String[] keyFromProperties(HotSpotVM vm) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputStream oldOut = HotSpotVM.redirectOutput(bos);
+        try {
+            vm.execute(VM_OPERATION_PROPERTIES);
+        } finally {
+            HotSpotVM.redirectOutput(oldOut);
+        }
+        Properties props = new Properties();
+        props.load(new ByteArrayInputStream(bos.toByteArray()));
+        if (props.getProperty("java.vm.version") == null) {
+            return null;
+        }
+        String[] key = new String[KEY_PROPERTIES.length];
+        for (int i = 0; i < KEY_PROPERTIES.length; i++) {
+            key[i] = props.getProperty(KEY_PROPERTIES[i], "");
+        }
+        return key;
+    }
+
+    /**
+     * Add jcmd commands of target and their descriptions to {@code entries}, it throws if any
+     * of the attach round trips fails and {@code entries} is incomplete then
+     */
+    private static void query(HotSpotVM vm, List<String[]> entries) throws Exception {
+        String availableJcmd = executeJcmd(vm, "help");
+        String[] lines = availableJcmd.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].matches("[a-zA-Z_]+?\\.[a-zA-Z_]+")) {
+                // Read help document of jcmd subcommands
+                String jcmdHelp = executeJcmd(vm, "help " + lines[i]);
+                String[] jcmdHelpLines = jcmdHelp.split("\n");
+                String description = "";
+                if (jcmdHelpLines.length > 2) {
+                    description = jcmdHelpLines[1];
+                }
+                entries.add(new String[]{lines[i], description});
+            }
+        }
+    }
+
+    private static String executeJcmd(HotSpotVM vm, String jcmd) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new JcmdCommand("", jcmd, "")
+            .redirectOutput(new PrintStream(bos))
+            .executeCommand(vm, null);
+        return bos.toString();
+    }
+
+    private static List<JcmdCommand> toCommands(List<String[]> entries) {
+        List<JcmdCommand> commands = new ArrayList<JcmdCommand>();
+        for (int i = 0; i < entries.size(); i++) {
+            String jcmd = entries.get(i)[0];
+            // Register jcmd command accordingly
+            String cmdName = jcmd;
+            cmdName = cmdName.replace(".", "_");
+            cmdName = cmdName.toLowerCase();
+            commands.add(new JcmdCommand(cmdName, jcmd, entries.get(i)[1]));
+        }
+        return commands;
+    }
+
+    private static List<JcmdCommand> read(File cache) throws IOException {
+        List<String[]> entries = new ArrayList<String[]>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(cache), "UTF-8"));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int sep = line.indexOf(SEPARATOR);
+                if (sep <= 0) {
+                    throw new IOException("Malformed jcmd catalog " + cache);
+                }
+                entries.add(new String[]{line.substring(0, sep), line.substring(sep + 1)});
+            }
+        } finally {
+            br.close();
+        }
+        return toCommands(entries);
+    }
+
+    private static void write(File cache, List<String[]> entries) throws IOException {
+        // Write to a private file first, concurrent readers must not observe a partial catalog
+        File tmp = File.createTempFile("jcmd-", ".tmp", cache.getParentFile());
+        try {
+            Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                for (int i = 0; i < entries.size(); i++) {
+                    w.write(entries.get(i)[0]);
+                    w.write(SEPARATOR);
+                    w.write(entries.get(i)[1].replace('\n', ' ').replace('\r', ' '));
+                    w.write('\n');
+                }
+            } finally {
+                w.close();
+            }
+            if (!tmp.renameTo(cache)) {
+                throw new IOException("Failed to persist jcmd catalog " + cache);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+}
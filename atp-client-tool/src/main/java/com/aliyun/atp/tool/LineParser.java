@@ -0,0 +1,180 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Base of parsers fed with the text output of attach operations. Bytes are collected into one
+ * reused line buffer and every complete line is handed to {@link #parseLine()}, so the output
+ * is parsed while it is written and never buffered as a whole. Lines are seen without their
+ * line break, a trailing carriage return included.
+ */
+abstract class LineParser extends OutputStream {
+    protected byte[] line = new byte[256];
+    protected int lineLength;
+
+    /**
+     * Parse text saved to a file earlier
+     */
+    void parse(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                write(buffer, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        close();
+    }
+
+    protected abstract void parseLine();
+
+    @Override
+    public void write(int b) {
+        if (b == '\n') {
+            endLine();
+        } else {
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, lineLength * 2);
+            }
+            line[lineLength++] = (byte) b;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        int end = off + len;
+        while (off < end) {
+            int newline = off;
+            while (newline < end && b[newline] != '\n') {
+                newline++;
+            }
+            append(b, off, newline - off);
+            if (newline == end) {
+                break;
+            }
+            endLine();
+            off = newline + 1;
+        }
+    }
+
+    private void append(byte[] b, int off, int len) {
+        if (lineLength + len > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + len));
+        }
+        System.arraycopy(b, off, line, lineLength, len);
+        lineLength += len;
+    }
+
+    private void endLine() {
+        if (lineLength > 0 && line[lineLength - 1] == '\r') {
+            lineLength--;
+        }
+        parseLine();
+        lineLength = 0;
+    }
+
+    /**
+     * Parse the last line if it has no line break
+     */
+    @Override
+    public void close() {
+        if (lineLength > 0) {
+            parseLine();
+            lineLength = 0;
+        }
+    }
+
+    protected int skipSpaces(int p) {
+        while (p < lineLength && (line[p] == ' ' || line[p] == '\t')) {
+            p++;
+        }
+        return p;
+    }
+
+    protected int skipDigits(int p) {
+        while (p < lineLength && line[p] >= '0' && line[p] <= '9') {
+            p++;
+        }
+        return p;
+    }
+
+    protected long parseNumber(int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (line[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Value of the hex number after "0x" at {@code p}, -1 if there is none
+     */
+    protected long parseHex(int p) {
+        if (p + 2 >= lineLength || line[p] != '0' || line[p + 1] != 'x') {
+            return -1;
+        }
+        long value = 0;
+        for (p += 2; p < lineLength; p++) {
+            int digit = Character.digit(line[p], 16);
+            if (digit < 0) {
+                break;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    protected boolean startsWith(int p, String prefix) {
+        if (p + prefix.length() > lineLength) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[p + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Position of the first occurrence of {@code s} at or after {@code from}, -1 if there is none
+     */
+    protected int indexOf(String s, int from) {
+        for (int p = from; p + s.length() <= lineLength; p++) {
+            if (startsWith(p, s)) {
+                return p;
+            }
+        }
+        return -1;
+    }
+}
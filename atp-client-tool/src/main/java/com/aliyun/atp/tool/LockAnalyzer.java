@@ -0,0 +1,276 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lock contention and deadlocks in one or several consecutive thread dumps taken with locks.
+ * Every dump gives a wait-for graph: a thread blocked on a monitor or parked on a
+ * {@code java.util.concurrent} lock points to the thread holding it, found by the lock address
+ * among held monitors and ownable synchronizers. Threads in {@code Object.wait} and threads
+ * parked on objects nobody owns, like conditions of idle pools or futures, wait for a signal
+ * rather than a lock and are not counted. Every thread waits for at most one lock, so cycles
+ * are found by following the owners. Objects may move between dumps, so contended locks are
+ * followed across dumps by lock type and the frame where their waiters block, and a lock is
+ * reported as hot when it had waiters in at least half of the dumps.
+ */
+class LockAnalyzer {
+    private static final int OWNER_FRAMES = 10;
+    private static final String[] BLOCKING_METHODS = {
+        "java.util.concurrent.locks.", "jdk.internal.misc.Unsafe.", "sun.misc.Unsafe.", "java.lang.Object.wait"};
+
+    private static final class HotLock {
+        final String type;
+        final String site;
+        int dumps;
+        long waiters;
+        int maxWaiters;
+        // From the last dump the lock was contended in
+        long address;
+        String owner;
+        String ownerState;
+        int ownerStack = -1;
+        List<String> waiterNames;
+
+        HotLock(String type, String site) {
+            this.type = type;
+            this.site = site;
+        }
+    }
+
+    private final ThreadDump dump;
+    private final Map<String, HotLock> locks = new HashMap<String, HotLock>();
+    // Deadlocks by their description, which starts with the thread of the lowest name
+    private final Map<String, Integer> deadlocks = new LinkedHashMap<String, Integer>();
+    private int dumps;
+
+    /**
+     * Analyzer of the dumps parsed by {@code dump}, call {@link #add()} after each of them
+     */
+    LockAnalyzer(ThreadDump dump) {
+        this.dump = dump;
+    }
+
+    private static boolean blocks(ThreadDump.ThreadInfo thread, ThreadDump.ThreadInfo owner) {
+        String kind = thread.waitKind;
+        return kind != null && !kind.equals("waiting on") && (owner != null || !kind.startsWith("parking"));
+    }
+
+    /**
+     * Innermost frame of the thread that is not part of the locking machinery itself
+     */
+    private String site(ThreadDump.ThreadInfo thread) {
+        int[] frames = dump.stack(thread.stack);
+        for (int frame : frames) {
+            String method = dump.method(frame);
+            boolean machinery = false;
+            for (String prefix : BLOCKING_METHODS) {
+                machinery |= method.startsWith(prefix);
+            }
+            if (!machinery) {
+                return dump.frame(frame);
+            }
+        }
+        return frames.length > 0 ? dump.frame(frames[0]) : "<no Java frames>";
+    }
+
+    void add() {
+        dumps++;
+        Map<Long, ThreadDump.ThreadInfo> owners = new HashMap<Long, ThreadDump.ThreadInfo>();
+        for (ThreadDump.ThreadInfo thread : dump.threads()) {
+            for (ThreadDump.Lock lock : thread.held) {
+                owners.put(lock.address, thread);
+            }
+        }
+
+        Map<Long, List<ThreadDump.ThreadInfo>> waiters = new LinkedHashMap<Long, List<ThreadDump.ThreadInfo>>();
+        Map<ThreadDump.ThreadInfo, ThreadDump.ThreadInfo> waitsFor =
+            new HashMap<ThreadDump.ThreadInfo, ThreadDump.ThreadInfo>();
+        for (ThreadDump.ThreadInfo thread : dump.threads()) {
+            if (thread.waiting == null) {
+                continue;
+            }
+            ThreadDump.ThreadInfo owner = owners.get(thread.waiting.address);
+            if (!blocks(thread, owner)) {
+                continue;
+            }
+            List<ThreadDump.ThreadInfo> list = waiters.get(thread.waiting.address);
+            if (list == null) {
+                list = new ArrayList<ThreadDump.ThreadInfo>();
+                waiters.put(thread.waiting.address, list);
+            }
+            list.add(thread);
+            if (owner != null && owner != thread) {
+                waitsFor.put(thread, owner);
+            }
+        }
+
+        Set<String> seen = new HashSet<String>();
+        for (List<ThreadDump.ThreadInfo> list : waiters.values()) {
+            ThreadDump.ThreadInfo first = list.get(0);
+            // The site most waiters block at names the lock across dumps
+            Map<String, Integer> sites = new HashMap<String, Integer>();
+            for (ThreadDump.ThreadInfo waiter : list) {
+                String s = site(waiter);
+                Integer n = sites.get(s);
+                sites.put(s, n != null ? n + 1 : 1);
+            }
+            String site = null;
+            for (Map.Entry<String, Integer> entry : sites.entrySet()) {
+                int n = site != null ? sites.get(site) : 0;
+                if (entry.getValue() > n || (entry.getValue() == n && entry.getKey().compareTo(site) < 0)) {
+                    site = entry.getKey();
+                }
+            }
+            String key = first.waiting.type + " at " + site;
+            HotLock lock = locks.get(key);
+            if (lock == null) {
+                lock = new HotLock(first.waiting.type, site);
+                locks.put(key, lock);
+            }
+            if (seen.add(key)) {
+                lock.dumps++;
+            }
+            lock.waiters += list.size();
+            lock.maxWaiters = Math.max(lock.maxWaiters, list.size());
+            lock.address = first.waiting.address;
+            ThreadDump.ThreadInfo owner = owners.get(first.waiting.address);
+            lock.owner = owner != null ? owner.name : null;
+            lock.ownerState = owner != null ? owner.state : null;
+            lock.ownerStack = owner != null ? owner.stack : -1;
+            lock.waiterNames = new ArrayList<String>();
+            for (ThreadDump.ThreadInfo waiter : list) {
+                lock.waiterNames.add(waiter.name);
+            }
+        }
+        findDeadlocks(waitsFor);
+    }
+
+    private void findDeadlocks(Map<ThreadDump.ThreadInfo, ThreadDump.ThreadInfo> waitsFor) {
+        Set<ThreadDump.ThreadInfo> done = new HashSet<ThreadDump.ThreadInfo>();
+        for (ThreadDump.ThreadInfo start : waitsFor.keySet()) {
+            List<ThreadDump.ThreadInfo> path = new ArrayList<ThreadDump.ThreadInfo>();
+            ThreadDump.ThreadInfo t = start;
+            while (t != null && !done.contains(t) && !path.contains(t)) {
+                path.add(t);
+                t = waitsFor.get(t);
+            }
+            if (t != null && path.contains(t)) {
+                List<ThreadDump.ThreadInfo> cycle =
+                    new ArrayList<ThreadDump.ThreadInfo>(path.subList(path.indexOf(t), path.size()));
+                // Start with the lowest name, so the same deadlock is described the same way in every dump
+                int lowest = 0;
+                for (int i = 1; i < cycle.size(); i++) {
+                    if (cycle.get(i).name.compareTo(cycle.get(lowest).name) < 0) {
+                        lowest = i;
+                    }
+                }
+                Collections.rotate(cycle, -lowest);
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < cycle.size(); i++) {
+                    ThreadDump.ThreadInfo waiter = cycle.get(i);
+                    ThreadDump.ThreadInfo owner = cycle.get((i + 1) % cycle.size());
+                    sb.append(String.format("  \"%s\" %s <0x%016x> (a %s) held by \"%s\"%n", waiter.name,
+                        waiter.waitKind, waiter.waiting.address, waiter.waiting.type, owner.name));
+                    sb.append("\tat ").append(site(waiter)).append(String.format("%n"));
+                }
+                String key = sb.toString();
+                Integer n = deadlocks.get(key);
+                deadlocks.put(key, n != null ? n + 1 : 1);
+            }
+            done.addAll(path);
+        }
+    }
+
+    void print(PrintStream out) {
+        if (!deadlocks.isEmpty()) {
+            for (Map.Entry<String, Integer> entry : deadlocks.entrySet()) {
+                out.println("Deadlock found in " + entry.getValue() + " of " + dumps + " dumps:");
+                out.print(entry.getKey());
+                out.println();
+            }
+        }
+        List<HotLock> sorted = new ArrayList<HotLock>();
+        for (HotLock lock : locks.values()) {
+            if (dumps == 1 || (lock.dumps >= 2 && lock.dumps * 2 >= dumps)) {
+                sorted.add(lock);
+            }
+        }
+        Collections.sort(sorted, new Comparator<HotLock>() {
+            @Override
+            public int compare(HotLock a, HotLock b) {
+                if (a.dumps != b.dumps) {
+                    return a.dumps < b.dumps ? 1 : -1;
+                }
+                if (a.waiters != b.waiters) {
+                    return a.waiters < b.waiters ? 1 : -1;
+                }
+                return (a.type + a.site).compareTo(b.type + b.site);
+            }
+        });
+        if (dumps == 1) {
+            out.println("Contended locks by blocked waiters: " + sorted.size());
+        } else {
+            out.println("Locks contended in at least half of " + dumps + " dumps: " + sorted.size()
+                + ", " + (locks.size() - sorted.size()) + " more only briefly");
+        }
+        for (HotLock lock : sorted) {
+            out.println();
+            if (dumps == 1) {
+                out.println(String.format("%d %s on <0x%016x> (a %s)", lock.waiters, lock.waiters == 1 ? "waiter" : "waiters",
+                    lock.address, lock.type));
+            } else {
+                out.println(String.format("%d/%d dumps, %.1f waiters on average, %d at most on %s", lock.dumps, dumps,
+                    (double) lock.waiters / lock.dumps, lock.maxWaiters, lock.type));
+            }
+            out.println("\twaiters block at " + lock.site);
+            StringBuilder sb = new StringBuilder("\twaiters ");
+            for (int i = 0; i < lock.waiterNames.size() && i < 3; i++) {
+                sb.append(i > 0 ? ", \"" : "\"").append(lock.waiterNames.get(i)).append('"');
+            }
+            out.println(sb.append(lock.waiterNames.size() > 3 ? ", ..." : ""));
+            if (lock.owner == null) {
+                out.println("\towner unknown, the lock was released while dumping");
+                continue;
+            }
+            out.println((dumps == 1 ? "\towner \"" : "\towner in the last dump \"") + lock.owner + "\" " + lock.ownerState);
+            int[] frames = dump.stack(lock.ownerStack);
+            for (int i = 0; i < frames.length && i < OWNER_FRAMES; i++) {
+                out.println("\t\tat " + dump.frame(frames[i]));
+            }
+            if (frames.length > OWNER_FRAMES) {
+                out.println("\t\t...");
+            }
+        }
+    }
+}
@@ -22,21 +22,16 @@
  */
 package com.aliyun.atp.tool;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.File;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
 public class Main {
-    private static final Set<Command> commands = new LinkedHashSet<Command>();
-
-    static {
-        registerCommands();
-    }
-
-    private static void registerCommands() {
+    private static Set<Command> createCommands() {
+        Set<Command> commands = new LinkedHashSet<Command>();
         commands.add(new HeapDumpCommand("heap",
             "Generate heap dump of Java process"));
         commands.add(new ThreadDumpCommand("thread",
@@ -45,94 +40,162 @@ public class Main {
             "List class and number of instance in Java heap"));
         commands.add(new FullJcmdCommand("full_jcmd",
             "Execute all available jcmd commands and gather their output to a file"));
+        commands.add(new BundleCommand("bundle",
+            "Collect thread dump, heap histogram and VM information into one indexed zip archive"));
+        commands.add(new ProfileCommand("profile",
+            "Sample thread stacks of one attach session and write collapsed stacks for flame graphs"));
+        commands.add(new OffHeapCommand("offheap",
+            "Attribute native memory to direct buffers, mapped files, metaspace, code cache and thread stacks"));
+        commands.add(new HotThreadsCommand("hot_threads",
+            "Rank threads by CPU usage over an interval and print their stacks"));
+        commands.add(new PerfDataCommand("perfdata",
+            "Print performance counters from hsperfdata without attaching to the target"));
+        commands.add(new RecordCommand("record",
+            "Record GC, heap, thread, memory and CPU counters into a compact ring file without attaching"));
+        return commands;
     }
 
-    private static void registerJcmdCommands(HotSpotVM vm) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        PrintStream ps = new PrintStream(bos);
-        try {
-            new JcmdCommand("", "help", "")
-                .redirectOutput(ps)
-                .executeCommand(vm, null);
-            String availableJcmd = bos.toString();
-            String[] lines = availableJcmd.split("\n");
-            for (int i = 0; i < lines.length; i++) {
-                if (lines[i].matches("[a-zA-Z_]+?\\.[a-zA-Z_]+")) {
-                    // Read help document of jcmd subcommands
-                    bos = new ByteArrayOutputStream();
-                    ps = new PrintStream(bos);
-                    new JcmdCommand("", "help " + lines[i], "")
-                        .redirectOutput(ps)
-                        .executeCommand(vm, null);
-                    String jcmdHelp = bos.toString();
-                    String[] jcmdHelpLines = jcmdHelp.split("\n");
-                    String description = "";
-                    if (jcmdHelpLines.length > 2) {
-                        description = jcmdHelpLines[1];
-                    }
-                    // Register jcmd command accordingly
-                    String cmdName = lines[i];
-                    cmdName = cmdName.replace(".", "_");
-                    cmdName = cmdName.toLowerCase();
-                    commands.add(new JcmdCommand(cmdName, lines[i], description));
-                }
-            }
-        } catch (Exception e) {
-            // Failed to execute Jcmd operations
-            // Skip...
-        } finally {
-            try {
-                bos.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    private static void registerJcmdCommands(Set<Command> commands, String pid, HotSpotVM vm) {
+        commands.addAll(JcmdCatalog.load(Integer.parseInt(pid), vm));
+    }
+
+    private static Command findCommand(Set<Command> commands, String name) {
+        Iterator<Command> iter = commands.iterator();
+        while (iter.hasNext()) {
+            Command cmd = iter.next();
+            if (cmd.getName().equals(name)) {
+                return cmd;
             }
         }
+        return null;
     }
 
-    private static void usage() {
-        System.err.println("Usage:");
-        System.err.println(Main.class.getSimpleName() + " <pid> <subcommand> <options>");
-        System.err.println();
-        System.err.println("Subcommands:");
+    private static void usage(Set<Command> commands, PrintStream err) {
+        err.println("Usage:");
+        err.println(Main.class.getSimpleName() + " <pid> <subcommand> <options>");
+        err.println(Main.class.getSimpleName() + " <pid|main class>,... <subcommand> [" + FanOut.CONCURRENCY_OPTION
+            + "=N] [" + FanOut.TIMEOUT_OPTION + "=10m] <options>, " + FanOut.PID_PLACEHOLDER + " in options is replaced by the pid");
+        err.println(Main.class.getSimpleName() + " " + VMDiscovery.LIST_COMMAND
+            + "                             List JVMs with their pid, namespace pid, version and main class");
+        err.println(Main.class.getSimpleName() + " " + Recording.READ_COMMAND
+            + " <file> [-format=csv|json]   Print a recording made by the record subcommand");
+        err.println();
+        err.println("Subcommands:");
         Iterator<Command> iter = commands.iterator();
         while (iter.hasNext()) {
             Command cmd = iter.next();
-            System.err.println(cmd.toString());
+            err.println(cmd.toString());
         }
     }
 
     public static void main(String[] args) {
-        if (args.length < 1) {
-            usage();
-            return;
+        try {
+            if (args.length > 0 && args[0].equals(Worker.WORKER_OPTION)) {
+                Worker.serve(args);
+            } else {
+                run(args);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
+    }
+
+    public static void run(String[] args) throws Exception {
+        run(args, System.out, System.err);
+    }
+
+    /**
+     * Entry point shared by the standalone launcher and ATPClient's in-process mode. Output of
+     * the command is written to {@code out} and only affects the calling thread, usage and other
+     * diagnostics of client tool itself go to {@code err}. Every invocation works on its own set
+     * of commands, so concurrent callers inside one process never observe each other's options.
+     * A comma separated list of pids or main classes runs the subcommand on all of them, see
+     * {@link FanOut}, {@code list} prints the JVMs found by {@link VMDiscovery} and {@code read}
+     * prints a {@link Recording}.
+     */
+    public static void run(String[] args, OutputStream out, OutputStream err) throws Exception {
+        PrintStream errStream = err instanceof PrintStream ? (PrintStream) err : new PrintStream(err, true);
+        OutputStream oldOut = HotSpotVM.redirectOutput(out);
         try {
+            if (args == null || args.length < 1) {
+                usage(createCommands(), errStream);
+                return;
+            }
+            if (args[0].equals(VMDiscovery.LIST_COMMAND)) {
+                VMDiscovery.list(out instanceof PrintStream ? (PrintStream) out : new PrintStream(out));
+                return;
+            }
+            if (args[0].equals(Recording.READ_COMMAND)) {
+                read(args, out instanceof PrintStream ? (PrintStream) out : new PrintStream(out));
+                return;
+            }
+            if (FanOut.isTargetList(args[0])) {
+                FanOut.run(args, out, errStream);
+                return;
+            }
             int pid = Integer.parseInt(args[0]);
-            HotSpotVM vm = HotSpotVM.creatHotSpotVM(pid);
-            registerJcmdCommands(vm);
-
-            if (args.length < 2) {
-                usage();
+            if (!requiresAttach(args)) {
+                run(args, (HotSpotVM) null, errStream);
                 return;
             }
-
-            String subCommand = args[1];
-            Iterator<Command> iter = commands.iterator();
-            boolean found = false;
-            while (iter.hasNext()) {
-                Command cmd = iter.next();
-                if (cmd.getName().equals(subCommand)) {
-                    found = true;
-                    cmd.executeCommand(vm, args);
-                    break;
-                }
+            HotSpotVM vm = HotSpotVM.creatHotSpotVM(pid);
+            try {
+                run(args, vm, errStream);
+            } finally {
+                vm.detach();
             }
-            if (!found) {
-                throw new Exception("Unknown subcommand " + subCommand);
+        } finally {
+            out.flush();
+            errStream.flush();
+            HotSpotVM.redirectOutput(oldOut);
+        }
+    }
+
+    private static void read(String[] args, PrintStream out) throws Exception {
+        if (args.length < 2) {
+            throw new Exception("Usage: " + Recording.READ_COMMAND + " <file> [-format=csv|json]");
+        }
+        String format = Recording.FORMAT_CSV;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("-format=")) {
+                format = args[i].substring("-format=".length());
             }
-            vm.detach();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        if (!format.equals(Recording.FORMAT_CSV) && !format.equals(Recording.FORMAT_JSON)) {
+            throw new Exception("Option -format expects csv or json but got " + format);
+        }
+        Recording.print(new File(args[1]), format, out);
+    }
+
+    /**
+     * Whether the subcommand of {@code args} needs a HotSpotVM, unknown ones may be jcmd commands
+     */
+    static boolean requiresAttach(String[] args) {
+        if (args.length < 2) {
+            return true;
+        }
+        Command cmd = findCommand(createCommands(), args[1]);
+        return cmd == null || cmd.requiresAttach();
+    }
+
+    static void run(String[] args, HotSpotVM vm, PrintStream err) throws Exception {
+        Set<Command> commands = createCommands();
+        if (args.length < 2) {
+            registerJcmdCommands(commands, args[0], vm);
+            usage(commands, err);
+            return;
+        }
+
+        // jcmd catalog is only needed when subcommand is not a builtin one
+        String subCommand = args[1];
+        Command cmd = findCommand(commands, subCommand);
+        if (cmd == null) {
+            registerJcmdCommands(commands, args[0], vm);
+            cmd = findCommand(commands, subCommand);
+        }
+        if (cmd == null) {
+            throw new Exception("Unknown subcommand " + subCommand);
+        }
+        cmd.redirectError(err).executeCommand(vm, args);
     }
 }
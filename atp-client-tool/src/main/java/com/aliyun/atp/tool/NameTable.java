@@ -0,0 +1,138 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Interns names by their UTF-8 bytes, so parsers can look up a name straight from the line
+ * buffer and decode it only the first time it is seen. Names get dense indexes in the order
+ * they are added, which callers use to keep values in parallel arrays.
+ */
+class NameTable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[][] keys = new byte[1024][];
+    private String[] names = new String[1024];
+    private int size;
+    // Open addressing table of index + 1, 0 for empty slots
+    private int[] slots = new int[2048];
+
+    private static int hash(byte[] b, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + b[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(byte[] key, byte[] b, int start, int end) {
+        if (key.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != b[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Index of the name in {@code b[start, end)}, -1 if it is not in the table and should not be created
+     */
+    int find(byte[] b, int start, int end, boolean create) {
+        int mask = slots.length - 1;
+        for (int slot = hash(b, start, end) & mask; ; slot = (slot + 1) & mask) {
+            int index = slots[slot] - 1;
+            if (index < 0) {
+                if (!create) {
+                    return -1;
+                }
+                index = append(Arrays.copyOfRange(b, start, end));
+                slots[slot] = index + 1;
+                if (size * 2 > slots.length) {
+                    rehash();
+                }
+                return index;
+            }
+            if (equals(keys[index], b, start, end)) {
+                return index;
+            }
+        }
+    }
+
+    int find(String name, boolean create) {
+        byte[] key = name.getBytes(UTF8);
+        return find(key, 0, key.length, create);
+    }
+
+    /**
+     * Index of the name at {@code index} of another table, -1 if it is not in this one
+     */
+    int find(NameTable other, int index) {
+        byte[] key = other.keys[index];
+        return find(key, 0, key.length, false);
+    }
+
+    private int append(byte[] key) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            names = Arrays.copyOf(names, size * 2);
+        }
+        keys[size] = key;
+        names[size] = new String(key, UTF8);
+        return size++;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hash(keys[i], 0, keys[i].length) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    /**
+     * Forget all names but keep the arrays
+     */
+    void reset() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String name(int index) {
+        return names[index];
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Attribute memory of a live process outside of Java heap to direct buffers, mapped files,
+ * metaspace, code cache and thread stacks in one report. Committed sizes come from native memory
+ * tracking, which the target must have enabled with {@code -XX:NativeMemoryTracking=summary}.
+ * Direct buffers are allocated by Unsafe and tracked as "Other" since JDK 11 and as "Internal"
+ * before. Buffer objects are counted by a histogram of all objects, which unlike
+ * {@code list_heap} does not force a full GC and includes buffers whose memory is not freed yet.
+ * NMT does not see file mappings, they are read from {@code /proc/<pid>/smaps} on Linux, with
+ * shared libraries, jars and JDK class data reported apart from files mapped by the application.
+ * Which objects hold the buffers can only be told from a heap dump, see the offheap subcommand
+ * of atp-heap-analyzer.
+ */
+class OffHeapCommand extends Command {
+    private static final String VM_OPERATION_JCMD = "jcmd";
+    private static final String VM_OPERATION_INSPECT_HEAP = "inspectheap";
+    private static final Pattern NMT_CATEGORY =
+        Pattern.compile("^-\\s+(.+?) \\(reserved=(\\d+)KB, committed=(\\d+)KB");
+    private static final Pattern NMT_TOTAL = Pattern.compile("^Total: reserved=(\\d+)KB, committed=(\\d+)KB");
+    private static final Pattern NMT_THREADS = Pattern.compile("\\(thread #(\\d+)\\)");
+    private static final Pattern NMT_CLASSES = Pattern.compile("\\(classes #(\\d+)\\)");
+    private static final Pattern SMAPS_HEADER = Pattern.compile("^[0-9a-f]+-[0-9a-f]+ ");
+    private static final int TOP_MAPPED_FILES = 10;
+
+    OffHeapCommand(String commandName, String description) {
+        super(commandName, description, new CommandOption[]{});
+    }
+
+    private static String capture(HotSpotVM vm, String cmd, String arg) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputStream oldOut = HotSpotVM.redirectOutput(bos);
+        try {
+            vm.execute(cmd, arg);
+        } finally {
+            HotSpotVM.redirectOutput(oldOut);
+        }
+        return bos.toString("UTF-8");
+    }
+
+    /**
+     * Committed KB of NMT categories, null if native memory tracking is not enabled. The total is
+     * kept under an empty name, thread and class counts under "#threads" and "#classes".
+     */
+    private static Map<String, Long> parseNativeMemory(String summary) {
+        Map<String, Long> categories = new HashMap<String, Long>();
+        String[] lines = summary.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            Matcher m = NMT_TOTAL.matcher(line);
+            if (m.find()) {
+                categories.put("", Long.parseLong(m.group(2)));
+            }
+            m = NMT_CATEGORY.matcher(line);
+            if (m.find()) {
+                categories.put(m.group(1), Long.parseLong(m.group(3)));
+            }
+            m = NMT_THREADS.matcher(line);
+            if (m.find()) {
+                categories.put("#threads", Long.parseLong(m.group(1)));
+            }
+            m = NMT_CLASSES.matcher(line);
+            if (m.find()) {
+                categories.put("#classes", Long.parseLong(m.group(1)));
+            }
+        }
+        return categories.containsKey("") ? categories : null;
+    }
+
+    private static long get(Map<String, Long> categories, String name) {
+        Long value = categories.get(name);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * Instance counts of buffer related classes: buffer objects, direct allocations and mappings
+     */
+    private static long[] countBuffers(String histogram) {
+        long[] counts = new long[3];
+        String[] lines = histogram.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            // e.g. "  59:            20           1280  java.nio.DirectByteBuffer (java.base@21.0.1)"
+            String[] columns = lines[i].trim().split("\\s+");
+            if (columns.length < 4 || !columns[0].endsWith(":")) {
+                continue;
+            }
+            String name = columns[3];
+            long count;
+            try {
+                count = Long.parseLong(columns[1]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (name.equals("java.nio.DirectByteBuffer") || name.equals("java.nio.DirectByteBufferR")) {
+                counts[0] += count;
+            } else if (name.equals("java.nio.DirectByteBuffer$Deallocator")) {
+                counts[1] += count;
+            } else if (name.startsWith("sun.nio.ch.FileChannelImpl$") && name.endsWith("Unmapper")) {
+                counts[2] += count;
+            }
+        }
+        return counts;
+    }
+
+    private static boolean isLibrary(String path, String executable) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        return name.endsWith(".so") || name.contains(".so.") || name.endsWith(".jar") || name.endsWith(".jsa")
+            || path.endsWith("/lib/modules") || path.contains("/hsperfdata_") || path.equals(executable);
+    }
+
+    /**
+     * Resident KB of file mappings in {@code /proc/<pid>/smaps} by path, null if it is not readable.
+     * Anonymous memory, including memfd backed Java heap, is left to NMT.
+     */
+    private static Map<String, long[]> readMappedFiles(int pid) throws IOException {
+        File smaps = new File("/proc/" + pid + "/smaps");
+        if (!smaps.canRead()) {
+            return null;
+        }
+        Map<String, long[]> files = new HashMap<String, long[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(smaps));
+        try {
+            long[] current = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (SMAPS_HEADER.matcher(line).find()) {
+                    // address perms offset dev inode path, the path may contain spaces
+                    String[] columns = line.split("\\s+", 6);
+                    String path = columns.length == 6 ? columns[5].trim() : "";
+                    if (path.endsWith(" (deleted)")) {
+                        path = path.substring(0, path.length() - " (deleted)".length());
+                    }
+                    current = null;
+                    if (path.startsWith("/") && !path.startsWith("/memfd:")) {
+                        current = files.get(path);
+                        if (current == null) {
+                            current = new long[2];
+                            files.put(path, current);
+                        }
+                    }
+                } else if (current != null && line.startsWith("Size:")) {
+                    current[0] += parseKB(line);
+                } else if (current != null && line.startsWith("Rss:")) {
+                    current[1] += parseKB(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return files;
+    }
+
+    private static long parseKB(String line) {
+        // e.g. "Rss:                 128 kB"
+        String[] columns = line.trim().split("\\s+");
+        return columns.length >= 2 ? Long.parseLong(columns[1]) : 0;
+    }
+
+    private static long readResidentKB(int pid) throws IOException {
+        File status = new File("/proc/" + pid + "/status");
+        if (!status.canRead()) {
+            return -1;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(status));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return parseKB(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return -1;
+    }
+
+    private static void row(PrintStream out, String category, long kb, String detail) {
+        out.println(String.format("%-28s%14s  %s", category, kb >= 0 ? String.valueOf(kb) : "n/a", detail).trim());
+    }
+
+    @Override
+    protected void execute(HotSpotVM vm, String[] args) throws Exception {
+        int pid = Integer.parseInt(args[0]);
+        Map<String, Long> nmt = parseNativeMemory(capture(vm, VM_OPERATION_JCMD, "VM.native_memory summary"));
+        long[] buffers = countBuffers(capture(vm, VM_OPERATION_INSPECT_HEAP, "-all"));
+        Map<String, long[]> files = readMappedFiles(pid);
+        long rss = readResidentKB(pid);
+
+        long heap = -1;
+        long direct = -1;
+        long metaspace = -1;
+        long shared = -1;
+        long code = -1;
+        long threads = -1;
+        long other = -1;
+        long total = -1;
+        String directSource = "";
+        if (nmt != null) {
+            heap = get(nmt, "Java Heap");
+            boolean hasOther = nmt.containsKey("Other");
+            direct = get(nmt, hasOther ? "Other" : "Internal");
+            directSource = hasOther ? "NMT Other, " : "NMT Internal with VM internals, ";
+            metaspace = get(nmt, "Class") + get(nmt, "Metaspace");
+            shared = get(nmt, "Shared class space");
+            code = get(nmt, "Code");
+            // Later JDKs track stacks in a category of their own
+            threads = get(nmt, "Thread") + get(nmt, "Thread Stack");
+            total = get(nmt, "");
+            other = total - heap - direct - metaspace - shared - code - threads;
+        }
+        long mappedSize = -1;
+        long mappedResident = -1;
+        long librariesResident = -1;
+        List<Map.Entry<String, long[]>> mapped = new ArrayList<Map.Entry<String, long[]>>();
+        if (files != null) {
+            String executable = new File("/proc/" + pid + "/exe").getCanonicalPath();
+            mappedSize = 0;
+            mappedResident = 0;
+            librariesResident = 0;
+            for (Map.Entry<String, long[]> entry : files.entrySet()) {
+                if (isLibrary(entry.getKey(), executable)) {
+                    librariesResident += entry.getValue()[1];
+                } else {
+                    mappedSize += entry.getValue()[0];
+                    mappedResident += entry.getValue()[1];
+                    mapped.add(entry);
+                }
+            }
+            Collections.sort(mapped, new Comparator<Map.Entry<String, long[]>>() {
+                @Override
+                public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                    return a.getValue()[1] != b.getValue()[1] ? (a.getValue()[1] < b.getValue()[1] ? 1 : -1)
+                        : a.getKey().compareTo(b.getKey());
+                }
+            });
+        }
+
+        PrintStream out = output();
+        out.println("Memory attribution of process " + pid + ", committed KB unless noted");
+        row(out, "Java heap", heap, "");
+        row(out, "Direct buffers", direct, directSource + buffers[1] + " allocations, "
+            + buffers[0] + " DirectByteBuffer objects including views");
+        row(out, "Mapped files", mappedResident, "resident of " + Math.max(mappedSize, 0) + " mapped, "
+            + mapped.size() + " files, " + buffers[2] + " MappedByteBuffer mappings");
+        row(out, "Metaspace", metaspace, nmt != null ? get(nmt, "#classes") + " classes" : "");
+        row(out, "Shared class space", shared, "");
+        row(out, "Code cache", code, "");
+        row(out, "Thread stacks", threads, nmt != null ? get(nmt, "#threads") + " threads" : "");
+        row(out, "Other JVM native", other, "GC, compiler, symbols and other NMT categories");
+        row(out, "Total tracked by NMT", total, "");
+        row(out, "Libraries and JDK files", librariesResident, "resident, shared libraries, jars and class data");
+        row(out, "Resident set size", rss, "VmRSS, also counts native memory NMT does not track");
+        if (nmt == null) {
+            out.println("Native memory tracking is not enabled, start the target with -XX:NativeMemoryTracking=summary");
+        }
+        if (!mapped.isEmpty()) {
+            out.println();
+            out.println("Mapped files by resident KB:");
+            for (int i = 0; i < mapped.size() && i < TOP_MAPPED_FILES; i++) {
+                long[] sizes = mapped.get(i).getValue();
+                out.println(String.format("%14d%14d  %s", sizes[1], sizes[0], mapped.get(i).getKey()));
+            }
+        }
+        out.flush();
+    }
+}
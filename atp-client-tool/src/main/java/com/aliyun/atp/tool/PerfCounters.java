@@ -0,0 +1,164 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Typed JVM health counters read from the hsperfdata of a target without attaching to it: heap
+ * generations, metaspace, collections, safepoints, class loading and threads. Names of the
+ * underlying counters are resolved to offsets once, {@link #sample(long[])} then only reads longs
+ * from the mapped file and converts them, so it does not allocate and polling dozens of JVMs at
+ * 10 Hz costs nothing in the targets. Sizes are in KB and times in milliseconds like jstat.
+ * Young and old are generations 0 and 1 of the serial, parallel and G1 collectors, collector 0
+ * counts young collections and collector 1 full ones, a counter the JVM does not export, like
+ * metaspace before JDK 8 or generations of ZGC, is reported as -1.
+ */
+class PerfCounters {
+    static final int YOUNG_USED = 0;
+    static final int YOUNG_CAPACITY = 1;
+    static final int OLD_USED = 2;
+    static final int OLD_CAPACITY = 3;
+    static final int HEAP_MAX = 4;
+    static final int METASPACE_USED = 5;
+    static final int METASPACE_CAPACITY = 6;
+    static final int YOUNG_GC_COUNT = 7;
+    static final int YOUNG_GC_TIME = 8;
+    static final int FULL_GC_COUNT = 9;
+    static final int FULL_GC_TIME = 10;
+    static final int SAFEPOINT_COUNT = 11;
+    static final int SAFEPOINT_TIME = 12;
+    static final int SAFEPOINT_SYNC_TIME = 13;
+    static final int CLASSES_LOADED = 14;
+    static final int CLASSES_UNLOADED = 15;
+    static final int THREADS_LIVE = 16;
+    static final int THREADS_DAEMON = 17;
+    static final int THREADS_STARTED = 18;
+    static final int UPTIME = 19;
+    static final int COUNT = 20;
+
+    private static final String[] NAMES = {
+        "young_used_kb", "young_capacity_kb", "old_used_kb", "old_capacity_kb", "heap_max_kb",
+        "metaspace_used_kb", "metaspace_capacity_kb", "young_gc_count", "young_gc_ms", "full_gc_count",
+        "full_gc_ms", "safepoint_count", "safepoint_ms", "safepoint_sync_ms", "classes_loaded",
+        "classes_unloaded", "threads_live", "threads_daemon", "threads_started", "uptime_ms"};
+    private static final int PLAIN = 0;
+    private static final int BYTES = 1;
+    private static final int TICKS = 2;
+    private static final int MAX_SPACES = 8;
+
+    private final PerfData data;
+    // Offsets of the counters summed up for every counter, empty if the JVM exports none of them
+    private final int[][] offsets = new int[COUNT][];
+    private final int[] kinds = new int[COUNT];
+    private final long frequency;
+
+    PerfCounters(PerfData data) {
+        this.data = data;
+        this.frequency = data.getLong("sun.os.hrt.frequency", 0);
+        resolve(YOUNG_USED, BYTES, spaces(0, "used"));
+        resolve(YOUNG_CAPACITY, BYTES, "sun.gc.generation.0.capacity");
+        resolve(OLD_USED, BYTES, spaces(1, "used"));
+        resolve(OLD_CAPACITY, BYTES, "sun.gc.generation.1.capacity");
+        resolve(HEAP_MAX, BYTES, "sun.gc.generation.0.maxCapacity", "sun.gc.generation.1.maxCapacity");
+        resolve(METASPACE_USED, BYTES, "sun.gc.metaspace.used");
+        resolve(METASPACE_CAPACITY, BYTES, "sun.gc.metaspace.capacity");
+        resolve(YOUNG_GC_COUNT, PLAIN, "sun.gc.collector.0.invocations");
+        resolve(YOUNG_GC_TIME, TICKS, "sun.gc.collector.0.time");
+        resolve(FULL_GC_COUNT, PLAIN, "sun.gc.collector.1.invocations");
+        resolve(FULL_GC_TIME, TICKS, "sun.gc.collector.1.time");
+        resolve(SAFEPOINT_COUNT, PLAIN, "sun.rt.safepoints");
+        resolve(SAFEPOINT_TIME, TICKS, "sun.rt.safepointTime");
+        resolve(SAFEPOINT_SYNC_TIME, TICKS, "sun.rt.safepointSyncTime");
+        resolve(CLASSES_LOADED, PLAIN, "java.cls.loadedClasses");
+        resolve(CLASSES_UNLOADED, PLAIN, "java.cls.unloadedClasses");
+        resolve(THREADS_LIVE, PLAIN, "java.threads.live");
+        resolve(THREADS_DAEMON, PLAIN, "java.threads.daemon");
+        resolve(THREADS_STARTED, PLAIN, "java.threads.started");
+        resolve(UPTIME, TICKS, "sun.os.hrt.ticks");
+    }
+
+    /**
+     * Counters of a JVM found by {@link VMDiscovery#findPerfData(int)}
+     */
+    static PerfCounters open(int pid) throws IOException {
+        File file = VMDiscovery.findPerfData(pid);
+        if (file == null) {
+            throw new IOException("Unable to find hsperfdata of process " + pid
+                + ", it may not exist or run with -XX:-UsePerfData");
+        }
+        return new PerfCounters(PerfData.open(file));
+    }
+
+    static String name(int counter) {
+        return NAMES[counter];
+    }
+
+    private String[] spaces(int generation, String counter) {
+        String prefix = "sun.gc.generation." + generation + ".space.";
+        String[] names = new String[MAX_SPACES];
+        for (int i = 0; i < MAX_SPACES; i++) {
+            names[i] = prefix + i + "." + counter;
+        }
+        return names;
+    }
+
+    private void resolve(int counter, int kind, String... names) {
+        int[] found = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            int offset = data.offsetOf(name);
+            if (offset >= 0) {
+                found[count++] = offset;
+            }
+        }
+        offsets[counter] = new int[count];
+        System.arraycopy(found, 0, offsets[counter], 0, count);
+        kinds[counter] = kind == TICKS && frequency <= 0 ? PLAIN : kind;
+    }
+
+    /**
+     * Read all counters into {@code values}, indexed by the constants of this class
+     */
+    void sample(long[] values) {
+        for (int i = 0; i < COUNT; i++) {
+            int[] counterOffsets = offsets[i];
+            if (counterOffsets.length == 0) {
+                values[i] = -1;
+                continue;
+            }
+            long value = 0;
+            for (int offset : counterOffsets) {
+                value += data.getLong(offset);
+            }
+            if (kinds[i] == BYTES) {
+                value >>= 10;
+            } else if (kinds[i] == TICKS) {
+                // Multiplying first would overflow after some hundred days of nanosecond ticks
+                value = value / frequency * 1000 + value % frequency * 1000 / frequency;
+            }
+            values[i] = value;
+        }
+    }
+}
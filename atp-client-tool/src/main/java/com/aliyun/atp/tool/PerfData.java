@@ -0,0 +1,198 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Performance counters a HotSpot JVM exports in its hsperfdata file, by default
+ * {@code /tmp/hsperfdata_<user>/<pid>}. The file is mapped read-only, so reading it neither
+ * attaches to the target nor stops it. The file starts with a prologue followed by entries of
+ * a name and a scalar or vector value, strings are byte vectors terminated by zero. Entries are
+ * indexed once when the file is opened, counters of interest are then resolved to their offset
+ * with {@link #offsetOf(String)} and read by {@link #getLong(int)} without allocation, which the
+ * JVM keeps updating in place. See {@link PerfCounters} for typed counters of JVM health.
+ */
+class PerfData {
+    static final String HSPERFDATA_PREFIX = "hsperfdata_";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Always stored big endian, ahead of the byte order of the rest of the file
+    private static final int MAGIC = 0xcafec0c0;
+    private static final int BYTE_ORDER_OFFSET = 4;
+    private static final int ENTRY_OFFSET_OFFSET = 24;
+    private static final int NUM_ENTRIES_OFFSET = 28;
+    private static final int PROLOGUE_SIZE = 32;
+    private static final int ENTRY_HEADER_SIZE = 20;
+    private static final byte TYPE_BYTE = 'B';
+    private static final byte TYPE_LONG = 'J';
+
+    private static final class Entry {
+        final int offset;
+        final byte type;
+        // 0 for scalars
+        final int length;
+
+        Entry(int offset, byte type, int length) {
+            this.offset = offset;
+            this.type = type;
+            this.length = length;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    PerfData(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < PROLOGUE_SIZE || buffer.order(ByteOrder.BIG_ENDIAN).getInt(0) != MAGIC) {
+            throw new IOException("Not a hsperfdata file");
+        }
+        this.buffer = buffer.order(buffer.get(BYTE_ORDER_OFFSET) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        readEntries();
+    }
+
+    static PerfData open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // Mapping stays valid after the file is closed
+            return new PerfData(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    // entry_length, name_offset, vector_length, data_type, flags, data_units, data_variability, data_offset
+    private void readEntries() {
+        int offset = buffer.getInt(ENTRY_OFFSET_OFFSET);
+        int count = buffer.getInt(NUM_ENTRIES_OFFSET);
+        for (int i = 0; i < count && offset >= PROLOGUE_SIZE && offset + ENTRY_HEADER_SIZE <= buffer.capacity(); i++) {
+            int length = buffer.getInt(offset);
+            if (length < ENTRY_HEADER_SIZE || length > buffer.capacity() - offset) {
+                break;
+            }
+            int nameOffset = buffer.getInt(offset + 4);
+            int vectorLength = buffer.getInt(offset + 8);
+            byte type = buffer.get(offset + 12);
+            int dataOffset = buffer.getInt(offset + 16);
+            // Name and value must lie within the entry, a file being written or a corrupted one may
+            // have any values here
+            long dataEnd = (long) dataOffset + (long) typeSize(type) * Math.max(vectorLength, 1);
+            if (nameOffset >= ENTRY_HEADER_SIZE && nameOffset < length && vectorLength >= 0
+                && dataOffset >= ENTRY_HEADER_SIZE && dataEnd <= length) {
+                entries.put(readString(offset + nameOffset, offset + length),
+                    new Entry(offset + dataOffset, type, vectorLength));
+            }
+            offset += length;
+        }
+    }
+
+    // Size of a value of the type in bytes, BasicType of HotSpot as a signature character
+    private static int typeSize(byte type) {
+        switch (type) {
+            case 'J':
+            case 'D':
+                return 8;
+            case 'I':
+            case 'F':
+                return 4;
+            case 'S':
+            case 'C':
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    private String readString(int start, int limit) {
+        int end = start;
+        while (end < limit && buffer.get(end) != 0) {
+            end++;
+        }
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Value of a string counter like "sun.rt.javaCommand", null if there is none
+     */
+    String getString(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null || entry.type != TYPE_BYTE || entry.length == 0) {
+            return null;
+        }
+        return readString(entry.offset, Math.min(entry.offset + entry.length, buffer.capacity()));
+    }
+
+    /**
+     * Value of a long counter, {@code defaultValue} if there is none
+     */
+    long getLong(String name, long defaultValue) {
+        int offset = offsetOf(name);
+        return offset >= 0 ? buffer.getLong(offset) : defaultValue;
+    }
+
+    /**
+     * Offset of a long counter for {@link #getLong(int)}, -1 if there is none
+     */
+    int offsetOf(String name) {
+        Entry entry = entries.get(name);
+        return entry != null && entry.type == TYPE_LONG && entry.length == 0 ? entry.offset : -1;
+    }
+
+    long getLong(int offset) {
+        return buffer.getLong(offset);
+    }
+
+    /**
+     * All entries as "name=value" sorted by name, like jcmd PerfCounter.print
+     */
+    List<String> format() {
+        List<String> lines = new ArrayList<String>(entries.size());
+        for (Map.Entry<String, Entry> entry : new TreeMap<String, Entry>(entries).entrySet()) {
+            Entry e = entry.getValue();
+            String value;
+            if (e.type == TYPE_LONG && e.length == 0) {
+                value = String.valueOf(buffer.getLong(e.offset));
+            } else if (e.type == TYPE_BYTE && e.length > 0) {
+                value = "\"" + getString(entry.getKey()) + "\"";
+            } else {
+                value = "<" + (char) e.type + (e.length > 0 ? "[" + e.length + "]" : "") + ">";
+            }
+            lines.add(entry.getKey() + "=" + value);
+        }
+        return lines;
+    }
+}
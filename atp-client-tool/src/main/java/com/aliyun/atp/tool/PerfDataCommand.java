@@ -0,0 +1,96 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Performance counters of the target read from its hsperfdata file, without attaching to it or
+ * bringing it to a safepoint. All counters are printed like jcmd PerfCounter.print, with
+ * {@code -every} and {@code -for} the typed counters of {@link PerfCounters} are printed as one
+ * row per interval, like jstat.
+ */
+class PerfDataCommand extends Command {
+    PerfDataCommand(String commandName, String description) {
+        super(commandName, description, new CommandOption[]{
+            new CommandOption("-every", "", false, null),
+            new CommandOption("-for", "", false, null),
+        });
+    }
+
+    @Override
+    public boolean requiresAttach() {
+        return false;
+    }
+
+    @Override
+    protected void execute(HotSpotVM vm, String[] args) throws Exception {
+        int pid = Integer.parseInt(args[0]);
+        CommandOption every = getOption("-every");
+        CommandOption duration = getOption("-for");
+        if (every.isSpecified() != duration.isSpecified()) {
+            throw new Exception("Options -every and -for must be specified together");
+        }
+        PrintStream out = output();
+        if (!every.isSpecified()) {
+            File file = VMDiscovery.findPerfData(pid);
+            if (file == null) {
+                throw new Exception("Unable to find hsperfdata of process " + pid
+                    + ", it may not exist or run with -XX:-UsePerfData");
+            }
+            for (String line : PerfData.open(file).format()) {
+                out.println(line);
+            }
+            out.flush();
+            return;
+        }
+
+        long interval = parseDuration("-every", every.getValue());
+        long end = System.currentTimeMillis() + parseDuration("-for", duration.getValue());
+        PerfCounters counters = PerfCounters.open(pid);
+        long[] values = new long[PerfCounters.COUNT];
+        StringBuilder row = new StringBuilder();
+        for (int i = 0; i < PerfCounters.COUNT; i++) {
+            row.append(i > 0 ? " " : "").append(PerfCounters.name(i));
+        }
+        out.println(row);
+        for (long next = System.currentTimeMillis(); next <= end; next += interval) {
+            long now = System.currentTimeMillis();
+            if (next > now) {
+                Thread.sleep(next - now);
+            }
+            counters.sample(values);
+            row.setLength(0);
+            for (int i = 0; i < PerfCounters.COUNT; i++) {
+                String value = String.valueOf(values[i]);
+                for (int pad = PerfCounters.name(i).length() - value.length(); pad > 0; pad--) {
+                    row.append(' ');
+                }
+                row.append(i > 0 ? " " : "").append(value);
+            }
+            out.println(row);
+            out.flush();
+        }
+    }
+}
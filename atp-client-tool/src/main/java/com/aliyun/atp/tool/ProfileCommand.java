@@ -0,0 +1,259 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sampling profiler built on repeated thread dumps of one attach session, for JVMs where no
+ * native profiler can be loaded. Every dump is parsed by the same {@link ThreadDump}, so frames
+ * and stacks are interned once for the whole run and a sample only increments the count of its
+ * stack id. Samples are taken at a fixed rate, a dump that takes longer than the interval skips
+ * the samples it missed instead of catching up in a burst. Only runnable threads are sampled by
+ * default, which approximates where CPU time goes, {@code -state=all} includes waiting threads
+ * for a wall clock view. At the end the collapsed stacks are written to {@code -file} for flame
+ * graph tools and the call tree of hot methods is printed. Every thread dump is a safepoint of
+ * the target, which is why the rate is limited to {@value #MAX_HZ} per second, and like any
+ * safepoint based profiler it attributes time to the nearest safepoint poll, so code inlined
+ * into a hot loop shows up as the method containing the loop.
+ */
+class ProfileCommand extends Command {
+    private static final String VM_OPERATION_THREAD_DUMP = "threaddump";
+    private static final String STATE_RUNNABLE = "runnable";
+    private static final String STATE_ALL = "all";
+    private static final int MAX_HZ = 100;
+    private static final int TOP_METHODS = 20;
+    // Call tree nodes below this share of samples are not printed
+    private static final double TREE_THRESHOLD_PERCENT = 1.0;
+
+    ProfileCommand(String commandName, String description) {
+        super(commandName, description, new CommandOption[]{
+            new CommandOption("-for", "", true, null),
+            new CommandOption("-file", "", true, null),
+            new CommandOption("-hz", "10", false, null),
+            new CommandOption("-state", STATE_RUNNABLE, false, new String[]{STATE_RUNNABLE, STATE_ALL}),
+        });
+    }
+
+    @Override
+    protected void execute(HotSpotVM vm, String[] args) throws Exception {
+        int hz;
+        try {
+            hz = Integer.parseInt(getOption("-hz").getValue());
+        } catch (NumberFormatException e) {
+            hz = -1;
+        }
+        if (hz < 1 || hz > MAX_HZ) {
+            throw new Exception("Option -hz expects a number between 1 and " + MAX_HZ);
+        }
+        long duration = parseDuration("-for", getOption("-for").getValue());
+        boolean runnableOnly = getOption("-state").getValue().equals(STATE_RUNNABLE);
+
+        ThreadDump dump = new ThreadDump();
+        long[] counts = new long[64];
+        long interval = 1000 / hz;
+        int samples = 0;
+        long start = System.currentTimeMillis();
+        for (long next = start; next < start + duration; next += interval) {
+            long now = System.currentTimeMillis();
+            if (next > now) {
+                Thread.sleep(next - now);
+            } else if (next < now - interval) {
+                next = now;
+            }
+            dump.reset();
+            OutputStream oldOut = HotSpotVM.redirectOutput(dump);
+            try {
+                vm.execute(VM_OPERATION_THREAD_DUMP, "");
+            } finally {
+                HotSpotVM.redirectOutput(oldOut);
+            }
+            dump.close();
+            if (counts.length < dump.stackCount()) {
+                counts = Arrays.copyOf(counts, Math.max(counts.length * 2, dump.stackCount()));
+            }
+            for (ThreadDump.ThreadInfo thread : dump.threads()) {
+                if (!runnableOnly || thread.state.equals("RUNNABLE")) {
+                    counts[thread.stack]++;
+                }
+            }
+            samples++;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(getOption("-file").getValue()), "UTF-8"));
+        try {
+            for (Map.Entry<String, Long> entry : dump.collapse(counts).entrySet()) {
+                writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        PrintStream out = output();
+        out.println(String.format("%d samples in %.1f s, %d distinct stacks, collapsed stacks written to %s",
+            samples, elapsed / 1000.0, dump.stackCount(), getOption("-file").getValue()));
+        new CallTree(dump, counts).print(out);
+        out.flush();
+    }
+
+    /**
+     * Stacks merged into a tree of methods, node 0 is the root. Children are found by a map
+     * keyed by parent and method id.
+     */
+    private static final class CallTree {
+        private final Map<String, Integer> methodIds = new HashMap<String, Integer>();
+        private final List<String> methods = new ArrayList<String>();
+        private final Map<Long, Integer> children = new HashMap<Long, Integer>();
+        private int[] parent = new int[64];
+        private int[] method = new int[64];
+        private long[] total = new long[64];
+        private long[] self = new long[64];
+        private int size = 1;
+
+        CallTree(ThreadDump dump, long[] counts) {
+            parent[0] = -1;
+            method[0] = -1;
+            for (int stack = 0; stack < counts.length && stack < dump.stackCount(); stack++) {
+                int[] frames = dump.stack(stack);
+                if (counts[stack] == 0 || frames.length == 0) {
+                    continue;
+                }
+                int node = 0;
+                total[0] += counts[stack];
+                for (int i = frames.length - 1; i >= 0; i--) {
+                    node = child(node, methodId(dump.method(frames[i])));
+                    total[node] += counts[stack];
+                }
+                self[node] += counts[stack];
+            }
+        }
+
+        private int methodId(String name) {
+            Integer id = methodIds.get(name);
+            if (id == null) {
+                id = methods.size();
+                methods.add(name);
+                methodIds.put(name, id);
+            }
+            return id;
+        }
+
+        private int child(int node, int methodId) {
+            Long key = ((long) node << 32) | methodId;
+            Integer child = children.get(key);
+            if (child == null) {
+                if (size == parent.length) {
+                    parent = Arrays.copyOf(parent, size * 2);
+                    method = Arrays.copyOf(method, size * 2);
+                    total = Arrays.copyOf(total, size * 2);
+                    self = Arrays.copyOf(self, size * 2);
+                }
+                child = size++;
+                parent[child] = node;
+                method[child] = methodId;
+                children.put(key, child);
+            }
+            return child;
+        }
+
+        private double percent(long count) {
+            return total[0] > 0 ? count * 100.0 / total[0] : 0;
+        }
+
+        void print(PrintStream out) {
+            out.println(total[0] + " thread samples");
+            if (total[0] == 0) {
+                return;
+            }
+            // Self samples of every method, wherever it is called from
+            final long[] methodSelf = new long[methods.size()];
+            for (int node = 1; node < size; node++) {
+                methodSelf[method[node]] += self[node];
+            }
+            Integer[] order = new Integer[methods.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return methodSelf[a] != methodSelf[b] ? (methodSelf[a] < methodSelf[b] ? 1 : -1)
+                        : methods.get(a).compareTo(methods.get(b));
+                }
+            });
+            out.println();
+            out.println("Top methods by self samples:");
+            for (int i = 0; i < order.length && i < TOP_METHODS && methodSelf[order[i]] > 0; i++) {
+                out.println(String.format("%7.2f%% %10d  %s", percent(methodSelf[order[i]]), methodSelf[order[i]],
+                    methods.get(order[i])));
+            }
+
+            List<List<Integer>> childLists = new ArrayList<List<Integer>>(size);
+            for (int node = 0; node < size; node++) {
+                childLists.add(new ArrayList<Integer>(0));
+            }
+            for (int node = 1; node < size; node++) {
+                childLists.get(parent[node]).add(node);
+            }
+            out.println();
+            out.println("Call tree, total and self samples, nodes under " + TREE_THRESHOLD_PERCENT + "% are omitted:");
+            printNode(out, childLists, 0, 0);
+        }
+
+        private void printNode(PrintStream out, List<List<Integer>> childLists, int node, int depth) {
+            List<Integer> nodes = childLists.get(node);
+            Collections.sort(nodes, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return total[a] != total[b] ? (total[a] < total[b] ? 1 : -1) : a.compareTo(b);
+                }
+            });
+            for (int child : nodes) {
+                if (percent(total[child]) < TREE_THRESHOLD_PERCENT) {
+                    break;
+                }
+                StringBuilder indent = new StringBuilder();
+                for (int i = 0; i < depth; i++) {
+                    indent.append("  ");
+                }
+                out.println(String.format("%7.2f%% %7.2f%%  %s%s", percent(total[child]), percent(self[child]),
+                    indent, methods.get(method[child])));
+                printNode(out, childLists, child, depth + 1);
+            }
+        }
+    }
+}
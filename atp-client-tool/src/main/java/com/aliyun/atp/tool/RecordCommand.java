@@ -0,0 +1,263 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Continuous recording of cheap health signals of a JVM, to look back at what led up to an
+ * incident. Counters of {@link PerfCounters} are read from the hsperfdata of the target, resident
+ * memory and CPU time of the process from {@code /proc}, so the target is never attached to and
+ * the recorder reads only a few mapped longs and two small files per sample. Samples go into a
+ * {@link Recording} ring of {@code -size} bytes, which keeps the latest days at a few bytes per
+ * sample. Full blocks are written as they fill up and the block being filled every
+ * {@value #FLUSH_INTERVAL_MS} ms and on exit, so an abruptly ended recording loses at most that
+ * much. Recording stops after {@code -for} or when the target exits, {@code read <file>} prints a
+ * recording as CSV or JSON.
+ */
+class RecordCommand extends Command {
+    private static final long FLUSH_INTERVAL_MS = 30 * 1000L;
+    private static final String TIMESTAMP = "timestamp_ms";
+    private static final String RSS = "rss_kb";
+    private static final String CPU = "cpu_ms";
+
+    RecordCommand(String commandName, String description) {
+        super(commandName, description, new CommandOption[]{
+            new CommandOption("-for", "", true, null),
+            new CommandOption("-file", "", true, null),
+            new CommandOption("-every", "1s", false, null),
+            new CommandOption("-size", "8m", false, null),
+        });
+    }
+
+    @Override
+    public boolean requiresAttach() {
+        return false;
+    }
+
+    /**
+     * Bytes of a size like 512k, 8m or 1g
+     */
+    private static long parseSize(String option, String value) throws Exception {
+        long unit = 1;
+        String number = value.toLowerCase();
+        char c = number.length() > 0 ? number.charAt(number.length() - 1) : ' ';
+        if (c == 'k' || c == 'm' || c == 'g') {
+            unit = c == 'k' ? 1024 : c == 'm' ? 1024 * 1024 : 1024 * 1024 * 1024;
+            number = number.substring(0, number.length() - 1);
+        }
+        try {
+            long size = Long.parseLong(number) * unit;
+            if (size > 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new Exception("Option " + option + " expects a size like 512k, 8m or 1g but got " + value);
+    }
+
+    /**
+     * Reads resident memory and CPU time of a process from files kept open across samples
+     */
+    private static final class ProcessStats {
+        private static final byte[] VM_RSS = "\nVmRSS:".getBytes();
+        private final RandomAccessFile stat;
+        private final RandomAccessFile status;
+        private final byte[] buf = new byte[8192];
+
+        ProcessStats(int pid) throws IOException {
+            stat = new RandomAccessFile("/proc/" + pid + "/stat", "r");
+            status = new RandomAccessFile("/proc/" + pid + "/status", "r");
+        }
+
+        private int read(RandomAccessFile file) throws IOException {
+            file.seek(0);
+            int length = 0;
+            int n;
+            while (length < buf.length && (n = file.read(buf, length, buf.length - length)) > 0) {
+                length += n;
+            }
+            if (length == 0) {
+                throw new IOException("Process has exited");
+            }
+            return length;
+        }
+
+        private long parseNumber(int p, int length) {
+            long value = 0;
+            while (p < length && (buf[p] == ' ' || buf[p] == '\t')) {
+                p++;
+            }
+            while (p < length && buf[p] >= '0' && buf[p] <= '9') {
+                value = value * 10 + buf[p++] - '0';
+            }
+            return value;
+        }
+
+        /**
+         * utime plus stime in milliseconds, fields 14 and 15 of stat after the parenthesized name
+         */
+        long cpuMillis() throws IOException {
+            int length = read(stat);
+            int p = length - 1;
+            while (p > 0 && buf[p] != ')') {
+                p--;
+            }
+            long ticks = 0;
+            // state is field 3, counted as the first field after the name
+            for (int field = 3; p < length && field <= 15; p++) {
+                if (buf[p] == ' ') {
+                    if (field == 14 || field == 15) {
+                        ticks += parseNumber(p + 1, length);
+                    }
+                    field++;
+                }
+            }
+            return ticks * 1000 / HotThreadsCommand.CLOCK_TICKS_PER_SECOND;
+        }
+
+        long residentKB() throws IOException {
+            int length = read(status);
+            for (int p = 0; p + VM_RSS.length <= length; p++) {
+                int i = 0;
+                while (i < VM_RSS.length && buf[p + i] == VM_RSS[i]) {
+                    i++;
+                }
+                if (i == VM_RSS.length) {
+                    return parseNumber(p + i, length);
+                }
+            }
+            return -1;
+        }
+
+        void close() throws IOException {
+            stat.close();
+            status.close();
+        }
+    }
+
+    @Override
+    protected void execute(HotSpotVM vm, String[] args) throws Exception {
+        int pid = Integer.parseInt(args[0]);
+        long duration = parseDuration("-for", getOption("-for").getValue());
+        long interval = parseDuration("-every", getOption("-every").getValue());
+        long size = parseSize("-size", getOption("-size").getValue());
+        int blockCount = (int) Math.min(Integer.MAX_VALUE, size / Recording.BLOCK_SIZE);
+        if (blockCount < 2) {
+            throw new Exception("Option -size must be at least " + (2 * Recording.BLOCK_SIZE / 1024) + "k");
+        }
+        File path = new File(getOption("-file").getValue());
+
+        PerfCounters counters = PerfCounters.open(pid);
+        ProcessStats process = null;
+        if (new File("/proc/" + pid).isDirectory()) {
+            process = new ProcessStats(pid);
+        }
+        int fields = PerfCounters.COUNT + 3;
+        String[] names = new String[fields];
+        boolean[] clocks = new boolean[fields];
+        names[0] = TIMESTAMP;
+        clocks[0] = true;
+        for (int i = 0; i < PerfCounters.COUNT; i++) {
+            names[i + 1] = PerfCounters.name(i);
+        }
+        clocks[PerfCounters.UPTIME + 1] = true;
+        names[fields - 2] = RSS;
+        names[fields - 1] = CPU;
+
+        final Recording.Writer writer = new Recording.Writer(path, pid, interval, names, clocks, blockCount);
+        // Keep what was sampled when the recorder is stopped by a signal
+        Thread hook = new Thread("ATP record flush") {
+            @Override
+            public void run() {
+                try {
+                    writer.flush();
+                } catch (IOException e) {
+                    // Nothing to do at exit
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        PrintStream out = output();
+        out.println(String.format("Recording process %d every %d ms for %d s into %s, %d blocks of %d KB",
+            pid, interval, duration / 1000, path, blockCount, Recording.BLOCK_SIZE / 1024));
+        out.flush();
+        long[] counterValues = new long[PerfCounters.COUNT];
+        long[] values = new long[fields];
+        long samples = 0;
+        String stopped = "time is up";
+        try {
+            long start = System.currentTimeMillis();
+            long lastFlush = start;
+            for (long next = start; next < start + duration; next += interval) {
+                long now = System.currentTimeMillis();
+                if (next > now) {
+                    Thread.sleep(next - now);
+                    now = System.currentTimeMillis();
+                } else if (next < now - interval) {
+                    // e.g. the host was suspended, skip missed samples
+                    next = now;
+                }
+                counters.sample(counterValues);
+                values[0] = now;
+                System.arraycopy(counterValues, 0, values, 1, PerfCounters.COUNT);
+                values[fields - 2] = -1;
+                values[fields - 1] = -1;
+                if (process != null) {
+                    try {
+                        values[fields - 2] = process.residentKB();
+                        values[fields - 1] = process.cpuMillis();
+                    } catch (IOException e) {
+                        stopped = "process has exited";
+                        break;
+                    }
+                }
+                writer.append(values);
+                samples++;
+                if (now - lastFlush >= FLUSH_INTERVAL_MS) {
+                    writer.flush();
+                    lastFlush = now;
+                }
+            }
+        } finally {
+            writer.close();
+            if (process != null) {
+                process.close();
+            }
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // Already shutting down
+            }
+        }
+        out.println(String.format("Stopped, %s: %d samples encoded in %d bytes, %.1f bytes per sample, %d blocks",
+            stopped, samples, writer.encodedBytes(), samples > 0 ? (double) writer.encodedBytes() / samples : 0,
+            writer.blocks()));
+        out.flush();
+    }
+}
@@ -0,0 +1,361 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * File of a recording made by {@link RecordCommand}, a ring of fixed-size blocks after a header
+ * block that holds the field names. Once the ring is full the oldest block is overwritten, so
+ * the file never grows and always holds the latest samples. A block starts with its sequence
+ * number, 0 if it was never written, the number of samples and the payload length. The first
+ * sample of a block is stored as zigzag varints of all fields, so every block decodes on its own,
+ * each following sample as a varint bit mask of the fields that differ from their prediction and
+ * zigzag varints of the differences. The prediction is the previous value, plus the previous
+ * delta for clocks, so a JVM at rest costs a few bytes per sample. Blocks are written whole when
+ * full, the block being filled is rewritten in place by {@link Writer#flush()}.
+ */
+class Recording {
+    static final String READ_COMMAND = "read";
+    static final String FORMAT_CSV = "csv";
+    static final String FORMAT_JSON = "json";
+    static final int BLOCK_SIZE = 4096;
+    // "ATPREC01"
+    private static final long MAGIC = 0x4154505245433031L;
+    private static final int VERSION = 1;
+    // sequence, samples, payload length
+    private static final int BLOCK_HEADER_SIZE = 16;
+    private static final int MAX_FIELDS = 64;
+
+    /**
+     * Appends samples to the ring, methods are synchronized so a shutdown hook can flush it
+     */
+    static final class Writer {
+        private final RandomAccessFile file;
+        private final int blockCount;
+        private final boolean[] clocks;
+        private final long[] previous;
+        private final long[] deltas;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        // One sample is encoded here first to see whether it still fits into the block
+        private final byte[] sample;
+        private long sequence = 1;
+        private int samples;
+        private int position = BLOCK_HEADER_SIZE;
+        private boolean dirty;
+        private long encodedBytes;
+
+        Writer(File path, int pid, long interval, String[] names, boolean[] clocks, int blockCount)
+            throws IOException {
+            if (names.length > MAX_FIELDS) {
+                throw new IllegalArgumentException("At most " + MAX_FIELDS + " fields");
+            }
+            this.blockCount = blockCount;
+            this.clocks = clocks;
+            this.previous = new long[names.length];
+            this.deltas = new long[names.length];
+            // Mask and 10 bytes for every field at most
+            this.sample = new byte[10 + 10 * names.length];
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeLong(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(BLOCK_SIZE);
+            header.writeInt(blockCount);
+            header.writeInt(pid);
+            header.writeLong(interval);
+            header.writeInt(names.length);
+            for (int i = 0; i < names.length; i++) {
+                header.writeUTF(names[i]);
+                header.writeBoolean(clocks[i]);
+            }
+            if (bytes.size() > BLOCK_SIZE) {
+                throw new IllegalArgumentException("Field names do not fit into the header block");
+            }
+            file = new RandomAccessFile(path, "rw");
+            // Blocks of an older recording in the same file must not be mixed into this one
+            file.setLength(0);
+            file.setLength((long) BLOCK_SIZE * (blockCount + 1));
+            file.write(bytes.toByteArray());
+        }
+
+        synchronized void append(long[] values) throws IOException {
+            int length = encode(values, samples == 0);
+            if (position + length > BLOCK_SIZE) {
+                writeBlock();
+                sequence++;
+                samples = 0;
+                position = BLOCK_HEADER_SIZE;
+                length = encode(values, true);
+            }
+            System.arraycopy(sample, 0, block, position, length);
+            position += length;
+            encodedBytes += length;
+            samples++;
+            dirty = true;
+        }
+
+        private int encode(long[] values, boolean full) {
+            int length = 0;
+            if (full) {
+                for (int i = 0; i < values.length; i++) {
+                    length = writeVarint(sample, length, zigzag(values[i]));
+                    deltas[i] = 0;
+                    previous[i] = values[i];
+                }
+                return length;
+            }
+            long mask = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != previous[i] + (clocks[i] ? deltas[i] : 0)) {
+                    mask |= 1L << i;
+                }
+            }
+            length = writeVarint(sample, length, mask);
+            for (int i = 0; i < values.length; i++) {
+                if ((mask & (1L << i)) != 0) {
+                    length = writeVarint(sample, length, zigzag(values[i] - previous[i] - (clocks[i] ? deltas[i] : 0)));
+                }
+                deltas[i] = values[i] - previous[i];
+                previous[i] = values[i];
+            }
+            return length;
+        }
+
+        private void writeBlock() throws IOException {
+            writeInt(block, 0, (int) (sequence >>> 32));
+            writeInt(block, 4, (int) sequence);
+            writeInt(block, 8, samples);
+            writeInt(block, 12, position - BLOCK_HEADER_SIZE);
+            file.seek((long) BLOCK_SIZE * (1 + (sequence - 1) % blockCount));
+            file.write(block, 0, BLOCK_SIZE);
+            dirty = false;
+        }
+
+        /**
+         * Write the samples of the block being filled, they are rewritten with later samples
+         */
+        synchronized void flush() throws IOException {
+            if (dirty) {
+                writeBlock();
+            }
+        }
+
+        synchronized void close() throws IOException {
+            flush();
+            file.close();
+        }
+
+        /**
+         * Bytes of all samples appended so far, including those in overwritten blocks
+         */
+        synchronized long encodedBytes() {
+            return encodedBytes;
+        }
+
+        /**
+         * Number of blocks started so far, more than fit into the ring once it wrapped around
+         */
+        synchronized long blocks() {
+            return sequence;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int writeVarint(byte[] buf, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buf[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[position++] = (byte) value;
+        return position;
+    }
+
+    private static void writeInt(byte[] buf, int position, int value) {
+        buf[position] = (byte) (value >>> 24);
+        buf[position + 1] = (byte) (value >>> 16);
+        buf[position + 2] = (byte) (value >>> 8);
+        buf[position + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buf, int position) {
+        return (buf[position] & 0xff) << 24 | (buf[position + 1] & 0xff) << 16
+            | (buf[position + 2] & 0xff) << 8 | (buf[position + 3] & 0xff);
+    }
+
+    /**
+     * Decodes a block, a block torn by a concurrent write of the recorder ends early
+     */
+    private static final class BlockDecoder {
+        private final byte[] block;
+        private final int end;
+        private int position = BLOCK_HEADER_SIZE;
+
+        BlockDecoder(byte[] block) {
+            this.block = block;
+            this.end = Math.min(BLOCK_SIZE, BLOCK_HEADER_SIZE + Math.max(0, readInt(block, 12)));
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= end) {
+                    throw new IOException("Truncated block");
+                }
+                byte b = block[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+
+    /**
+     * Print all samples of a recording from the oldest to the latest as CSV or JSON
+     */
+    static void print(File path, String format, PrintStream out) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            byte[] block = new byte[BLOCK_SIZE];
+            file.readFully(block);
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(block));
+            if (header.readLong() != MAGIC) {
+                throw new IOException(path + " is not a recording");
+            }
+            int version = header.readInt();
+            if (version != VERSION || header.readInt() != BLOCK_SIZE) {
+                throw new IOException("Unsupported recording version " + version);
+            }
+            int blockCount = header.readInt();
+            int pid = header.readInt();
+            long interval = header.readLong();
+            int fieldCount = header.readInt();
+            String[] names = new String[fieldCount];
+            boolean[] clocks = new boolean[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                names[i] = header.readUTF();
+                clocks[i] = header.readBoolean();
+            }
+
+            // Blocks in the order they were written
+            List<long[]> order = new ArrayList<long[]>();
+            for (int i = 0; i < blockCount; i++) {
+                file.seek((long) BLOCK_SIZE * (i + 1));
+                file.readFully(block, 0, 8);
+                long sequence = (long) readInt(block, 0) << 32 | (readInt(block, 4) & 0xffffffffL);
+                if (sequence > 0) {
+                    order.add(new long[]{sequence, i});
+                }
+            }
+            Collections.sort(order, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] a, long[] b) {
+                    return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+                }
+            });
+
+            boolean json = format.equals(FORMAT_JSON);
+            StringBuilder row = new StringBuilder();
+            if (json) {
+                out.println("{\"pid\": " + pid + ", \"interval_ms\": " + interval + ", \"samples\": [");
+            } else {
+                for (int i = 0; i < fieldCount; i++) {
+                    row.append(i > 0 ? "," : "").append(names[i]);
+                }
+                out.println(row);
+            }
+            long[] values = new long[fieldCount];
+            long[] deltas = new long[fieldCount];
+            boolean first = true;
+            for (long[] entry : order) {
+                file.seek((long) BLOCK_SIZE * (entry[1] + 1));
+                file.readFully(block);
+                int samples = readInt(block, 8);
+                BlockDecoder decoder = new BlockDecoder(block);
+                try {
+                    for (int s = 0; s < samples; s++) {
+                        if (s == 0) {
+                            for (int i = 0; i < fieldCount; i++) {
+                                values[i] = unzigzag(decoder.readVarint());
+                                deltas[i] = 0;
+                            }
+                        } else {
+                            long mask = decoder.readVarint();
+                            for (int i = 0; i < fieldCount; i++) {
+                                long value = values[i] + (clocks[i] ? deltas[i] : 0);
+                                if ((mask & (1L << i)) != 0) {
+                                    value += unzigzag(decoder.readVarint());
+                                }
+                                deltas[i] = value - values[i];
+                                values[i] = value;
+                            }
+                        }
+                        row.setLength(0);
+                        if (json) {
+                            row.append(first ? "  {" : ",\n  {");
+                            for (int i = 0; i < fieldCount; i++) {
+                                row.append(i > 0 ? ", \"" : "\"").append(names[i]).append("\": ").append(values[i]);
+                            }
+                            out.print(row.append('}'));
+                        } else {
+                            for (int i = 0; i < fieldCount; i++) {
+                                row.append(i > 0 ? "," : "").append(values[i]);
+                            }
+                            out.println(row);
+                        }
+                        first = false;
+                    }
+                } catch (IOException e) {
+                    // Block was being rewritten while it was read, its remaining samples are lost
+                }
+            }
+            if (json) {
+                out.println(first ? "]}" : "\n]}");
+            }
+            out.flush();
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Thread dump parsed from the text printed by threaddump or jstack. Frames are interned by their
+ * bytes in a {@link NameTable} and stacks, as arrays of frame indexes with the innermost frame
+ * first, are interned as well, so threads with identical stacks share one of them and a dump of
+ * many similar threads takes little memory. Locks a thread waits on while in {@code Object.wait}
+ * are printed as locked too, they are not counted as held since the monitor is released. The
+ * deadlock report at the end of a dump repeats thread names and stacks, text that does not
+ * belong to a thread is skipped. After {@link #reset()} the same instance parses the next dump
+ * of a series, frame and stack indexes stay valid across all of them.
+ */
+class ThreadDump extends LineParser {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String STATE = "java.lang.Thread.State: ";
+    private static final String[] WAIT_KINDS = {
+        "waiting to lock", "waiting on", "parking to wait for", "waiting to re-lock in wait()"};
+
+    static final class Lock {
+        final long address;
+        final String type;
+
+        Lock(long address, String type) {
+            this.address = address;
+            this.type = type;
+        }
+    }
+
+    static final class ThreadInfo {
+        String name;
+        boolean daemon;
+        // Native thread id, -1 if unknown
+        long nid = -1;
+        // Name of Thread.State, empty for VM internal threads
+        String state = "";
+        int stack;
+        List<Lock> held = Collections.emptyList();
+        Lock waiting;
+        // How the thread waits for the lock, one of WAIT_KINDS
+        String waitKind;
+    }
+
+    private static final class StackKey {
+        final int[] frames;
+        final int hash;
+
+        StackKey(int[] frames) {
+            this.frames = frames;
+            this.hash = Arrays.hashCode(frames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StackKey && Arrays.equals(frames, ((StackKey) o).frames);
+        }
+    }
+
+    private final NameTable frames = new NameTable();
+    private final NameTable types = new NameTable();
+    private final NameTable states = new NameTable();
+    private final List<int[]> stacks = new ArrayList<int[]>();
+    private final Map<StackKey, Integer> stackIds = new HashMap<StackKey, Integer>();
+    private final List<ThreadInfo> threads = new ArrayList<ThreadInfo>();
+    private String[] methods = new String[0];
+    private ThreadInfo current;
+    private int[] currentFrames = new int[64];
+    private int currentFrameCount;
+
+    @Override
+    protected void parseLine() {
+        if (lineLength == 0) {
+            return;
+        }
+        if (line[0] == '"') {
+            finishThread();
+            parseHeader();
+            return;
+        }
+        if (line[0] != ' ' && line[0] != '\t') {
+            finishThread();
+            return;
+        }
+        if (current == null) {
+            return;
+        }
+        int p = skipSpaces(0);
+        if (startsWith(p, "at ")) {
+            if (currentFrameCount == currentFrames.length) {
+                currentFrames = Arrays.copyOf(currentFrames, currentFrameCount * 2);
+            }
+            currentFrames[currentFrameCount++] = frames.find(line, p + 3, lineLength, true);
+        } else if (startsWith(p, STATE)) {
+            int start = p + STATE.length();
+            int end = start;
+            while (end < lineLength && line[end] != ' ') {
+                end++;
+            }
+            current.state = states.name(states.find(line, start, end, true));
+        } else if (startsWith(p, "- ")) {
+            parseLock(p + 2);
+        }
+    }
+
+    // e.g. "main" #1 prio=5 os_prio=0 cpu=73.08ms elapsed=597.90s tid=0x00007f14840262d0 nid=0x1ece waiting on condition
+    private void parseHeader() {
+        int end = lineLength - 1;
+        while (end > 0 && line[end] != '"') {
+            end--;
+        }
+        int nid = indexOf(" nid=", end);
+        if (end == 0 || nid < 0) {
+            // e.g. "Thread-1": in the deadlock report
+            return;
+        }
+        current = new ThreadInfo();
+        current.name = new String(line, 1, end - 1, UTF8);
+        current.daemon = indexOf(" daemon ", end) >= 0;
+        current.nid = parseHex(nid + " nid=".length());
+    }
+
+    // e.g. "- locked <0x00000000c155caf8> (a java.lang.ref.ReferenceQueue$Lock)"
+    private void parseLock(int p) {
+        int open = indexOf("<0x", p);
+        if (open < 0) {
+            // "- None" of ownable synchronizers, or an eliminated lock
+            return;
+        }
+        long address = parseHex(open + 1);
+        String type = "";
+        int a = indexOf("(a ", open);
+        if (a >= 0) {
+            int end = a + 3;
+            while (end < lineLength && line[end] != ')') {
+                end++;
+            }
+            type = types.name(types.find(line, a + 3, end, true));
+        }
+        for (String kind : WAIT_KINDS) {
+            if (startsWith(p, kind)) {
+                current.waiting = new Lock(address, type);
+                current.waitKind = kind;
+                return;
+            }
+        }
+        if (current.waiting != null && current.waiting.address == address) {
+            // Monitor released by Object.wait
+            return;
+        }
+        if (current.held.isEmpty()) {
+            current.held = new ArrayList<Lock>(2);
+        }
+        // "- locked <...>" and entries of "Locked ownable synchronizers:"
+        current.held.add(new Lock(address, type));
+    }
+
+    private void finishThread() {
+        if (current != null) {
+            StackKey key = new StackKey(Arrays.copyOf(currentFrames, currentFrameCount));
+            Integer id = stackIds.get(key);
+            if (id == null) {
+                id = stacks.size();
+                stacks.add(key.frames);
+                stackIds.put(key, id);
+            }
+            current.stack = id;
+            threads.add(current);
+        }
+        current = null;
+        currentFrameCount = 0;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        finishThread();
+    }
+
+    /**
+     * Forget the threads of the last dump, but keep interned frames and stacks
+     */
+    void reset() {
+        threads.clear();
+        current = null;
+        currentFrameCount = 0;
+        lineLength = 0;
+    }
+
+    List<ThreadInfo> threads() {
+        return threads;
+    }
+
+    int stackCount() {
+        return stacks.size();
+    }
+
+    /**
+     * Frame indexes of the stack, the innermost frame first
+     */
+    int[] stack(int id) {
+        return stacks.get(id);
+    }
+
+    /**
+     * Frame as printed, e.g. "java.lang.Thread.sleep(java.base@17.0.9/Native Method)"
+     */
+    String frame(int id) {
+        return frames.name(id);
+    }
+
+    /**
+     * Class and method name of the frame without its location, e.g. "java.lang.Thread.sleep"
+     */
+    String method(int id) {
+        if (methods.length < frames.size()) {
+            methods = Arrays.copyOf(methods, frames.size());
+        }
+        if (methods[id] == null) {
+            String frame = frames.name(id);
+            int paren = frame.indexOf('(');
+            methods[id] = paren > 0 ? frame.substring(0, paren) : frame;
+        }
+        return methods[id];
+    }
+
+    /**
+     * Collapsed stacks for flame graph tools, frames from the outermost to the innermost method
+     * separated by semicolons, with the sum of {@code counts} indexed by stack. Stacks differing
+     * only in line numbers collapse into one, stacks without frames are left out.
+     */
+    Map<String, Long> collapse(long[] counts) {
+        Map<String, Long> lines = new TreeMap<String, Long>();
+        StringBuilder sb = new StringBuilder();
+        for (int stack = 0; stack < counts.length && stack < stacks.size(); stack++) {
+            int[] frames = stacks.get(stack);
+            if (frames.length == 0 || counts[stack] == 0) {
+                continue;
+            }
+            sb.setLength(0);
+            for (int i = frames.length - 1; i >= 0; i--) {
+                sb.append(method(frames[i])).append(i > 0 ? ";" : "");
+            }
+            String key = sb.toString();
+            Long count = lines.get(key);
+            lines.put(key, (count != null ? count : 0) + counts[stack]);
+        }
+        return lines;
+    }
+}
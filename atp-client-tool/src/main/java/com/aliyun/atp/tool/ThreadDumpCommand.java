@@ -22,20 +22,47 @@
  */
 package com.aliyun.atp.tool;
 
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Print the thread dump of the target. {@code -format=summary} parses it into a {@link ThreadDump}
+ * and groups threads with the same state and identical stack, largest groups first.
+ * {@code -format=collapsed} prints one line per distinct stack with frames from the outermost
+ * to the innermost separated by semicolons and the number of threads, the input format of
+ * flame graph tools like flamegraph.pl. {@code -format=locks} reports deadlocks and contended
+ * locks with their owners, see {@link LockAnalyzer}, with {@code -every} and {@code -for} it
+ * analyzes a series of dumps taken in one attach session.
+ */
 class ThreadDumpCommand extends Command {
     private static final String VM_OPERATION_THREAD_DUMP = "threaddump";
+    private static final String FORMAT_SUMMARY = "summary";
+    private static final String FORMAT_COLLAPSED = "collapsed";
+    private static final String FORMAT_LOCKS = "locks";
+    private static final int EXAMPLE_NAMES = 3;
 
     ThreadDumpCommand(String commandName, String description) {
         super(commandName, description, new CommandOption[]{
             new CommandOption("-lock", "", false, null),
             new CommandOption("-extend", "", false, null),
+            new CommandOption("-format", "", false, new String[]{FORMAT_SUMMARY, FORMAT_COLLAPSED, FORMAT_LOCKS}),
+            new CommandOption("-every", "", false, null),
+            new CommandOption("-for", "", false, null),
         });
     }
 
     @Override
     protected void execute(HotSpotVM vm, String[] args) throws Exception {
-        boolean printLock = getOption("-lock") != null;
-        boolean printExtend = getOption("-extend") != null;
+        CommandOption format = getOption("-format");
+        // Parsed formats always need lock information
+        boolean printLock = getOption("-lock").isSpecified() || format.isSpecified();
+        boolean printExtend = getOption("-extend").isSpecified();
         String dumpOption = "";
         if (printLock) {
             dumpOption += "-l ";
@@ -44,6 +71,118 @@ class ThreadDumpCommand extends Command {
             dumpOption += "-e ";
         }
 
-        vm.execute(VM_OPERATION_THREAD_DUMP, dumpOption.trim());
+        CommandOption every = getOption("-every");
+        CommandOption duration = getOption("-for");
+        if ((every.isSpecified() || duration.isSpecified()) && !format.getValue().equals(FORMAT_LOCKS)) {
+            throw new Exception("Options -every and -for require -format=" + FORMAT_LOCKS);
+        }
+        if (every.isSpecified() != duration.isSpecified()) {
+            throw new Exception("Options -every and -for must be used together");
+        }
+        if (!format.isSpecified()) {
+            vm.execute(VM_OPERATION_THREAD_DUMP, dumpOption.trim());
+            return;
+        }
+        ThreadDump dump = new ThreadDump();
+        PrintStream out = output();
+        if (format.getValue().equals(FORMAT_LOCKS)) {
+            LockAnalyzer analyzer = new LockAnalyzer(dump);
+            long interval = every.isSpecified() ? parseDuration("-every", every.getValue()) : 0;
+            long end = System.currentTimeMillis() + (duration.isSpecified() ? parseDuration("-for", duration.getValue()) : 0);
+            for (long next = System.currentTimeMillis(); ; next += interval) {
+                long now = System.currentTimeMillis();
+                if (next > now) {
+                    Thread.sleep(next - now);
+                } else if (next < now - interval) {
+                    // A dump of many threads took longer than the interval, skip missed dumps
+                    next = now;
+                }
+                threadDump(vm, dump, dumpOption.trim());
+                analyzer.add();
+                if (interval == 0 || next + interval > end) {
+                    break;
+                }
+            }
+            analyzer.print(out);
+            out.flush();
+            return;
+        }
+        threadDump(vm, dump, dumpOption.trim());
+        if (format.getValue().equals(FORMAT_SUMMARY)) {
+            printSummary(dump, out);
+        } else {
+            printCollapsed(dump, out);
+        }
+        out.flush();
+    }
+
+    private static void threadDump(HotSpotVM vm, ThreadDump dump, String dumpOption) throws Exception {
+        dump.reset();
+        OutputStream oldOut = HotSpotVM.redirectOutput(dump);
+        try {
+            vm.execute(VM_OPERATION_THREAD_DUMP, dumpOption);
+        } finally {
+            HotSpotVM.redirectOutput(oldOut);
+        }
+        dump.close();
+    }
+
+    private static void printSummary(final ThreadDump dump, PrintStream out) {
+        // Threads grouped by stack and state
+        Map<String, List<ThreadDump.ThreadInfo>> groups = new HashMap<String, List<ThreadDump.ThreadInfo>>();
+        for (ThreadDump.ThreadInfo thread : dump.threads()) {
+            String key = thread.stack + " " + thread.state;
+            List<ThreadDump.ThreadInfo> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<ThreadDump.ThreadInfo>();
+                groups.put(key, group);
+            }
+            group.add(thread);
+        }
+        List<List<ThreadDump.ThreadInfo>> sorted = new ArrayList<List<ThreadDump.ThreadInfo>>(groups.values());
+        Collections.sort(sorted, new Comparator<List<ThreadDump.ThreadInfo>>() {
+            @Override
+            public int compare(List<ThreadDump.ThreadInfo> a, List<ThreadDump.ThreadInfo> b) {
+                if (a.size() != b.size()) {
+                    return a.size() < b.size() ? 1 : -1;
+                }
+                return a.get(0).name.compareTo(b.get(0).name);
+            }
+        });
+
+        out.println(dump.threads().size() + " threads, " + dump.stackCount() + " distinct stacks");
+        for (List<ThreadDump.ThreadInfo> group : sorted) {
+            ThreadDump.ThreadInfo first = group.get(0);
+            int[] frames = dump.stack(first.stack);
+            StringBuilder sb = new StringBuilder();
+            sb.append(group.size()).append(group.size() == 1 ? " thread" : " threads");
+            if (first.state.length() > 0) {
+                sb.append(' ').append(first.state);
+            }
+            sb.append(frames.length > 0 ? " in " + dump.method(frames[0]) : " without Java frames");
+            out.println();
+            out.println(sb);
+            for (int frame : frames) {
+                out.println("\tat " + dump.frame(frame));
+            }
+            sb.setLength(0);
+            for (int i = 0; i < group.size() && i < EXAMPLE_NAMES; i++) {
+                sb.append(i > 0 ? ", \"" : "\t\"").append(group.get(i).name).append('"');
+            }
+            if (group.size() > EXAMPLE_NAMES) {
+                sb.append(", ...");
+            }
+            out.println(sb);
+        }
+    }
+
+    private static void printCollapsed(ThreadDump dump, PrintStream out) {
+        long[] threads = new long[dump.stackCount()];
+        for (ThreadDump.ThreadInfo thread : dump.threads()) {
+            threads[thread.stack]++;
+        }
+        for (Map.Entry<String, Long> entry : dump.collapse(threads).entrySet()) {
+            out.println(entry.getKey() + " " + entry.getValue());
+        }
     }
 }
@@ -0,0 +1,309 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attachable HotSpot JVMs found by their hsperfdata files, like jps but across containers.
+ * Every process of {@code /proc} is looked up by the last entry of {@code NSpid} in its status,
+ * its pid inside its own pid namespace, which names the hsperfdata file under its own root.
+ * Files of processes in the namespace of the tool are taken from one listing of {@code /tmp},
+ * only processes of other pid namespaces and java processes with a private {@code /tmp} cost a
+ * lookup under {@code /proc/<pid>/root/tmp}, which keeps discovery fast on hosts running
+ * thousands of processes. JVMs started with {@code -XX:-UsePerfData} can not be found. On
+ * platforms without {@code /proc} the hsperfdata files of {@code java.io.tmpdir} are listed.
+ */
+class VMDiscovery {
+    static final String LIST_COMMAND = "list";
+    private static final String TMP_DIR = "/tmp";
+    private static final String UNKNOWN = "?";
+    private static final byte[] NSPID = "NSpid:".getBytes();
+    // Status files are a few KB, NSpid comes long before the end
+    static final int STATUS_BUFFER_SIZE = 8192;
+    private static final byte[] NAME_JAVA = "Name:\tjava\n".getBytes();
+
+    static final class VM {
+        final int pid;
+        // Pid inside the pid namespace of the process, equal to pid without namespaces
+        final int nsPid;
+        String mainClass = UNKNOWN;
+        String version = UNKNOWN;
+
+        VM(int pid, int nsPid) {
+            this.pid = pid;
+            this.nsPid = nsPid;
+        }
+
+        /**
+         * Whether the main class, its simple name or the file name of the jar is {@code selector}
+         */
+        boolean matches(String selector) {
+            if (mainClass.equals(selector)) {
+                return true;
+            }
+            int slash = mainClass.lastIndexOf('/');
+            if (slash >= 0) {
+                return mainClass.substring(slash + 1).equals(selector);
+            }
+            return !mainClass.endsWith(".jar") && mainClass.substring(mainClass.lastIndexOf('.') + 1).equals(selector);
+        }
+    }
+
+    /**
+     * hsperfdata files in hsperfdata_* directories of {@code tmpDir} by file name
+     */
+    private static Map<String, File> listPerfData(File tmpDir) {
+        Map<String, File> files = new HashMap<String, File>();
+        String[] names = tmpDir.list();
+        if (names == null) {
+            return files;
+        }
+        for (String name : names) {
+            if (!name.startsWith(PerfData.HSPERFDATA_PREFIX)) {
+                continue;
+            }
+            File dir = new File(tmpDir, name);
+            String[] pids = dir.list();
+            for (int i = 0; pids != null && i < pids.length; i++) {
+                files.put(pids[i], new File(dir, pids[i]));
+            }
+        }
+        return files;
+    }
+
+    private static File findPerfData(File tmpDir, int nsPid) {
+        String[] names = tmpDir.list();
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (names[i].startsWith(PerfData.HSPERFDATA_PREFIX)) {
+                File file = new File(tmpDir, names[i] + "/" + nsPid);
+                if (file.isFile()) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the beginning of a file into {@code buf}, returns the number of bytes or -1 if the
+     * file can not be read, e.g. because the process has exited
+     */
+    static int readFile(String path, byte[] buf) {
+        try {
+            FileInputStream in = new FileInputStream(path);
+            try {
+                int length = 0;
+                int n;
+                while (length < buf.length && (n = in.read(buf, length, buf.length - length)) > 0) {
+                    length += n;
+                }
+                return length;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static boolean regionMatches(byte[] buf, int offset, int length, byte[] text) {
+        if (offset + text.length > length) {
+            return false;
+        }
+        for (int i = 0; i < text.length; i++) {
+            if (buf[offset + i] != text[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Numbers on the line starting with {@code key} of a file in {@code /proc} read into {@code buf},
+     * e.g. the entries of "NSpid:" in a status file, null if there is no such line.
+     */
+    static long[] parseLine(byte[] buf, int length, byte[] key) {
+        for (int p = 0; p < length; p++) {
+            if ((p == 0 || buf[p - 1] == '\n') && regionMatches(buf, p, length, key)) {
+                long[] values = new long[4];
+                int count = 0;
+                p += key.length;
+                while (p < length && buf[p] != '\n') {
+                    if (buf[p] >= '0' && buf[p] <= '9') {
+                        long value = 0;
+                        while (p < length && buf[p] >= '0' && buf[p] <= '9') {
+                            value = value * 10 + buf[p++] - '0';
+                        }
+                        if (count == values.length) {
+                            values = Arrays.copyOf(values, count * 2);
+                        }
+                        values[count++] = value;
+                    } else {
+                        p++;
+                    }
+                }
+                return Arrays.copyOf(values, count);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Id of a process or thread inside its own pid namespace, the last entry of NSpid in its
+     * status read into {@code buf}. The NSpid line lists the id as seen by this tool first, it is
+     * missing on kernels older than 4.1, which leaves {@code id} as it is.
+     */
+    static int namespacePid(byte[] buf, int length, int id) {
+        long[] ids = parseLine(buf, length, NSPID);
+        return ids != null && ids.length > 0 ? (int) ids[ids.length - 1] : id;
+    }
+
+    /**
+     * Pid of a process inside its own pid namespace, {@code pid} itself if its status can not be read
+     */
+    static int namespacePid(int pid) {
+        byte[] buf = new byte[STATUS_BUFFER_SIZE];
+        int length = readFile("/proc/" + pid + "/status", buf);
+        return length < 0 ? pid : namespacePid(buf, length, pid);
+    }
+
+    /**
+     * hsperfdata file of one JVM, null if it has none or the process does not exist
+     */
+    static File findPerfData(int pid) {
+        if (!new File("/proc").isDirectory()) {
+            return findPerfData(new File(System.getProperty("java.io.tmpdir")), pid);
+        }
+        byte[] buf = new byte[STATUS_BUFFER_SIZE];
+        int length = readFile("/proc/" + pid + "/status", buf);
+        if (length < 0) {
+            return null;
+        }
+        int nsPid = namespacePid(buf, length, pid);
+        // Root of the process is / for processes sharing the mount namespace of the tool
+        return findPerfData(new File("/proc/" + pid + "/root" + TMP_DIR), nsPid);
+    }
+
+    private static void describe(VM vm, File file) {
+        try {
+            PerfData perfData = PerfData.open(file);
+            String command = perfData.getString("sun.rt.javaCommand");
+            if (command != null && command.trim().length() > 0) {
+                vm.mainClass = command.trim().split("\\s+")[0];
+            }
+            String version = perfData.getString("java.property.java.version");
+            if (version == null) {
+                version = perfData.getString("java.property.java.vm.version");
+            }
+            if (version != null) {
+                vm.version = version;
+            }
+        } catch (IOException e) {
+            // Not readable by this user, or not a hsperfdata file
+        } catch (RuntimeException e) {
+            // A malformed file must not end the discovery of other JVMs
+        }
+    }
+
+    /**
+     * JVMs running on this host sorted by pid, without the JVM of the tool itself
+     */
+    static List<VM> discover() {
+        List<VM> vms = new ArrayList<VM>();
+        String[] pids = new File("/proc").list();
+        if (pids == null) {
+            for (Map.Entry<String, File> entry : listPerfData(new File(System.getProperty("java.io.tmpdir"))).entrySet()) {
+                try {
+                    int pid = Integer.parseInt(entry.getKey());
+                    VM vm = new VM(pid, pid);
+                    describe(vm, entry.getValue());
+                    vms.add(vm);
+                } catch (NumberFormatException e) {
+                    // Not a pid
+                }
+            }
+        } else {
+            String self = "";
+            try {
+                self = new File("/proc/self").getCanonicalFile().getName();
+            } catch (IOException e) {
+                // Tool itself is listed then
+            }
+            Map<String, File> local = listPerfData(new File(TMP_DIR));
+            byte[] buf = new byte[STATUS_BUFFER_SIZE];
+            for (String name : pids) {
+                if (name.length() == 0 || !Character.isDigit(name.charAt(0)) || name.equals(self)) {
+                    continue;
+                }
+                int length = readFile("/proc/" + name + "/status", buf);
+                if (length < 0) {
+                    continue;
+                }
+                int pid = Integer.parseInt(name);
+                long[] ids = parseLine(buf, length, NSPID);
+                int nsPid = namespacePid(buf, length, pid);
+                File file;
+                if (ids == null || ids.length <= 1) {
+                    file = local.get(name);
+                    if (file == null && regionMatches(buf, 0, length, NAME_JAVA)) {
+                        // e.g. a service with PrivateTmp of systemd
+                        file = findPerfData(new File("/proc/" + name + "/root" + TMP_DIR), nsPid);
+                    }
+                } else {
+                    file = findPerfData(new File("/proc/" + name + "/root" + TMP_DIR), nsPid);
+                }
+                if (file != null) {
+                    VM vm = new VM(pid, nsPid);
+                    describe(vm, file);
+                    vms.add(vm);
+                }
+            }
+        }
+        Collections.sort(vms, new Comparator<VM>() {
+            @Override
+            public int compare(VM a, VM b) {
+                return a.pid < b.pid ? -1 : (a.pid == b.pid ? 0 : 1);
+            }
+        });
+        return vms;
+    }
+
+    static void list(PrintStream out) {
+        out.println(String.format("%8s %8s  %-12s %s", "pid", "ns pid", "version", "main class"));
+        for (VM vm : discover()) {
+            out.println(String.format("%8d %8d  %-12s %s", vm.pid, vm.nsPid, vm.version, vm.mainClass));
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.tool;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Long-lived client tool process serving requests of ATPClient over stdin/stdout.
+ * <p>
+ * Request:  int argc, followed by argc modified-UTF-8 strings
+ * Response: any number of OUTPUT/ERROR frames followed by exactly one DONE frame,
+ * each frame is a type byte, an int length and the payload. The payload of DONE is
+ * the failure message, it is empty if the request succeeded.
+ * <p>
+ * Attached VMs are kept per pid across requests. The worker exits once stdin is closed
+ * or no request arrived within the idle timeout.
+ */
+class Worker {
+    static final String WORKER_OPTION = "-worker";
+    static final String IDLE_TIMEOUT_OPTION = "-idle=";
+    static final int FRAME_OUTPUT = 1;
+    static final int FRAME_ERROR = 2;
+    static final int FRAME_DONE = 3;
+    private static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000L;
+    private static final int FRAME_BUFFER_SIZE = 64 * 1024;
+
+    private final Map<Integer, HotSpotVM> vms = new HashMap<Integer, HotSpotVM>();
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final long idleTimeout;
+    private long lastActive;
+    private boolean busy;
+
+    private Worker(long idleTimeout) {
+        this.in = new DataInputStream(new FileInputStream(FileDescriptor.in));
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), FRAME_BUFFER_SIZE));
+        this.idleTimeout = idleTimeout;
+        this.lastActive = System.currentTimeMillis();
+    }
+
+    static void serve(String[] args) throws Exception {
+        long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith(IDLE_TIMEOUT_OPTION)) {
+                idleTimeout = Long.parseLong(args[i].substring(IDLE_TIMEOUT_OPTION.length()));
+            }
+        }
+        new Worker(idleTimeout).loop();
+    }
+
+    private void loop() throws IOException {
+        startIdleWatchdog();
+        try {
+            while (true) {
+                int argc;
+                try {
+                    argc = in.readInt();
+                } catch (EOFException e) {
+                    // Client has gone
+                    break;
+                }
+                synchronized (this) {
+                    busy = true;
+                }
+                String[] args = new String[argc];
+                for (int i = 0; i < argc; i++) {
+                    args[i] = in.readUTF();
+                }
+                handle(args);
+                synchronized (this) {
+                    busy = false;
+                    lastActive = System.currentTimeMillis();
+                }
+            }
+        } finally {
+            detachAll();
+        }
+    }
+
+    private void startIdleWatchdog() {
+        Thread watchdog = new Thread("ATP worker idle watchdog") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(Math.max(idleTimeout / 4, 100));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    synchronized (Worker.this) {
+                        if (!busy && System.currentTimeMillis() - lastActive >= idleTimeout) {
+                            detachAll();
+                            // Client notices EOF and restarts worker on next request
+                            System.exit(0);
+                        }
+                    }
+                }
+            }
+        };
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    private void handle(String[] args) throws IOException {
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        PrintStream newOut = new PrintStream(new BufferedOutputStream(new FrameOutputStream(FRAME_OUTPUT), FRAME_BUFFER_SIZE));
+        PrintStream newErr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(FRAME_ERROR), FRAME_BUFFER_SIZE));
+        System.setOut(newOut);
+        System.setErr(newErr);
+        String failure = "";
+        try {
+            execute(args);
+        } catch (Throwable t) {
+            failure = String.valueOf(t);
+        } finally {
+            newOut.flush();
+            newErr.flush();
+            System.setOut(oldOut);
+            System.setErr(oldErr);
+        }
+        byte[] message = failure.getBytes("UTF-8");
+        writeFrame(FRAME_DONE, message, 0, message.length);
+        out.flush();
+    }
+
+    private void execute(String[] args) throws Exception {
+        if (args.length < 1 || FanOut.isTargetList(args[0]) || !Main.requiresAttach(args)) {
+            // Targets of a list or selector are attached for this request only
+            Main.run(args);
+            return;
+        }
+        Integer pid = Integer.valueOf(args[0]);
+        HotSpotVM vm = vms.get(pid);
+        if (vm == null) {
+            vm = HotSpotVM.creatHotSpotVM(pid);
+            vms.put(pid, vm);
+        }
+        try {
+            Main.run(args, vm, System.err);
+        } catch (Exception e) {
+            // Target may have exited or restarted, attach it again next time
+            vms.remove(pid);
+            vm.detach();
+            throw e;
+        }
+    }
+
+    private synchronized void detachAll() {
+        Iterator<HotSpotVM> iter = vms.values().iterator();
+        while (iter.hasNext()) {
+            try {
+                iter.next().detach();
+            } catch (IOException e) {
+                // Skip...
+            }
+            iter.remove();
+        }
+    }
+
+    private void writeFrame(int type, byte[] b, int off, int len) throws IOException {
+        synchronized (out) {
+            out.writeByte(type);
+            out.writeInt(len);
+            out.write(b, off, len);
+        }
+    }
+
+    private class FrameOutputStream extends OutputStream {
+        private final int type;
+
+        FrameOutputStream(int type) {
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                writeFrame(type, b, off, len);
+            }
+        }
+    }
+}
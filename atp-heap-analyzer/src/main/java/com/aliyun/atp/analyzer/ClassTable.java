@@ -0,0 +1,170 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Instance field layout of the classes in a heap dump. Instance data in HPROF lists the fields
+ * declared by the class first and then those of its super classes, so offsets are resolved
+ * along the super class chain on first use. Classes are added while scanning and looked up from
+ * several threads afterwards.
+ */
+final class ClassTable {
+    // Guards against broken super class chains
+    private static final int MAX_DEPTH = 1024;
+
+    private static final class Entry {
+        final long superId;
+        final long fieldsPos;
+        // Offsets of reference fields in instance data, super classes included
+        volatile int[] references;
+        volatile long fieldBytes = -1;
+
+        Entry(long superId, long fieldsPos) {
+            this.superId = superId;
+            this.fieldsPos = fieldsPos;
+        }
+    }
+
+    private final HprofFile hprof;
+    private final ObjectLayout layout;
+    private final Map<Long, Entry> entries = new HashMap<>();
+
+    ClassTable(HprofFile hprof, ObjectLayout layout) {
+        this.hprof = hprof;
+        this.layout = layout;
+    }
+
+    /**
+     * Add class from a class dump, see {@link HeapVisitor#classDump}
+     */
+    void add(long classId, long superId, long fieldsPos) {
+        entries.put(classId, new Entry(superId, fieldsPos));
+    }
+
+    boolean contains(long classId) {
+        return entries.containsKey(classId);
+    }
+
+    Iterable<Long> classIds() {
+        return entries.keySet();
+    }
+
+    long superId(long classId) {
+        Entry entry = entries.get(classId);
+        return entry != null ? entry.superId : 0;
+    }
+
+    /**
+     * Offsets of reference fields in instance data, null if the class is not in the dump
+     */
+    int[] references(long classId) {
+        Entry entry = entries.get(classId);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.references == null) {
+            int[] references = new int[8];
+            int n = 0;
+            long bytes = 0;
+            int offset = 0;
+            int depth = 0;
+            for (Entry e = entry; e != null && depth++ < MAX_DEPTH; e = entries.get(e.superId)) {
+                int fields = hprof.u2(e.fieldsPos);
+                long pos = e.fieldsPos + 2;
+                for (int i = 0; i < fields; i++) {
+                    int type = hprof.u1(pos + hprof.idSize());
+                    if (type == HprofFile.TYPE_OBJECT) {
+                        if (n == references.length) {
+                            references = Arrays.copyOf(references, n * 2);
+                        }
+                        references[n++] = offset;
+                    }
+                    offset += hprof.typeSize(type);
+                    bytes += layout.fieldSize(hprof, type);
+                    pos += hprof.idSize() + 1;
+                }
+            }
+            entry.fieldBytes = bytes;
+            entry.references = Arrays.copyOf(references, n);
+        }
+        return entry.references;
+    }
+
+    /**
+     * Size of instance fields in memory, super classes included, -1 if the class is not in the dump
+     */
+    long fieldBytes(long classId) {
+        Entry entry = entries.get(classId);
+        if (entry == null) {
+            return -1;
+        }
+        references(classId);
+        return entry.fieldBytes;
+    }
+
+    /**
+     * Offset of the first field with the given name in instance data, -1 if there is none
+     */
+    int fieldOffset(long classId, String name) {
+        int offset = 0;
+        int depth = 0;
+        for (Entry e = entries.get(classId); e != null && depth++ < MAX_DEPTH; e = entries.get(e.superId)) {
+            int fields = hprof.u2(e.fieldsPos);
+            long pos = e.fieldsPos + 2;
+            for (int i = 0; i < fields; i++) {
+                if (name.equals(hprof.utf8(hprof.id(pos)))) {
+                    return offset;
+                }
+                offset += hprof.typeSize(hprof.u1(pos + hprof.idSize()));
+                pos += hprof.idSize() + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Name of the reference field of an instance whose data starts at {@code dataPos} that holds
+     * {@code target}, null if there is none
+     */
+    String referenceName(long classId, long dataPos, long target) {
+        int offset = 0;
+        int depth = 0;
+        for (Entry e = entries.get(classId); e != null && depth++ < MAX_DEPTH; e = entries.get(e.superId)) {
+            int fields = hprof.u2(e.fieldsPos);
+            long pos = e.fieldsPos + 2;
+            for (int i = 0; i < fields; i++) {
+                int type = hprof.u1(pos + hprof.idSize());
+                if (type == HprofFile.TYPE_OBJECT && hprof.id(dataPos + offset) == target) {
+                    return hprof.utf8(hprof.id(pos));
+                }
+                offset += hprof.typeSize(type);
+                pos += hprof.idSize() + 1;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+abstract class Command {
+    static final String STDIO = "-";
+
+    private final String name;
+    private final String description;
+    private final CommandOption[] options;
+
+    public Command(String name, String description, CommandOption[] options) {
+        this.name = name;
+        this.description = description;
+        this.options = options;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CommandOption getOption(String name) {
+        for (int i = 0; i < options.length; i++) {
+            if (options[i].getName().equals(name)) {
+                return options[i];
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(String arg, CommandOption option) {
+        return arg.equals(option.getName()) || arg.startsWith(option.getName() + "=");
+    }
+
+    protected void parseInputArguments(String[] args) throws Exception {
+        for (CommandOption option : options) {
+            boolean found = false;
+            for (String arg : args) {
+                if (matches(arg, option)) {
+                    found = true;
+                    option.setValue(arg);
+                    break;
+                }
+            }
+            if (!found && option.isMandatory()) {
+                throw new Exception("Option " + option.getName() + " is mandatory");
+            }
+        }
+    }
+
+    protected int getIntOption(String name) throws Exception {
+        String value = getOption(name).getValue();
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new Exception("Option " + name + " expects a number but got " + value);
+        }
+    }
+
+    public final void executeCommand(String[] args) throws Exception {
+        parseInputArguments(args);
+        // Positional arguments are input files, args[0] is the subcommand itself, "-" is stdin
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("-") || args[i].equals(STDIO)) {
+                files.add(args[i]);
+            }
+        }
+        execute(files);
+    }
+
+    protected abstract void execute(List<String> files) throws Exception;
+
+    @Override
+    public String toString() {
+        String str = String.format("%-30s%s", name, description != null ? description : "");
+        if (options != null && options.length > 0) {
+            str += "\n                              " + Arrays.toString(options);
+        }
+        return str;
+    }
+}
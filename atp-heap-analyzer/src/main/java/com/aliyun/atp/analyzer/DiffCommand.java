@@ -0,0 +1,236 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class DiffCommand extends Command {
+    private static final String SORT_COUNT = "count";
+    private static final String SORT_BYTES = "bytes";
+    private static final String SORT_RETAINED = "retained";
+
+    public DiffCommand(String name, String description) {
+        super(name, description, new CommandOption[]{
+            new CommandOption("-top", "20", false, null),
+            new CommandOption("-sort", SORT_RETAINED, false, new String[]{SORT_COUNT, SORT_BYTES, SORT_RETAINED}),
+            new CommandOption("-shallow", "", false, null),
+            new CommandOption("-threads", String.valueOf(Runtime.getRuntime().availableProcessors()), false, null),
+            new CommandOption("-tmpdir", System.getProperty("java.io.tmpdir"), false, null),
+            new CommandOption("-uncompressed", "", false, null)});
+    }
+
+    private static final class Stats {
+        long count;
+        long bytes;
+        long retained;
+    }
+
+    @Override
+    protected void execute(List<String> files) throws Exception {
+        if (files.size() != 2) {
+            throw new Exception("Expect two heap dump files, the older one first");
+        }
+        boolean shallow = getOption("-shallow").isSpecified();
+        String sort = getOption("-sort").getValue();
+        if (shallow && sort.equals(SORT_RETAINED)) {
+            // Retained sizes are not computed, fall back to the next best indicator
+            sort = SORT_BYTES;
+        }
+        // Dumps are summarized one after another, so only one of them is mapped at a time
+        Map<String, Stats> before = summarize(files.get(0), shallow);
+        Map<String, Stats> after = summarize(files.get(1), shallow);
+
+        Set<String> names = new HashSet<>(before.keySet());
+        names.addAll(after.keySet());
+        List<String> rows = new ArrayList<>(names);
+        final Map<String, Stats> delta = new HashMap<>();
+        Stats total = new Stats();
+        for (String name : rows) {
+            Stats b = before.containsKey(name) ? before.get(name) : new Stats();
+            Stats a = after.containsKey(name) ? after.get(name) : new Stats();
+            Stats d = new Stats();
+            d.count = a.count - b.count;
+            d.bytes = a.bytes - b.bytes;
+            d.retained = a.retained - b.retained;
+            delta.put(name, d);
+            total.count += d.count;
+            total.bytes += d.bytes;
+        }
+        final String key = sort;
+        Collections.sort(rows, (x, y) -> Long.compare(metric(delta.get(y), key), metric(delta.get(x), key)));
+
+        int top = getIntOption("-top");
+        int limit = top > 0 ? Math.min(top, rows.size()) : rows.size();
+        System.out.printf("Growth from %s to %s, sorted by %s:%n", files.get(0), files.get(1), sort);
+        System.out.println(shallow ? " num     #instances         #bytes  class name"
+            : " num     #instances         #bytes        #retained  class name");
+        System.out.println("----------------------------------------------");
+        for (int i = 0; i < limit; i++) {
+            String name = rows.get(i);
+            Stats d = delta.get(name);
+            if (shallow) {
+                System.out.printf("%4d: %+13d %+14d  %s%n", i + 1, d.count, d.bytes, name);
+            } else {
+                System.out.printf("%4d: %+13d %+14d %+16d  %s%n", i + 1, d.count, d.bytes, d.retained, name);
+            }
+        }
+        System.out.printf("Total %+13d %+14d%n", total.count, total.bytes);
+    }
+
+    private static long metric(Stats stats, String sort) {
+        switch (sort) {
+            case SORT_COUNT:
+                return stats.count;
+            case SORT_BYTES:
+                return stats.bytes;
+            default:
+                return stats.retained;
+        }
+    }
+
+    private Map<String, Stats> summarize(String file, boolean shallow) throws Exception {
+        int threads = getIntOption("-threads");
+        Map<String, Stats> result = new HashMap<>();
+        try (HprofFile hprof = HprofFile.open(file)) {
+            ObjectLayout layout = ObjectLayout.of(hprof, getOption("-uncompressed").isSpecified());
+            if (shallow) {
+                for (HistogramCommand.Row row : HistogramCommand.histogram(hprof, layout, threads)) {
+                    Stats stats = stats(result, row.name);
+                    stats.count += row.count;
+                    stats.bytes += row.bytes;
+                }
+                return result;
+            }
+            File tmpdir = new File(getOption("-tmpdir").getValue());
+            try (HeapGraph graph = HeapGraph.build(hprof, layout, threads, tmpdir);
+                 DominatorTree tree = DominatorTree.compute(graph, tmpdir)) {
+                LongLongMap counts = new LongLongMap();
+                LongLongMap bytes = new LongLongMap();
+                for (int i = 0; i < graph.count(); i++) {
+                    long key = graph.typeKey(i);
+                    if (key == 0) {
+                        continue;
+                    }
+                    counts.add(key, 1);
+                    bytes.add(key, graph.size(i));
+                }
+                LongLongMap retained = retainedByType(graph, tree, tmpdir);
+                for (int i = 0; i < counts.capacity(); i++) {
+                    long key = counts.keyAt(i);
+                    if (key != 0) {
+                        // Classes of the same name from different loaders are merged
+                        Stats stats = stats(result, graph.typeKeyName(key));
+                        stats.count += counts.valueAt(i);
+                        stats.bytes += bytes.get(key, 0);
+                        stats.retained += retained.get(key, 0);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Retained size of a class is the sum over its instances that are not dominated by another
+     * instance of it, otherwise e.g. nodes of a linked list would be counted many times. One
+     * depth first walk of the dominator tree keeps per class the number of its instances on the
+     * current path, an instance is counted when there is none.
+     */
+    private static LongLongMap retainedByType(HeapGraph graph, DominatorTree tree, File tmpdir) throws Exception {
+        LongLongMap retained = new LongLongMap();
+        LongLongMap onPath = new LongLongMap();
+        int count = graph.count();
+        // Children of object d in compressed sparse row form at slot d + 1, those of GC roots at 0
+        MappedArray start = MappedArray.ints(tmpdir, count + 2L);
+        MappedArray children = MappedArray.ints(tmpdir, tree.reachable() + 1L);
+        // Objects to enter and ~object to leave, each object is pushed at most twice
+        MappedArray stack = MappedArray.ints(tmpdir, 2L * tree.reachable() + 2);
+        try {
+            for (int i = 0; i < count; i++) {
+                if (tree.isReachable(i)) {
+                    int d = tree.immediateDominator(i) + 1;
+                    start.putInt(d, start.getInt(d) + 1);
+                }
+            }
+            for (int d = 1; d <= count; d++) {
+                start.putInt(d, start.getInt(d) + start.getInt(d - 1));
+            }
+            start.putInt(count + 1, start.getInt(count));
+            for (int i = 0; i < count; i++) {
+                if (tree.isReachable(i)) {
+                    int d = tree.immediateDominator(i) + 1;
+                    int slot = start.getInt(d) - 1;
+                    start.putInt(d, slot);
+                    children.putInt(slot, i);
+                }
+            }
+
+            int sp = 0;
+            for (int c = start.getInt(0); c < start.getInt(1); c++) {
+                stack.putInt(sp++, children.getInt(c));
+            }
+            while (sp > 0) {
+                int v = stack.getInt(--sp);
+                if (v < 0) {
+                    long key = graph.typeKey(~v);
+                    if (key != 0) {
+                        onPath.add(key, -1);
+                    }
+                    continue;
+                }
+                long key = graph.typeKey(v);
+                if (key != 0) {
+                    if (onPath.get(key, 0) == 0) {
+                        retained.add(key, tree.retainedSize(v));
+                    }
+                    onPath.add(key, 1);
+                }
+                stack.putInt(sp++, ~v);
+                for (int c = start.getInt(v + 1); c < start.getInt(v + 2); c++) {
+                    stack.putInt(sp++, children.getInt(c));
+                }
+            }
+        } finally {
+            start.close();
+            children.close();
+            stack.close();
+        }
+        return retained;
+    }
+
+    private static Stats stats(Map<String, Stats> map, String name) {
+        Stats stats = map.get(name);
+        if (stats == null) {
+            stats = new Stats();
+            map.put(name, stats);
+        }
+        return stats;
+    }
+}
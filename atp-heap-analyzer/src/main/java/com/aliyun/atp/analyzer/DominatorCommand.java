@@ -0,0 +1,169 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+class DominatorCommand extends Command {
+    public DominatorCommand(String name, String description) {
+        super(name, description, new CommandOption[]{
+            new CommandOption("-top", "20", false, null),
+            new CommandOption("-path", "", false, null),
+            new CommandOption("-threads", String.valueOf(Runtime.getRuntime().availableProcessors()), false, null),
+            new CommandOption("-tmpdir", System.getProperty("java.io.tmpdir"), false, null),
+            new CommandOption("-uncompressed", "", false, null)});
+    }
+
+    @Override
+    protected void execute(List<String> files) throws Exception {
+        if (files.size() != 1) {
+            throw new Exception("Expect exactly one heap dump file");
+        }
+        int top = getIntOption("-top");
+        int threads = getIntOption("-threads");
+        File tmpdir = new File(getOption("-tmpdir").getValue());
+        try (HprofFile hprof = HprofFile.open(files.get(0))) {
+            ObjectLayout layout = ObjectLayout.of(hprof, getOption("-uncompressed").isSpecified());
+            try (HeapGraph graph = HeapGraph.build(hprof, layout, threads, tmpdir);
+                 DominatorTree tree = DominatorTree.compute(graph, tmpdir)) {
+                System.out.printf("Objects: %d, references: %d, GC roots: %d, reachable: %d objects, %d bytes%n",
+                    graph.count(), graph.edgeCount(), graph.rootIndexes().length, tree.reachable(), tree.totalRetainedSize());
+                System.out.println();
+                printTopRetainers(graph, tree, top);
+                if (getOption("-path").isSpecified()) {
+                    System.out.println();
+                    printPath(graph, tree, findTarget(graph, tree, getOption("-path").getValue()), tmpdir);
+                }
+            }
+        }
+    }
+
+    private static void printTopRetainers(HeapGraph graph, DominatorTree tree, int top) {
+        PriorityQueue<Integer> heap = new PriorityQueue<>(
+            (a, b) -> Long.compare(tree.retainedSize(a), tree.retainedSize(b)));
+        for (int i = 0; i < graph.count(); i++) {
+            if (tree.isReachable(i) && tree.immediateDominator(i) < 0) {
+                heap.add(i);
+                if (heap.size() > top) {
+                    heap.poll();
+                }
+            }
+        }
+        List<Integer> rows = new ArrayList<>(heap);
+        Collections.sort(rows, (a, b) -> Long.compare(tree.retainedSize(b), tree.retainedSize(a)));
+        System.out.println("Top retainers (objects dominated by GC roots only):");
+        System.out.println(" num          #retained       #shallow  object");
+        System.out.println("----------------------------------------------");
+        for (int i = 0; i < rows.size(); i++) {
+            int index = rows.get(i);
+            System.out.printf("%4d: %18d %14d  %s%n", i + 1, tree.retainedSize(index), graph.size(index), graph.describe(index));
+        }
+    }
+
+    /**
+     * Object given by id such as 0x7f0012345678, or the instance of a class with the largest
+     * retained size
+     */
+    private static int findTarget(HeapGraph graph, DominatorTree tree, String value) throws Exception {
+        if (value.startsWith("0x")) {
+            int index = graph.index(Long.parseUnsignedLong(value.substring(2), 16));
+            if (index < 0) {
+                throw new Exception("Object " + value + " is not in heap dump");
+            }
+            return index;
+        }
+        LongLongMap classIds = new LongLongMap();
+        String primitive = null;
+        for (int i = 0; i < graph.count(); i++) {
+            String name = graph.typeName(i);
+            if (name.equals("class " + value)) {
+                classIds.put(graph.id(i), 1);
+            }
+        }
+        if (value.length() == 2 && value.charAt(0) == '[') {
+            primitive = value;
+        }
+        int target = -1;
+        for (int i = 0; i < graph.count(); i++) {
+            long classId = graph.classId(i);
+            boolean match = classId != 0 ? classIds.containsKey(classId)
+                : primitive != null && primitive.equals(graph.typeName(i));
+            if (match && tree.isReachable(i) && (target < 0 || tree.retainedSize(i) > tree.retainedSize(target))) {
+                target = i;
+            }
+        }
+        if (target < 0) {
+            throw new Exception("No reachable instance of " + value + " in heap dump");
+        }
+        return target;
+    }
+
+    /**
+     * Breadth first search from GC roots, which finds a path with the fewest references
+     */
+    private static void printPath(HeapGraph graph, DominatorTree tree, int target, File tmpdir) throws Exception {
+        System.out.printf("Shortest path from GC roots to %s (retained %d bytes):%n",
+            graph.describe(target), tree.retainedSize(target));
+        // Parent object number + 1, 0 means not visited yet
+        try (MappedArray parent = MappedArray.ints(tmpdir, graph.count());
+             MappedArray queue = MappedArray.ints(tmpdir, graph.count())) {
+            int head = 0;
+            int tail = 0;
+            for (int root : graph.rootIndexes()) {
+                parent.putInt(root, root + 1);
+                queue.putInt(tail++, root);
+            }
+            while (head < tail && parent.getInt(target) == 0) {
+                int v = queue.getInt(head++);
+                for (long e = graph.edgeStart(v); e < graph.edgeStart(v + 1); e++) {
+                    int w = graph.edge(e);
+                    if (w >= 0 && parent.getInt(w) == 0) {
+                        parent.putInt(w, v + 1);
+                        queue.putInt(tail++, w);
+                    }
+                }
+            }
+            if (parent.getInt(target) == 0) {
+                System.out.println("  not reachable from GC roots");
+                return;
+            }
+            List<Integer> path = new ArrayList<>();
+            for (int v = target; ; v = parent.getInt(v) - 1) {
+                path.add(v);
+                if (parent.getInt(v) - 1 == v) {
+                    break;
+                }
+            }
+            Collections.reverse(path);
+            int root = path.get(0);
+            System.out.printf("  [%s] %s%n", graph.rootKind(root), graph.describe(root));
+            for (int i = 1; i < path.size(); i++) {
+                System.out.printf("  %s -> %s%n", graph.referenceName(path.get(i - 1), path.get(i)), graph.describe(path.get(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Dominator tree of a {@link HeapGraph} computed with the Lengauer-Tarjan algorithm, plus
+ * retained sizes. A virtual root refers to all GC roots, so objects only retained by GC roots
+ * are immediately dominated by it. Objects unreachable from GC roots are ignored.
+ * <p>
+ * Internally node 0 means none, node 1 is the virtual root and object i is node i + 2. All
+ * per-node arrays are {@link MappedArray}s, the recursion of DFS and path compression is
+ * replaced by explicit stacks.
+ */
+final class DominatorTree implements Closeable {
+    private static final int NONE = 0;
+    private static final int ROOT = 1;
+
+    private final HeapGraph graph;
+    private final int reachable;
+    private final MappedArray idom;
+    private final MappedArray retained;
+
+    private DominatorTree(HeapGraph graph, File tmpdir) throws IOException {
+        this.graph = graph;
+        int nodes = graph.count() + 2;
+        int[] roots = graph.rootIndexes();
+        BitSet isRoot = new BitSet(graph.count());
+        for (int root : roots) {
+            isRoot.set(root);
+        }
+
+        MappedArray dfnum = MappedArray.ints(tmpdir, nodes);
+        MappedArray vertex = MappedArray.ints(tmpdir, nodes);
+        MappedArray parent = MappedArray.ints(tmpdir, nodes);
+        MappedArray stack = MappedArray.ints(tmpdir, nodes);
+        MappedArray cursor = MappedArray.longs(tmpdir, nodes);
+        MappedArray revStart = MappedArray.longs(tmpdir, graph.count() + 1L);
+        MappedArray rev = MappedArray.ints(tmpdir, graph.edgeCount());
+        MappedArray semi = MappedArray.ints(tmpdir, nodes);
+        MappedArray ancestor = MappedArray.ints(tmpdir, nodes);
+        MappedArray best = MappedArray.ints(tmpdir, nodes);
+        MappedArray samedom = MappedArray.ints(tmpdir, nodes);
+        MappedArray bucketHead = MappedArray.ints(tmpdir, nodes);
+        MappedArray bucketNext = MappedArray.ints(tmpdir, nodes);
+        this.idom = MappedArray.ints(tmpdir, nodes);
+        this.retained = MappedArray.longs(tmpdir, nodes);
+        try {
+            // Depth first numbering from the virtual root
+            int n = 0;
+            int sp = 0;
+            dfnum.putInt(ROOT, ++n);
+            vertex.putInt(n, ROOT);
+            stack.putInt(sp++, ROOT);
+            while (sp > 0) {
+                int v = stack.getInt(sp - 1);
+                long e = cursor.getLong(v);
+                int w;
+                if (v == ROOT) {
+                    if (e >= roots.length) {
+                        sp--;
+                        continue;
+                    }
+                    w = roots[(int) e] + 2;
+                } else {
+                    long edge = graph.edgeStart(v - 2) + e;
+                    if (edge >= graph.edgeStart(v - 1)) {
+                        sp--;
+                        continue;
+                    }
+                    int target = graph.edge(edge);
+                    w = target < 0 ? NONE : target + 2;
+                }
+                cursor.putLong(v, e + 1);
+                if (w != NONE && dfnum.getInt(w) == 0) {
+                    dfnum.putInt(w, ++n);
+                    vertex.putInt(n, w);
+                    parent.putInt(w, v);
+                    stack.putInt(sp++, w);
+                }
+            }
+            this.reachable = n - 1;
+            cursor.close();
+
+            // Predecessors in compressed sparse row form, filled backwards from inclusive ends
+            for (long e = 0; e < graph.edgeCount(); e++) {
+                int target = graph.edge(e);
+                if (target >= 0) {
+                    revStart.putLong(target, revStart.getLong(target) + 1);
+                }
+            }
+            for (int i = 1; i < graph.count(); i++) {
+                revStart.putLong(i, revStart.getLong(i) + revStart.getLong(i - 1));
+            }
+            revStart.putLong(graph.count(), graph.count() > 0 ? revStart.getLong(graph.count() - 1) : 0);
+            for (int source = 0; source < graph.count(); source++) {
+                for (long e = graph.edgeStart(source); e < graph.edgeStart(source + 1); e++) {
+                    int target = graph.edge(e);
+                    if (target >= 0) {
+                        long slot = revStart.getLong(target) - 1;
+                        revStart.putLong(target, slot);
+                        rev.putInt(slot, source);
+                    }
+                }
+            }
+
+            for (int i = n; i >= 2; i--) {
+                int w = vertex.getInt(i);
+                int p = parent.getInt(w);
+                int s = p;
+                int object = w - 2;
+                for (long e = revStart.getLong(object); e < revStart.getLong(object + 1L); e++) {
+                    s = semidominatorCandidate(rev.getInt(e) + 2, w, s, dfnum, semi, ancestor, best, stack);
+                }
+                if (isRoot.get(object)) {
+                    s = semidominatorCandidate(ROOT, w, s, dfnum, semi, ancestor, best, stack);
+                }
+                semi.putInt(w, s);
+                bucketNext.putInt(w, bucketHead.getInt(s));
+                bucketHead.putInt(s, w);
+                ancestor.putInt(w, p);
+                best.putInt(w, w);
+                for (int v = bucketHead.getInt(p); v != NONE; v = bucketNext.getInt(v)) {
+                    int y = lowestSemiAncestor(v, dfnum, semi, ancestor, best, stack);
+                    if (semi.getInt(y) == semi.getInt(v)) {
+                        idom.putInt(v, p);
+                    } else {
+                        samedom.putInt(v, y);
+                    }
+                }
+                bucketHead.putInt(p, NONE);
+            }
+            for (int i = 2; i <= n; i++) {
+                int w = vertex.getInt(i);
+                int same = samedom.getInt(w);
+                if (same != NONE) {
+                    idom.putInt(w, idom.getInt(same));
+                }
+            }
+
+            // Children come after their dominators in DFS order, so sizes flow up in one sweep
+            for (int i = 2; i <= n; i++) {
+                int w = vertex.getInt(i);
+                retained.putLong(w, graph.size(w - 2));
+            }
+            for (int i = n; i >= 2; i--) {
+                int w = vertex.getInt(i);
+                int d = idom.getInt(w);
+                retained.putLong(d, retained.getLong(d) + retained.getLong(w));
+            }
+        } finally {
+            dfnum.close();
+            vertex.close();
+            parent.close();
+            stack.close();
+            cursor.close();
+            revStart.close();
+            rev.close();
+            semi.close();
+            ancestor.close();
+            best.close();
+            samedom.close();
+            bucketHead.close();
+            bucketNext.close();
+        }
+    }
+
+    static DominatorTree compute(HeapGraph graph, File tmpdir) throws IOException {
+        return new DominatorTree(graph, tmpdir);
+    }
+
+    private static int semidominatorCandidate(int v, int w, int s, MappedArray dfnum, MappedArray semi,
+                                              MappedArray ancestor, MappedArray best, MappedArray stack) {
+        int dv = dfnum.getInt(v);
+        if (dv == 0) {
+            // Predecessor not reachable from GC roots
+            return s;
+        }
+        int candidate = dv <= dfnum.getInt(w) ? v : semi.getInt(lowestSemiAncestor(v, dfnum, semi, ancestor, best, stack));
+        return dfnum.getInt(candidate) < dfnum.getInt(s) ? candidate : s;
+    }
+
+    /**
+     * Ancestor of v in the linked forest whose semidominator has the lowest DFS number, with
+     * path compression
+     */
+    private static int lowestSemiAncestor(int v, MappedArray dfnum, MappedArray semi,
+                                          MappedArray ancestor, MappedArray best, MappedArray stack) {
+        int sp = 0;
+        int u = v;
+        while (ancestor.getInt(u) != NONE && ancestor.getInt(ancestor.getInt(u)) != NONE) {
+            stack.putInt(sp++, u);
+            u = ancestor.getInt(u);
+        }
+        while (sp > 0) {
+            int x = stack.getInt(--sp);
+            int a = ancestor.getInt(x);
+            if (dfnum.getInt(semi.getInt(best.getInt(a))) < dfnum.getInt(semi.getInt(best.getInt(x)))) {
+                best.putInt(x, best.getInt(a));
+            }
+            ancestor.putInt(x, ancestor.getInt(a));
+        }
+        return best.getInt(v);
+    }
+
+    /**
+     * Number of objects reachable from GC roots
+     */
+    int reachable() {
+        return reachable;
+    }
+
+    boolean isReachable(int index) {
+        return idom.getInt(index + 2) != NONE;
+    }
+
+    /**
+     * Object number of the immediate dominator, -1 for objects only dominated by GC roots
+     */
+    int immediateDominator(int index) {
+        return idom.getInt(index + 2) - 2;
+    }
+
+    long retainedSize(int index) {
+        return retained.getLong(index + 2);
+    }
+
+    /**
+     * Total size retained by GC roots, i.e. of all reachable objects
+     */
+    long totalRetainedSize() {
+        return retained.getLong(ROOT);
+    }
+
+    @Override
+    public void close() throws IOException {
+        idom.close();
+        retained.close();
+    }
+}
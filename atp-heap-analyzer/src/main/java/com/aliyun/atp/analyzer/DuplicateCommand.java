@@ -0,0 +1,307 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Finds primitive arrays with equal contents, including the values of strings, and ranks them
+ * by the memory deduplication would save. Memory is bounded by a count-min sketch: the first
+ * pass only counts content hashes in the sketch, the second pass counts exactly those hashes
+ * the sketch has seen at least twice, so unique arrays, usually the vast majority, are never
+ * materialized. Two more passes look for a referrer of one array of each reported group, and
+ * for the referrer of the string holding it.
+ */
+class DuplicateCommand extends Command {
+    private static final int SKETCH_DEPTH = 3;
+    private static final int SKETCH_WIDTH = 1 << 21;
+    private static final int PREVIEW_LENGTH = 40;
+
+    public DuplicateCommand(String name, String description) {
+        super(name, description, new CommandOption[]{
+            new CommandOption("-top", "20", false, null),
+            new CommandOption("-threads", String.valueOf(Runtime.getRuntime().availableProcessors()), false, null),
+            new CommandOption("-uncompressed", "", false, null)});
+    }
+
+    private static final class Sketch {
+        private final AtomicIntegerArray counters = new AtomicIntegerArray(SKETCH_DEPTH * SKETCH_WIDTH);
+
+        private static int slot(long hash, int row) {
+            // Rows use different 21-bit slices of the hash
+            return row * SKETCH_WIDTH + (int) ((hash >>> (row * 21)) & (SKETCH_WIDTH - 1));
+        }
+
+        void add(long hash) {
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                int slot = slot(hash, row);
+                if (counters.get(slot) < 2) {
+                    counters.incrementAndGet(slot);
+                }
+            }
+        }
+
+        boolean seenTwice(long hash) {
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                if (counters.get(slot(hash, row)) < 2) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static long contentHash(HprofFile hprof, int type, long elementsPos, int length) {
+        return hprof.hash(elementsPos, (long) length * hprof.typeSize(type), type);
+    }
+
+    private static final class Counter extends HeapVisitor {
+        private final HprofFile hprof;
+        private final Sketch sketch;
+        final List<long[]> classes = new ArrayList<>();
+
+        Counter(HprofFile hprof, Sketch sketch) {
+            this.hprof = hprof;
+            this.sketch = sketch;
+        }
+
+        @Override
+        void classDump(long classId, long superId, long loaderId, long staticsPos, long fieldsPos) {
+            classes.add(new long[]{classId, superId, fieldsPos});
+        }
+
+        @Override
+        void primitiveArray(long objectId, int type, long elementsPos, int length) {
+            sketch.add(contentHash(hprof, type, elementsPos, length));
+        }
+    }
+
+    private static final class Grouper extends HeapVisitor {
+        private final HprofFile hprof;
+        private final ObjectLayout layout;
+        private final Sketch sketch;
+        final LongLongMap copies = new LongLongMap();
+        final LongLongMap sizes = new LongLongMap();
+        // Id and elements position of one array of the group, the one with the lowest id
+        final LongLongMap sampleIds = new LongLongMap();
+        final LongLongMap samplePositions = new LongLongMap();
+
+        Grouper(HprofFile hprof, ObjectLayout layout, Sketch sketch) {
+            this.hprof = hprof;
+            this.layout = layout;
+            this.sketch = sketch;
+        }
+
+        void sample(long hash, long objectId, long elementsPos) {
+            if (!sampleIds.containsKey(hash) || Long.compareUnsigned(objectId, sampleIds.get(hash, 0)) < 0) {
+                sampleIds.put(hash, objectId);
+                samplePositions.put(hash, elementsPos);
+            }
+        }
+
+        @Override
+        void primitiveArray(long objectId, int type, long elementsPos, int length) {
+            long hash = contentHash(hprof, type, elementsPos, length);
+            if (sketch.seenTwice(hash)) {
+                copies.add(hash, 1);
+                sizes.put(hash, layout.primitiveArraySize(hprof, type, length));
+                sample(hash, objectId, elementsPos);
+            }
+        }
+    }
+
+    private static final class Group {
+        final long copies;
+        final long wasted;
+        final long sampleId;
+        final long samplePos;
+        long referrerPos;
+        long stringId;
+        long stringReferrerPos;
+
+        Group(long copies, long wasted, long sampleId, long samplePos) {
+            this.copies = copies;
+            this.wasted = wasted;
+            this.sampleId = sampleId;
+            this.samplePos = samplePos;
+        }
+    }
+
+    @Override
+    protected void execute(List<String> files) throws Exception {
+        if (files.size() != 1) {
+            throw new Exception("Expect exactly one heap dump file");
+        }
+        int top = getIntOption("-top");
+        int threads = getIntOption("-threads");
+        try (HprofFile hprof = HprofFile.open(files.get(0))) {
+            ObjectLayout layout = ObjectLayout.of(hprof, getOption("-uncompressed").isSpecified());
+            Sketch sketch = new Sketch();
+            ClassTable classes = new ClassTable(hprof, layout);
+            for (Counter c : hprof.scan(threads, () -> new Counter(hprof, sketch))) {
+                for (long[] info : c.classes) {
+                    classes.add(info[0], info[1], info[2]);
+                }
+            }
+
+            List<Grouper> groupers = hprof.scan(threads, () -> new Grouper(hprof, layout, sketch));
+            Grouper all = groupers.get(0);
+            for (int i = 1; i < groupers.size(); i++) {
+                Grouper g = groupers.get(i);
+                all.copies.addAll(g.copies);
+                for (int slot = 0; slot < g.sampleIds.capacity(); slot++) {
+                    long hash = g.sampleIds.keyAt(slot);
+                    if (hash != 0) {
+                        all.sizes.put(hash, g.sizes.get(hash, 0));
+                        all.sample(hash, g.sampleIds.valueAt(slot), g.samplePositions.get(hash, 0));
+                    }
+                }
+            }
+
+            long groupCount = 0;
+            long redundant = 0;
+            long wasted = 0;
+            PriorityQueue<Group> heap = new PriorityQueue<>((a, b) -> Long.compare(a.wasted, b.wasted));
+            for (int slot = 0; slot < all.copies.capacity(); slot++) {
+                long hash = all.copies.keyAt(slot);
+                long copies = all.copies.valueAt(slot);
+                if (hash == 0 || copies < 2) {
+                    // Sketch false positive, or hash 0 which the map can not hold
+                    continue;
+                }
+                Group group = new Group(copies, (copies - 1) * all.sizes.get(hash, 0),
+                    all.sampleIds.get(hash, 0), all.samplePositions.get(hash, 0));
+                groupCount++;
+                redundant += copies - 1;
+                wasted += group.wasted;
+                heap.add(group);
+                if (heap.size() > top) {
+                    heap.poll();
+                }
+            }
+            List<Group> groups = new ArrayList<>(heap);
+            Collections.sort(groups, (a, b) -> Long.compare(b.wasted, a.wasted));
+
+            findReferrers(hprof, classes, threads, groups);
+            System.out.printf("Duplicate arrays: %d groups, %d redundant copies, %d bytes wasted%n",
+                groupCount, redundant, wasted);
+            System.out.println(" num        #copies        #wasted  type    referrer                                                content");
+            System.out.println("----------------------------------------------");
+            for (int i = 0; i < groups.size(); i++) {
+                Group g = groups.get(i);
+                String type = g.stringId != 0 ? "String" : arrayName(hprof, g.samplePos);
+                String referrer = g.stringId != 0 ? ReferrerFinder.describe(hprof, classes, g.stringReferrerPos, g.stringId)
+                    : ReferrerFinder.describe(hprof, classes, g.referrerPos, g.sampleId);
+                System.out.printf("%4d: %14d %14d  %-7s %-55s %s%n", i + 1, g.copies, g.wasted, type, referrer,
+                    preview(hprof, g.samplePos));
+            }
+        }
+    }
+
+    private static void findReferrers(HprofFile hprof, ClassTable classes, int threads, List<Group> groups) throws Exception {
+        LongLongMap targets = new LongLongMap();
+        for (int i = 0; i < groups.size(); i++) {
+            targets.put(groups.get(i).sampleId, i);
+        }
+        long[] positions = ReferrerFinder.find(hprof, classes, threads, targets, groups.size());
+        long stringClass = 0;
+        for (long classId : classes.classIds()) {
+            if (hprof.className(classId).equals("java.lang.String")) {
+                stringClass = classId;
+            }
+        }
+        LongLongMap strings = new LongLongMap();
+        for (int i = 0; i < groups.size(); i++) {
+            Group g = groups.get(i);
+            g.referrerPos = positions[i];
+            long pos = positions[i];
+            if (pos != 0 && hprof.u1(pos) == HprofFile.INSTANCE_DUMP
+                && hprof.id(pos + 1 + hprof.idSize() + 4) == stringClass) {
+                g.stringId = hprof.id(pos + 1);
+                strings.put(g.stringId, i);
+            }
+        }
+        if (strings.size() > 0) {
+            positions = ReferrerFinder.find(hprof, classes, threads, strings, groups.size());
+            for (Group g : groups) {
+                if (g.stringId != 0) {
+                    g.stringReferrerPos = positions[(int) strings.get(g.stringId, 0)];
+                }
+            }
+        }
+    }
+
+    private static String arrayName(HprofFile hprof, long elementsPos) {
+        return HprofFile.primitiveArrayName(hprof.u1(elementsPos - 1));
+    }
+
+    /**
+     * Beginning of the contents, chars and bytes as text, other types as numbers
+     */
+    private static String preview(HprofFile hprof, long elementsPos) {
+        int type = hprof.u1(elementsPos - 1);
+        int length = hprof.u4(elementsPos - 5);
+        int size = hprof.typeSize(type);
+        boolean text = type == HprofFile.TYPE_CHAR || type == HprofFile.TYPE_BYTE;
+        StringBuilder sb = new StringBuilder(text ? "\"" : "[");
+        int i = 0;
+        for (; i < length && sb.length() < PREVIEW_LENGTH; i++) {
+            long pos = elementsPos + (long) i * size;
+            switch (type) {
+                case HprofFile.TYPE_CHAR:
+                case HprofFile.TYPE_BYTE:
+                    int c = type == HprofFile.TYPE_CHAR ? hprof.u2(pos) : hprof.u1(pos);
+                    sb.append(c >= 0x20 && c < 0x7f ? String.valueOf((char) c) : c == 0 ? "\\0" : String.format("\\u%04x", c));
+                    break;
+                case HprofFile.TYPE_BOOLEAN:
+                    sb.append(i > 0 ? ", " : "").append(hprof.u1(pos) != 0);
+                    break;
+                case HprofFile.TYPE_SHORT:
+                    sb.append(i > 0 ? ", " : "").append((short) hprof.u2(pos));
+                    break;
+                case HprofFile.TYPE_INT:
+                    sb.append(i > 0 ? ", " : "").append(hprof.u4(pos));
+                    break;
+                case HprofFile.TYPE_FLOAT:
+                    sb.append(i > 0 ? ", " : "").append(Float.intBitsToFloat(hprof.u4(pos)));
+                    break;
+                case HprofFile.TYPE_DOUBLE:
+                    sb.append(i > 0 ? ", " : "").append(Double.longBitsToDouble(hprof.u8(pos)));
+                    break;
+                default:
+                    sb.append(i > 0 ? ", " : "").append(hprof.u8(pos));
+                    break;
+            }
+        }
+        if (text) {
+            sb.append(i < length ? "\"..." : "\"");
+        } else {
+            sb.append(i < length ? ", ...]" : "]");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,582 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Object graph of a heap dump. Objects are numbered densely in file order and every array
+ * indexed by object number lives in a {@link MappedArray}, only classes and GC roots are kept in
+ * the Java heap. Building it takes four parallel passes over the dump: counting objects,
+ * recording ids and positions, counting references and recording references. Outbound references
+ * are stored in compressed sparse row form, i.e. references of object i are
+ * {@code edge(edgeStart(i)) .. edge(edgeStart(i + 1) - 1)}.
+ */
+final class HeapGraph implements Closeable {
+    private final HprofFile hprof;
+    private final ObjectLayout layout;
+    private final ClassTable classes;
+    // object id -> tag of the first root record naming it
+    private final LongLongMap roots = new LongLongMap();
+    private final int[] rootIndexes;
+    private final int count;
+    private final MappedArray ids;
+    private final MappedArray positions;
+    private final MappedArray sizes;
+    private final MappedArray sortedIds;
+    private final MappedArray sortedIndexes;
+    private final MappedArray edgeStart;
+    private final MappedArray edges;
+
+    private HeapGraph(HprofFile hprof, ObjectLayout layout, int threads, File tmpdir) throws IOException {
+        this.hprof = hprof;
+        this.layout = layout;
+        this.classes = new ClassTable(hprof, layout);
+
+        List<Census> census = hprof.scanUnits(threads, unit -> new Census());
+        long total = 0;
+        final int[] firstIndex = new int[census.size()];
+        for (int u = 0; u < census.size(); u++) {
+            Census c = census.get(u);
+            firstIndex[u] = (int) total;
+            total += c.objects;
+            roots.addAll(c.roots);
+            for (long[] info : c.classes) {
+                classes.add(info[0], info[1], info[2]);
+            }
+        }
+        if (total > Integer.MAX_VALUE - 2) {
+            throw new IOException("Too many objects in heap dump: " + total);
+        }
+        this.count = (int) total;
+
+        this.ids = MappedArray.longs(tmpdir, count);
+        this.positions = MappedArray.longs(tmpdir, count);
+        hprof.scanUnits(threads, unit -> new Indexer(firstIndex[unit]));
+
+        this.sortedIds = MappedArray.longs(tmpdir, count);
+        this.sortedIndexes = MappedArray.ints(tmpdir, count);
+        for (int i = 0; i < count; i++) {
+            sortedIds.putLong(i, ids.getLong(i));
+            sortedIndexes.putInt(i, i);
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            pool.invoke(new Sorter(sortedIds, sortedIndexes, 0, count));
+        } finally {
+            pool.shutdown();
+        }
+
+        this.sizes = MappedArray.longs(tmpdir, count);
+        this.edgeStart = MappedArray.longs(tmpdir, count + 1L);
+        hprof.scanUnits(threads, unit -> new ReferenceCounter(firstIndex[unit]));
+        for (int i = 0; i < count; i++) {
+            edgeStart.putLong(i + 1, edgeStart.getLong(i + 1) + edgeStart.getLong(i));
+        }
+        this.edges = MappedArray.ints(tmpdir, edgeStart.getLong(count));
+        hprof.scanUnits(threads, unit -> new ReferenceWriter(firstIndex[unit]));
+
+        int[] indexes = new int[roots.size()];
+        int n = 0;
+        for (int i = 0; i < roots.capacity(); i++) {
+            long id = roots.keyAt(i);
+            if (id != 0) {
+                int index = index(id);
+                if (index >= 0) {
+                    indexes[n++] = index;
+                }
+            }
+        }
+        this.rootIndexes = Arrays.copyOf(indexes, n);
+        Arrays.sort(rootIndexes);
+    }
+
+    static HeapGraph build(HprofFile hprof, ObjectLayout layout, int threads, File tmpdir) throws IOException {
+        return new HeapGraph(hprof, layout, threads, tmpdir);
+    }
+
+    private final class Census extends HeapVisitor {
+        final LongLongMap roots = new LongLongMap();
+        // class id, super class id and position of instance fields
+        final List<long[]> classes = new ArrayList<>();
+        int objects;
+
+        @Override
+        void root(int tag, long objectId) {
+            if (objectId != 0 && !roots.containsKey(objectId)) {
+                roots.put(objectId, tag);
+            }
+        }
+
+        @Override
+        void classDump(long classId, long superId, long loaderId, long staticsPos, long fieldsPos) {
+            classes.add(new long[]{classId, superId, fieldsPos});
+            objects++;
+        }
+
+        @Override
+        void instance(long objectId, long classId, long dataPos, int dataLength) {
+            objects++;
+        }
+
+        @Override
+        void objectArray(long objectId, long arrayClassId, long elementsPos, int length) {
+            objects++;
+        }
+
+        @Override
+        void primitiveArray(long objectId, int type, long elementsPos, int length) {
+            objects++;
+        }
+    }
+
+    private final class Indexer extends HeapVisitor {
+        int index;
+
+        Indexer(int first) {
+            this.index = first;
+        }
+
+        private void add(long objectId) {
+            ids.putLong(index, objectId);
+            positions.putLong(index, record);
+            index++;
+        }
+
+        @Override
+        void classDump(long classId, long superId, long loaderId, long staticsPos, long fieldsPos) {
+            add(classId);
+        }
+
+        @Override
+        void instance(long objectId, long classId, long dataPos, int dataLength) {
+            add(objectId);
+        }
+
+        @Override
+        void objectArray(long objectId, long arrayClassId, long elementsPos, int length) {
+            add(objectId);
+        }
+
+        @Override
+        void primitiveArray(long objectId, int type, long elementsPos, int length) {
+            add(objectId);
+        }
+    }
+
+    /**
+     * Enumerates shallow size and non-null outbound references of every object. Instances refer
+     * to their class, classes to their super class, loader, signers, protection domain and
+     * static fields.
+     */
+    private abstract class ReferenceScanner extends HeapVisitor {
+        int index;
+
+        ReferenceScanner(int first) {
+            this.index = first;
+        }
+
+        abstract void object(int index, long size);
+
+        abstract void reference(int index, long objectId);
+
+        private void ref(long objectId) {
+            if (objectId != 0) {
+                reference(index, objectId);
+            }
+        }
+
+        @Override
+        void classDump(long classId, long superId, long loaderId, long staticsPos, long fieldsPos) {
+            int idSize = hprof.idSize();
+            ref(superId);
+            ref(loaderId);
+            ref(hprof.id(record + 1 + 3L * idSize + 4));
+            ref(hprof.id(record + 1 + 4L * idSize + 4));
+            int statics = hprof.u2(staticsPos);
+            long pos = staticsPos + 2;
+            long bytes = 0;
+            for (int i = 0; i < statics; i++) {
+                int type = hprof.u1(pos + idSize);
+                if (type == HprofFile.TYPE_OBJECT) {
+                    ref(hprof.id(pos + idSize + 1));
+                }
+                bytes += layout.fieldSize(hprof, type);
+                pos += idSize + 1 + hprof.typeSize(type);
+            }
+            object(index++, layout.instanceSize(bytes));
+        }
+
+        @Override
+        void instance(long objectId, long classId, long dataPos, int dataLength) {
+            int[] references = classes.references(classId);
+            ref(classId);
+            if (references != null) {
+                for (int offset : references) {
+                    if (offset + hprof.idSize() <= dataLength) {
+                        ref(hprof.id(dataPos + offset));
+                    }
+                }
+            }
+            long fieldBytes = classes.fieldBytes(classId);
+            object(index++, layout.instanceSize(fieldBytes >= 0 ? fieldBytes : dataLength));
+        }
+
+        @Override
+        void objectArray(long objectId, long arrayClassId, long elementsPos, int length) {
+            ref(arrayClassId);
+            for (int i = 0; i < length; i++) {
+                ref(hprof.id(elementsPos + (long) i * hprof.idSize()));
+            }
+            object(index++, layout.objectArraySize(length));
+        }
+
+        @Override
+        void primitiveArray(long objectId, int type, long elementsPos, int length) {
+            object(index++, layout.primitiveArraySize(hprof, type, length));
+        }
+    }
+
+    private final class ReferenceCounter extends ReferenceScanner {
+        private long references;
+
+        ReferenceCounter(int first) {
+            super(first);
+        }
+
+        @Override
+        void object(int index, long size) {
+            sizes.putLong(index, size);
+            edgeStart.putLong(index + 1L, references);
+            references = 0;
+        }
+
+        @Override
+        void reference(int index, long objectId) {
+            references++;
+        }
+    }
+
+    private final class ReferenceWriter extends ReferenceScanner {
+        private long cursor = -1;
+
+        ReferenceWriter(int first) {
+            super(first);
+        }
+
+        @Override
+        void object(int index, long size) {
+            cursor = -1;
+        }
+
+        @Override
+        void reference(int index, long objectId) {
+            if (cursor == -1) {
+                cursor = edgeStart.getLong(index);
+            }
+            edges.putInt(cursor++, index(objectId));
+        }
+    }
+
+    /**
+     * Sorts ids together with their object numbers, halves of large ranges are sorted in parallel
+     */
+    // Serializable only as a ForkJoinTask, it is never serialized
+    @SuppressWarnings("serial")
+    private static final class Sorter extends RecursiveAction {
+        private static final long PARALLEL_THRESHOLD = 1 << 16;
+        private static final int INSERTION_THRESHOLD = 16;
+
+        private final MappedArray keys;
+        private final MappedArray values;
+        private final long from;
+        private final long to;
+
+        Sorter(MappedArray keys, MappedArray values, long from, long to) {
+            this.keys = keys;
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_THRESHOLD) {
+                long mid = partition(from, to);
+                invokeAll(new Sorter(keys, values, from, mid), new Sorter(keys, values, mid, to));
+            } else {
+                sort(from, to);
+            }
+        }
+
+        private void sort(long lo, long hi) {
+            while (hi - lo > INSERTION_THRESHOLD) {
+                long mid = partition(lo, hi);
+                // Recurse into the smaller half to bound the stack depth
+                if (mid - lo < hi - mid) {
+                    sort(lo, mid);
+                    lo = mid;
+                } else {
+                    sort(mid, hi);
+                    hi = mid;
+                }
+            }
+            for (long i = lo + 1; i < hi; i++) {
+                for (long j = i; j > lo && keys.getLong(j - 1) > keys.getLong(j); j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        /**
+         * Hoare partition of [lo, hi) around the median of three random elements, returns a split
+         * point in (lo, hi). Ids in a dump are sorted runs in region order, which defeats fixed
+         * pivot positions.
+         */
+        private long partition(long lo, long hi) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long x = random.nextLong(lo, hi);
+            long y = random.nextLong(lo, hi);
+            long z = random.nextLong(lo, hi);
+            long a = keys.getLong(x);
+            long b = keys.getLong(y);
+            long c = keys.getLong(z);
+            long median = a < b ? (b < c ? y : (a < c ? z : x)) : (a < c ? x : (b < c ? z : y));
+            swap(lo, median);
+            long pivot = keys.getLong(lo);
+            long i = lo - 1;
+            long j = hi;
+            while (true) {
+                do {
+                    i++;
+                } while (keys.getLong(i) < pivot);
+                do {
+                    j--;
+                } while (keys.getLong(j) > pivot);
+                if (i >= j) {
+                    return j + 1;
+                }
+                swap(i, j);
+            }
+        }
+
+        private void swap(long i, long j) {
+            long key = keys.getLong(i);
+            keys.putLong(i, keys.getLong(j));
+            keys.putLong(j, key);
+            int value = values.getInt(i);
+            values.putInt(i, values.getInt(j));
+            values.putInt(j, value);
+        }
+    }
+
+    HprofFile hprof() {
+        return hprof;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long id(int index) {
+        return ids.getLong(index);
+    }
+
+    long size(int index) {
+        return sizes.getLong(index);
+    }
+
+    long edgeStart(int index) {
+        return edgeStart.getLong(index);
+    }
+
+    /**
+     * Object number referenced by edge {@code e}, -1 if the object is missing from the dump
+     */
+    int edge(long e) {
+        return edges.getInt(e);
+    }
+
+    long edgeCount() {
+        return edges.length();
+    }
+
+    int[] rootIndexes() {
+        return rootIndexes;
+    }
+
+    /**
+     * Object number of object id, -1 if the object is missing from the dump
+     */
+    int index(long objectId) {
+        long lo = 0;
+        long hi = count - 1L;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long id = sortedIds.getLong(mid);
+            if (id < objectId) {
+                lo = mid + 1;
+            } else if (id > objectId) {
+                hi = mid - 1;
+            } else {
+                return sortedIndexes.getInt(mid);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Class object id of an instance or object array, 0 for classes and primitive arrays
+     */
+    long classId(int index) {
+        long pos = positions.getLong(index);
+        switch (hprof.u1(pos)) {
+            case HprofFile.INSTANCE_DUMP:
+                return hprof.id(pos + 1 + hprof.idSize() + 4);
+            case HprofFile.OBJECT_ARRAY_DUMP:
+                return hprof.id(pos + 1 + hprof.idSize() + 8);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Key grouping objects by type: class object id for instances and object arrays, negative
+     * basic type for primitive arrays, 0 for classes
+     */
+    long typeKey(int index) {
+        long pos = positions.getLong(index);
+        if (hprof.u1(pos) == HprofFile.PRIMITIVE_ARRAY_DUMP) {
+            return -hprof.u1(pos + 1 + hprof.idSize() + 8);
+        }
+        return classId(index);
+    }
+
+    String typeKeyName(long key) {
+        return key < 0 ? HprofFile.primitiveArrayName((int) -key) : hprof.className(key);
+    }
+
+    String typeName(int index) {
+        long pos = positions.getLong(index);
+        switch (hprof.u1(pos)) {
+            case HprofFile.CLASS_DUMP:
+                return "class " + hprof.className(id(index));
+            case HprofFile.PRIMITIVE_ARRAY_DUMP:
+                return HprofFile.primitiveArrayName(hprof.u1(pos + 1 + hprof.idSize() + 8));
+            default:
+                return hprof.className(classId(index));
+        }
+    }
+
+    String describe(int index) {
+        return typeName(index) + " @ 0x" + Long.toHexString(id(index));
+    }
+
+    /**
+     * Kind of GC root of the object, null if it is not a root
+     */
+    String rootKind(int index) {
+        switch ((int) roots.get(id(index), 0)) {
+            case 0:
+                return null;
+            case HprofFile.ROOT_JNI_GLOBAL:
+                return "JNI global";
+            case HprofFile.ROOT_JNI_LOCAL:
+                return "JNI local";
+            case HprofFile.ROOT_JAVA_FRAME:
+                return "Java frame";
+            case HprofFile.ROOT_NATIVE_STACK:
+                return "native stack";
+            case HprofFile.ROOT_STICKY_CLASS:
+                return "system class";
+            case HprofFile.ROOT_THREAD_BLOCK:
+                return "thread block";
+            case HprofFile.ROOT_MONITOR_USED:
+                return "busy monitor";
+            case HprofFile.ROOT_THREAD_OBJECT:
+                return "thread object";
+            default:
+                return "unknown";
+        }
+    }
+
+    /**
+     * Name of the field or element of object {@code from} that refers to {@code to}
+     */
+    String referenceName(int from, int to) {
+        long pos = positions.getLong(from);
+        long target = id(to);
+        int idSize = hprof.idSize();
+        long p = pos + 1;
+        switch (hprof.u1(pos)) {
+            case HprofFile.INSTANCE_DUMP: {
+                String name = classes.referenceName(classId(from), p + 2L * idSize + 8, target);
+                return name != null ? "." + name : "<class>";
+            }
+            case HprofFile.OBJECT_ARRAY_DUMP: {
+                int length = hprof.u4(p + idSize + 4);
+                long elements = p + 2L * idSize + 8;
+                for (int i = 0; i < length; i++) {
+                    if (hprof.id(elements + (long) i * idSize) == target) {
+                        return "[" + i + "]";
+                    }
+                }
+                return "<class>";
+            }
+            case HprofFile.CLASS_DUMP: {
+                if (hprof.id(p + idSize + 4) == target) {
+                    return "<super>";
+                }
+                if (hprof.id(p + 2L * idSize + 4) == target) {
+                    return "<classloader>";
+                }
+                String name = hprof.staticFieldName(pos, target);
+                if (name != null) {
+                    return "." + name + " (static)";
+                }
+                return "<signers or protection domain>";
+            }
+            default:
+                return "?";
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        ids.close();
+        positions.close();
+        sizes.close();
+        sortedIds.close();
+        sortedIndexes.close();
+        edgeStart.close();
+        edges.close();
+    }
+}
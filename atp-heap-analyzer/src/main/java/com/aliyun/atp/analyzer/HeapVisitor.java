@@ -0,0 +1,54 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+/**
+ * Callbacks for sub-records of HPROF heap dump segments. Positions are absolute file offsets
+ * which can be decoded with {@link HprofFile}. One visitor instance is only used by one thread.
+ */
+abstract class HeapVisitor {
+    // Position of the sub-record being visited
+    long record;
+
+    void root(int tag, long objectId) {
+    }
+
+    /**
+     * @param fieldsPos position of instance field count, each field is a name id and a type byte
+     * @param staticsPos position of static field count, each field is a name id, a type byte and a value
+     */
+    void classDump(long classId, long superId, long loaderId, long staticsPos, long fieldsPos) {
+    }
+
+    /**
+     * @param dataPos position of field values, fields of the class come first, then of its super classes
+     */
+    void instance(long objectId, long classId, long dataPos, int dataLength) {
+    }
+
+    void objectArray(long objectId, long arrayClassId, long elementsPos, int length) {
+    }
+
+    void primitiveArray(long objectId, int type, long elementsPos, int length) {
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+class HistogramCommand extends Command {
+    public HistogramCommand(String name, String description) {
+        super(name, description, new CommandOption[]{
+            new CommandOption("-top", "0", false, null),
+            new CommandOption("-threads", String.valueOf(Runtime.getRuntime().availableProcessors()), false, null),
+            new CommandOption("-uncompressed", "", false, null)});
+    }
+
+    /**
+     * Counts of one scanning thread, keyed by class object id. Sizes of instances are only known
+     * once all class dumps have been seen, so they are computed after merging.
+     */
+    private static final class Counter extends HeapVisitor {
+        private final HprofFile hprof;
+        private final ObjectLayout layout;
+        final LongLongMap instances = new LongLongMap(1 << 12);
+        final LongLongMap arrays = new LongLongMap(1 << 8);
+        final LongLongMap arrayBytes = new LongLongMap(1 << 8);
+        final long[] primitiveArrays = new long[HprofFile.TYPE_LONG + 1];
+        final long[] primitiveArrayBytes = new long[HprofFile.TYPE_LONG + 1];
+        final LongLongMap superClasses = new LongLongMap(1 << 12);
+        final LongLongMap fieldBytes = new LongLongMap(1 << 12);
+
+        Counter(HprofFile hprof, ObjectLayout layout) {
+            this.hprof = hprof;
+            this.layout = layout;
+        }
+
+        @Override
+        void classDump(long classId, long superId, long loaderId, long staticsPos, long fieldsPos) {
+            int count = hprof.u2(fieldsPos);
+            long bytes = 0;
+            long pos = fieldsPos + 2;
+            for (int i = 0; i < count; i++) {
+                bytes += layout.fieldSize(hprof, hprof.u1(pos + hprof.idSize()));
+                pos += hprof.idSize() + 1;
+            }
+            superClasses.put(classId, superId);
+            fieldBytes.put(classId, bytes);
+        }
+
+        @Override
+        void instance(long objectId, long classId, long dataPos, int dataLength) {
+            instances.add(classId, 1);
+        }
+
+        @Override
+        void objectArray(long objectId, long arrayClassId, long elementsPos, int length) {
+            arrays.add(arrayClassId, 1);
+            arrayBytes.add(arrayClassId, layout.objectArraySize(length));
+        }
+
+        @Override
+        void primitiveArray(long objectId, int type, long elementsPos, int length) {
+            primitiveArrays[type]++;
+            primitiveArrayBytes[type] += layout.primitiveArraySize(hprof, type, length);
+        }
+    }
+
+    static final class Row {
+        final String name;
+        final long count;
+        final long bytes;
+
+        Row(String name, long count, long bytes) {
+            this.name = name;
+            this.count = count;
+            this.bytes = bytes;
+        }
+    }
+
+    @Override
+    protected void execute(List<String> files) throws Exception {
+        if (files.size() != 1) {
+            throw new Exception("Expect exactly one heap dump file");
+        }
+        int top = getIntOption("-top");
+        int threads = getIntOption("-threads");
+        boolean uncompressed = getOption("-uncompressed").isSpecified();
+        try (HprofFile hprof = HprofFile.open(files.get(0))) {
+            print(histogram(hprof, ObjectLayout.of(hprof, uncompressed), threads), top);
+        }
+    }
+
+    /**
+     * Instance count and shallow bytes per class in no particular order, array classes and
+     * primitive arrays included
+     */
+    static List<Row> histogram(HprofFile hprof, ObjectLayout layout, int threads) throws IOException {
+        List<Counter> counters = hprof.scan(threads, () -> new Counter(hprof, layout));
+        Counter total = counters.get(0);
+        for (int i = 1; i < counters.size(); i++) {
+            Counter c = counters.get(i);
+            total.instances.addAll(c.instances);
+            total.arrays.addAll(c.arrays);
+            total.arrayBytes.addAll(c.arrayBytes);
+            total.superClasses.addAll(c.superClasses);
+            total.fieldBytes.addAll(c.fieldBytes);
+            for (int t = 0; t < total.primitiveArrays.length; t++) {
+                total.primitiveArrays[t] += c.primitiveArrays[t];
+                total.primitiveArrayBytes[t] += c.primitiveArrayBytes[t];
+            }
+        }
+
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < total.instances.capacity(); i++) {
+            long classId = total.instances.keyAt(i);
+            if (classId != 0) {
+                long count = total.instances.valueAt(i);
+                long size = layout.instanceSize(instanceFieldBytes(total, classId));
+                rows.add(new Row(hprof.className(classId), count, count * size));
+            }
+        }
+        for (int i = 0; i < total.arrays.capacity(); i++) {
+            long classId = total.arrays.keyAt(i);
+            if (classId != 0) {
+                rows.add(new Row(hprof.className(classId), total.arrays.valueAt(i), total.arrayBytes.get(classId, 0)));
+            }
+        }
+        for (int t = 0; t < total.primitiveArrays.length; t++) {
+            if (total.primitiveArrays[t] != 0) {
+                rows.add(new Row(HprofFile.primitiveArrayName(t), total.primitiveArrays[t], total.primitiveArrayBytes[t]));
+            }
+        }
+        return rows;
+    }
+
+    private static long instanceFieldBytes(Counter total, long classId) {
+        long bytes = 0;
+        for (long c = classId; c != 0; c = total.superClasses.get(c, 0)) {
+            bytes += total.fieldBytes.get(c, 0);
+        }
+        return bytes;
+    }
+
+    private static void print(List<Row> rows, int top) {
+        Collections.sort(rows, (a, b) -> Long.compare(b.bytes, a.bytes));
+
+        long instances = 0;
+        long bytes = 0;
+        for (Row row : rows) {
+            instances += row.count;
+            bytes += row.bytes;
+        }
+        System.out.println(" num     #instances         #bytes  class name");
+        System.out.println("----------------------------------------------");
+        int limit = top > 0 ? Math.min(top, rows.size()) : rows.size();
+        for (int i = 0; i < limit; i++) {
+            Row row = rows.get(i);
+            System.out.printf("%4d: %13d %14d  %s%n", i + 1, row.count, row.bytes, row.name);
+        }
+        System.out.printf("Total %13d %14d%n", instances, bytes);
+    }
+}
@@ -0,0 +1,492 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Read-only, memory-mapped view of an HPROF file. Opening it scans the top level records once
+ * to index names, classes and heap dump segments, the heap dump itself is only read by
+ * {@link #scan(int, Supplier)}, which splits segments into units and visits them on several
+ * threads. Nothing but the indexes lives in Java heap.
+ */
+final class HprofFile implements Closeable {
+    static final int TAG_UTF8 = 0x01;
+    static final int TAG_LOAD_CLASS = 0x02;
+    static final int TAG_HEAP_DUMP = 0x0C;
+    static final int TAG_HEAP_DUMP_SEGMENT = 0x1C;
+
+    static final int ROOT_UNKNOWN = 0xFF;
+    static final int ROOT_JNI_GLOBAL = 0x01;
+    static final int ROOT_JNI_LOCAL = 0x02;
+    static final int ROOT_JAVA_FRAME = 0x03;
+    static final int ROOT_NATIVE_STACK = 0x04;
+    static final int ROOT_STICKY_CLASS = 0x05;
+    static final int ROOT_THREAD_BLOCK = 0x06;
+    static final int ROOT_MONITOR_USED = 0x07;
+    static final int ROOT_THREAD_OBJECT = 0x08;
+    static final int CLASS_DUMP = 0x20;
+    static final int INSTANCE_DUMP = 0x21;
+    static final int OBJECT_ARRAY_DUMP = 0x22;
+    static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+
+    static final int TYPE_OBJECT = 2;
+    static final int TYPE_BOOLEAN = 4;
+    static final int TYPE_CHAR = 5;
+    static final int TYPE_FLOAT = 6;
+    static final int TYPE_DOUBLE = 7;
+    static final int TYPE_BYTE = 8;
+    static final int TYPE_SHORT = 9;
+    static final int TYPE_INT = 10;
+    static final int TYPE_LONG = 11;
+
+    private static final String MAGIC = "JAVA PROFILE ";
+    // Each page is mapped with a small overlap, so that any value starting in a page can be read from it
+    private static final int PAGE_SHIFT = 30;
+    private static final long PAGE_MASK = (1L << PAGE_SHIFT) - 1;
+    private static final int PAGE_OVERLAP = 16;
+    // Large segments are split into units of roughly this size for parallel visiting
+    private static final long UNIT_SIZE = 64L * 1024 * 1024;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer[] pages;
+    private final long length;
+    private final int idSize;
+    private final long timestamp;
+    // name id -> position of UTF8 record
+    private final LongLongMap utf8 = new LongLongMap(1 << 16);
+    // class object id -> name id
+    private final LongLongMap classNames = new LongLongMap(1 << 14);
+    // start and end of every heap dump record body
+    private final List<long[]> segments = new ArrayList<>();
+    private List<long[]> units;
+
+    private HprofFile(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "r");
+        this.length = raf.length();
+        FileChannel channel = raf.getChannel();
+        int pageCount = (int) ((length + PAGE_MASK) >>> PAGE_SHIFT);
+        this.pages = new MappedByteBuffer[Math.max(pageCount, 1)];
+        for (int i = 0; i < pageCount; i++) {
+            long start = (long) i << PAGE_SHIFT;
+            pages[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length - start, PAGE_MASK + 1 + PAGE_OVERLAP));
+        }
+
+        long pos = 0;
+        StringBuilder magic = new StringBuilder();
+        while (pos < length && u1(pos) != 0) {
+            magic.append((char) u1(pos++));
+        }
+        if (!magic.toString().startsWith(MAGIC)) {
+            if (length >= 2 && u1(0) == 0x1f && u1(1) == 0x8b) {
+                throw new IOException(file + " is gzip compressed, decompress it before analyzing");
+            }
+            throw new IOException(file + " is not an HPROF file");
+        }
+        pos++;
+        this.idSize = u4(pos);
+        if (idSize != 4 && idSize != 8) {
+            throw new IOException("Unsupported identifier size " + idSize);
+        }
+        this.timestamp = u8(pos + 4);
+        pos += 12;
+        index(pos);
+    }
+
+    static HprofFile open(String path) throws IOException {
+        return new HprofFile(new File(path));
+    }
+
+    private void index(long pos) throws IOException {
+        while (pos + 9 <= length) {
+            int tag = u1(pos);
+            long bodyLength = u4(pos + 5) & 0xffffffffL;
+            long body = pos + 9;
+            if (body + bodyLength > length) {
+                throw new IOException("Truncated HPROF record at " + pos);
+            }
+            switch (tag) {
+                case TAG_UTF8:
+                    utf8.put(id(body), pos);
+                    break;
+                case TAG_LOAD_CLASS:
+                    classNames.put(id(body + 4), id(body + 8 + idSize));
+                    break;
+                case TAG_HEAP_DUMP:
+                case TAG_HEAP_DUMP_SEGMENT:
+                    segments.add(new long[]{body, body + bodyLength});
+                    break;
+                default:
+                    break;
+            }
+            pos = body + bodyLength;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long length() {
+        return length;
+    }
+
+    int idSize() {
+        return idSize;
+    }
+
+    long timestamp() {
+        return timestamp;
+    }
+
+    int u1(long pos) {
+        return pages[(int) (pos >>> PAGE_SHIFT)].get((int) (pos & PAGE_MASK)) & 0xff;
+    }
+
+    int u2(long pos) {
+        return pages[(int) (pos >>> PAGE_SHIFT)].getShort((int) (pos & PAGE_MASK)) & 0xffff;
+    }
+
+    int u4(long pos) {
+        return pages[(int) (pos >>> PAGE_SHIFT)].getInt((int) (pos & PAGE_MASK));
+    }
+
+    long u8(long pos) {
+        return pages[(int) (pos >>> PAGE_SHIFT)].getLong((int) (pos & PAGE_MASK));
+    }
+
+    long id(long pos) {
+        return idSize == 8 ? u8(pos) : u4(pos) & 0xffffffffL;
+    }
+
+    void read(long pos, byte[] dst, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            dst[off + i] = (byte) u1(pos + i);
+        }
+    }
+
+    /**
+     * 64-bit hash of {@code length} bytes at {@code pos}, mixed with {@code seed}
+     */
+    long hash(long pos, long length, long seed) {
+        long h = seed ^ (length * 0x9E3779B97F4A7C15L);
+        long i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h = Long.rotateLeft(h ^ (u8(pos + i) * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+        }
+        for (; i < length; i++) {
+            h = (h ^ u1(pos + i)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        return h ^ (h >>> 33);
+    }
+
+    int typeSize(int type) {
+        switch (type) {
+            case TYPE_OBJECT:
+                return idSize;
+            case TYPE_BOOLEAN:
+            case TYPE_BYTE:
+                return 1;
+            case TYPE_CHAR:
+            case TYPE_SHORT:
+                return 2;
+            case TYPE_FLOAT:
+            case TYPE_INT:
+                return 4;
+            case TYPE_DOUBLE:
+            case TYPE_LONG:
+                return 8;
+            default:
+                throw new IllegalStateException("Unknown basic type " + type);
+        }
+    }
+
+    String utf8(long nameId) {
+        long pos = utf8.get(nameId, -1);
+        if (pos == -1) {
+            return null;
+        }
+        int len = (int) ((u4(pos + 5) & 0xffffffffL) - idSize);
+        byte[] b = new byte[len];
+        read(pos + 9 + idSize, b, 0, len);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Name of class in the form of jmap histogram, e.g. java.lang.String, [Ljava.lang.Object;
+     */
+    String className(long classId) {
+        String name = utf8(classNames.get(classId, 0));
+        return name != null ? name.replace('/', '.') : "<unknown class 0x" + Long.toHexString(classId) + ">";
+    }
+
+    static String primitiveArrayName(int type) {
+        switch (type) {
+            case TYPE_BOOLEAN:
+                return "[Z";
+            case TYPE_CHAR:
+                return "[C";
+            case TYPE_FLOAT:
+                return "[F";
+            case TYPE_DOUBLE:
+                return "[D";
+            case TYPE_BYTE:
+                return "[B";
+            case TYPE_SHORT:
+                return "[S";
+            case TYPE_INT:
+                return "[I";
+            case TYPE_LONG:
+                return "[J";
+            default:
+                throw new IllegalStateException("Unknown basic type " + type);
+        }
+    }
+
+    /**
+     * Visit sub-records in [pos, end) and return the position after the last visited one
+     */
+    long walk(long pos, long end, HeapVisitor v) throws IOException {
+        final int id = idSize;
+        while (pos < end) {
+            int tag = u1(pos);
+            long p = pos + 1;
+            v.record = pos;
+            switch (tag) {
+                case ROOT_UNKNOWN:
+                case ROOT_STICKY_CLASS:
+                case ROOT_MONITOR_USED:
+                    v.root(tag, id(p));
+                    pos = p + id;
+                    break;
+                case ROOT_JNI_GLOBAL:
+                    v.root(tag, id(p));
+                    pos = p + 2L * id;
+                    break;
+                case ROOT_JNI_LOCAL:
+                case ROOT_JAVA_FRAME:
+                case ROOT_THREAD_OBJECT:
+                    v.root(tag, id(p));
+                    pos = p + id + 8;
+                    break;
+                case ROOT_NATIVE_STACK:
+                case ROOT_THREAD_BLOCK:
+                    v.root(tag, id(p));
+                    pos = p + id + 4;
+                    break;
+                case CLASS_DUMP: {
+                    long q = p + 7L * id + 8;
+                    int constants = u2(q);
+                    q += 2;
+                    for (int i = 0; i < constants; i++) {
+                        q += 3 + typeSize(u1(q + 2));
+                    }
+                    long statics = q;
+                    int staticCount = u2(q);
+                    q += 2;
+                    for (int i = 0; i < staticCount; i++) {
+                        q += id + 1 + typeSize(u1(q + id));
+                    }
+                    long fields = q;
+                    q += 2 + (long) u2(q) * (id + 1);
+                    v.classDump(id(p), id(p + id + 4), id(p + 2L * id + 4), statics, fields);
+                    pos = q;
+                    break;
+                }
+                case INSTANCE_DUMP: {
+                    int n = u4(p + 2L * id + 4);
+                    v.instance(id(p), id(p + id + 4), p + 2L * id + 8, n);
+                    pos = p + 2L * id + 8 + n;
+                    break;
+                }
+                case OBJECT_ARRAY_DUMP: {
+                    int n = u4(p + id + 4);
+                    v.objectArray(id(p), id(p + id + 8), p + 2L * id + 8, n);
+                    pos = p + 2L * id + 8 + (long) n * id;
+                    break;
+                }
+                case PRIMITIVE_ARRAY_DUMP: {
+                    int n = u4(p + id + 4);
+                    int type = u1(p + id + 8);
+                    v.primitiveArray(id(p), type, p + id + 9, n);
+                    pos = p + id + 9 + (long) n * typeSize(type);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown heap dump sub-record 0x" + Integer.toHexString(tag) + " at " + pos);
+            }
+        }
+        return pos;
+    }
+
+    private synchronized List<long[]> units() throws IOException {
+        if (units != null) {
+            return units;
+        }
+        // Sub-records carry no sync marker, so boundaries inside a large segment are found by
+        // skipping over record headers once
+        HeapVisitor skipper = new HeapVisitor() {
+        };
+        List<long[]> result = new ArrayList<>();
+        for (long[] segment : segments) {
+            long start = segment[0];
+            while (segment[1] - start > UNIT_SIZE) {
+                long split = start;
+                while (split - start < UNIT_SIZE) {
+                    split = walk(split, split + 1, skipper);
+                }
+                result.add(new long[]{start, split});
+                start = split;
+            }
+            if (start < segment[1]) {
+                result.add(new long[]{start, segment[1]});
+            }
+        }
+        units = result;
+        return result;
+    }
+
+    /**
+     * Name of the static reference field holding {@code target} in the class dump sub-record at
+     * {@code record}, null if there is none
+     */
+    String staticFieldName(long record, long target) {
+        long q = record + 1 + 7L * idSize + 8;
+        int constants = u2(q);
+        q += 2;
+        for (int i = 0; i < constants; i++) {
+            q += 3 + typeSize(u1(q + 2));
+        }
+        int statics = u2(q);
+        q += 2;
+        for (int i = 0; i < statics; i++) {
+            int type = u1(q + idSize);
+            if (type == TYPE_OBJECT && id(q + idSize + 1) == target) {
+                return utf8(id(q));
+            }
+            q += idSize + 1 + typeSize(type);
+        }
+        return null;
+    }
+
+    private interface UnitTask {
+        void run(int unit, long start, long end, int worker) throws IOException;
+    }
+
+    /**
+     * Run {@code task} for every unit on {@code threads} threads. Units are handed out in file
+     * order, so visiting is sequential for a single thread.
+     */
+    private void parallel(int threads, UnitTask task) throws IOException {
+        final List<long[]> work = units();
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "ATP heap scanner");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final int worker = i;
+                futures.add(executor.submit(() -> {
+                    int u;
+                    while ((u = next.getAndIncrement()) < work.size()) {
+                        long[] unit = work.get(u);
+                        task.run(u, unit[0], unit[1], worker);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while scanning " + file);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to scan " + file + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    int unitCount() throws IOException {
+        return units().size();
+    }
+
+    /**
+     * Visit the whole heap dump on {@code threads} threads, every thread gets its own visitor
+     * from {@code factory}. Returns all visitors for merging.
+     */
+    <V extends HeapVisitor> List<V> scan(int threads, Supplier<V> factory) throws IOException {
+        final List<V> visitors = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            visitors.add(factory.get());
+        }
+        parallel(visitors.size(), (unit, start, end, worker) -> walk(start, end, visitors.get(worker)));
+        return visitors;
+    }
+
+    /**
+     * Visit the whole heap dump on {@code threads} threads with a new visitor for every unit,
+     * so that visitors can rely on the order of records. Returns visitors in file order.
+     */
+    <V extends HeapVisitor> List<V> scanUnits(int threads, IntFunction<V> factory) throws IOException {
+        final AtomicReferenceArray<V> visitors = new AtomicReferenceArray<>(unitCount());
+        parallel(Math.max(1, threads), (unit, start, end, worker) -> {
+            V visitor = factory.apply(unit);
+            walk(start, end, visitor);
+            visitors.set(unit, visitor);
+        });
+        List<V> result = new ArrayList<>();
+        for (int i = 0; i < visitors.length(); i++) {
+            result.add(visitors.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,509 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rewrites an HPROF stream in a single sequential pass, so it works on pipes as well as files.
+ * Primitive array payloads are kept, zeroed or stripped, and instances and arrays may be
+ * sampled. Whether an object is kept only depends on its id, so references can be decided
+ * before their target is seen: references to dropped objects become null and GC root records
+ * naming them are removed. Classes are always kept.
+ * <p>
+ * Heap dump records are re-chunked into segments of bounded size, because the length of a
+ * segment has to be known before its body is written.
+ */
+final class HprofReducer {
+    enum ArrayMode {
+        KEEP, ZERO, STRIP
+    }
+
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int TAG_HEAP_DUMP_END = 0x2C;
+
+    private static final class ClassInfo {
+        final long superId;
+        final byte[] fieldTypes;
+        // Offsets of reference fields in instance data, super classes included
+        int[] references;
+
+        ClassInfo(long superId, byte[] fieldTypes) {
+            this.superId = superId;
+            this.fieldTypes = fieldTypes;
+        }
+    }
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ArrayMode arrayMode;
+    private final int sample;
+    private final Map<Long, ClassInfo> classes = new HashMap<>();
+    private final LongLongMap classIds = new LongLongMap(1 << 14);
+    private final ByteArrayOutputStream segment = new ByteArrayOutputStream(SEGMENT_SIZE);
+    private final DataOutputStream segmentOut = new DataOutputStream(segment);
+    private final byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+    private int idSize;
+    // Position in the current heap dump record
+    private long consumed;
+
+    private long objects;
+    private long droppedObjects;
+    private long droppedArrayBytes;
+
+    HprofReducer(InputStream in, OutputStream out, ArrayMode arrayMode, int sample) {
+        this.in = new DataInputStream(in);
+        this.out = new DataOutputStream(out);
+        this.arrayMode = arrayMode;
+        this.sample = Math.max(1, sample);
+    }
+
+    void reduce() throws IOException {
+        StringBuilder magic = new StringBuilder();
+        int c;
+        while ((c = in.read()) > 0) {
+            magic.append((char) c);
+        }
+        if (c != 0 || !magic.toString().startsWith("JAVA PROFILE ")) {
+            throw new IOException("Input is not an HPROF stream");
+        }
+        out.writeBytes(magic.toString());
+        out.writeByte(0);
+        idSize = in.readInt();
+        out.writeInt(idSize);
+        out.writeLong(in.readLong());
+
+        int tag;
+        while ((tag = in.read()) != -1) {
+            int time = in.readInt();
+            long length = in.readInt() & 0xffffffffL;
+            switch (tag) {
+                case HprofFile.TAG_LOAD_CLASS:
+                    byte[] body = readBytes((int) length);
+                    classIds.put(id(body, 4), 1);
+                    writeRecordHeader(tag, time, length);
+                    out.write(body);
+                    break;
+                case HprofFile.TAG_HEAP_DUMP:
+                case HprofFile.TAG_HEAP_DUMP_SEGMENT:
+                    consumed = 0;
+                    while (consumed < length) {
+                        subRecord();
+                    }
+                    flushSegment();
+                    if (tag == HprofFile.TAG_HEAP_DUMP) {
+                        // Old style single heap dump record is written as segments, close them
+                        writeRecordHeader(TAG_HEAP_DUMP_END, 0, 0);
+                    }
+                    break;
+                default:
+                    writeRecordHeader(tag, time, length);
+                    copy(length, out);
+                    break;
+            }
+        }
+        out.flush();
+    }
+
+    long objects() {
+        return objects;
+    }
+
+    long droppedObjects() {
+        return droppedObjects;
+    }
+
+    long droppedArrayBytes() {
+        return droppedArrayBytes;
+    }
+
+    private void writeRecordHeader(int tag, int time, long length) throws IOException {
+        out.writeByte(tag);
+        out.writeInt(time);
+        out.writeInt((int) length);
+    }
+
+    private boolean keep(long objectId) {
+        if (sample == 1 || objectId == 0 || classIds.containsKey(objectId)) {
+            return true;
+        }
+        // Mix the id since object addresses are aligned and often strided
+        long h = objectId * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        return Long.remainderUnsigned(h, sample) == 0;
+    }
+
+    private long kept(long objectId) {
+        return keep(objectId) ? objectId : 0;
+    }
+
+    /**
+     * Output stream for a sub-record of {@code size} bytes. Large ones go into a segment of their
+     * own which is streamed, others are collected into the current segment.
+     */
+    private DataOutputStream begin(long size) throws IOException {
+        if (size > SEGMENT_SIZE) {
+            flushSegment();
+            writeRecordHeader(HprofFile.TAG_HEAP_DUMP_SEGMENT, 0, size);
+            return out;
+        }
+        if (segment.size() + size > SEGMENT_SIZE) {
+            flushSegment();
+        }
+        return segmentOut;
+    }
+
+    private void flushSegment() throws IOException {
+        if (segment.size() > 0) {
+            writeRecordHeader(HprofFile.TAG_HEAP_DUMP_SEGMENT, 0, segment.size());
+            segment.writeTo(out);
+            segment.reset();
+        }
+    }
+
+    private void subRecord() throws IOException {
+        int tag = readU1();
+        switch (tag) {
+            case HprofFile.ROOT_UNKNOWN:
+            case HprofFile.ROOT_STICKY_CLASS:
+            case HprofFile.ROOT_MONITOR_USED:
+                root(tag, 0);
+                break;
+            case HprofFile.ROOT_JNI_GLOBAL:
+                root(tag, idSize);
+                break;
+            case HprofFile.ROOT_JNI_LOCAL:
+            case HprofFile.ROOT_JAVA_FRAME:
+            case HprofFile.ROOT_THREAD_OBJECT:
+                root(tag, 8);
+                break;
+            case HprofFile.ROOT_NATIVE_STACK:
+            case HprofFile.ROOT_THREAD_BLOCK:
+                root(tag, 4);
+                break;
+            case HprofFile.CLASS_DUMP:
+                classDump();
+                break;
+            case HprofFile.INSTANCE_DUMP:
+                instance();
+                break;
+            case HprofFile.OBJECT_ARRAY_DUMP:
+                objectArray();
+                break;
+            case HprofFile.PRIMITIVE_ARRAY_DUMP:
+                primitiveArray();
+                break;
+            default:
+                throw new IOException("Unknown heap dump sub-record 0x" + Integer.toHexString(tag));
+        }
+    }
+
+    private void root(int tag, int extra) throws IOException {
+        long objectId = readId();
+        byte[] rest = readBytes(extra);
+        if (keep(objectId)) {
+            DataOutputStream o = begin(1 + idSize + extra);
+            o.writeByte(tag);
+            writeId(o, objectId);
+            o.write(rest);
+        }
+    }
+
+    private void classDump() throws IOException {
+        long classId = readId();
+        int stack = readInt();
+        long superId = readId();
+        // loader, signers, protection domain, two reserved ids
+        long[] ids = new long[5];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = readId();
+        }
+        int instanceSize = readInt();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream b = new DataOutputStream(body);
+        int constants = readU2();
+        b.writeShort(constants);
+        for (int i = 0; i < constants; i++) {
+            b.writeShort(readU2());
+            int type = readU1();
+            b.writeByte(type);
+            value(b, type);
+        }
+        int statics = readU2();
+        b.writeShort(statics);
+        for (int i = 0; i < statics; i++) {
+            writeId(b, readId());
+            int type = readU1();
+            b.writeByte(type);
+            value(b, type);
+        }
+        int fields = readU2();
+        b.writeShort(fields);
+        byte[] fieldTypes = new byte[fields];
+        for (int i = 0; i < fields; i++) {
+            writeId(b, readId());
+            fieldTypes[i] = (byte) readU1();
+            b.writeByte(fieldTypes[i]);
+        }
+        classes.put(classId, new ClassInfo(superId, fieldTypes));
+        classIds.put(classId, 1);
+
+        DataOutputStream o = begin(1 + 7L * idSize + 8 + body.size());
+        o.writeByte(HprofFile.CLASS_DUMP);
+        writeId(o, classId);
+        o.writeInt(stack);
+        writeId(o, superId);
+        for (long id : ids) {
+            writeId(o, kept(id));
+        }
+        o.writeInt(instanceSize);
+        body.writeTo(o);
+    }
+
+    private void value(DataOutputStream o, int type) throws IOException {
+        if (type == HprofFile.TYPE_OBJECT) {
+            writeId(o, kept(readId()));
+        } else {
+            o.write(readBytes(typeSize(type)));
+        }
+    }
+
+    private int[] references(long classId) {
+        ClassInfo info = classes.get(classId);
+        if (info == null) {
+            return null;
+        }
+        if (info.references == null) {
+            int[] references = new int[8];
+            int n = 0;
+            int offset = 0;
+            int depth = 0;
+            for (ClassInfo c = info; c != null && depth++ < 1024; c = classes.get(c.superId)) {
+                for (byte type : c.fieldTypes) {
+                    if (type == HprofFile.TYPE_OBJECT) {
+                        if (n == references.length) {
+                            references = Arrays.copyOf(references, n * 2);
+                        }
+                        references[n++] = offset;
+                    }
+                    offset += typeSize(type);
+                }
+            }
+            info.references = Arrays.copyOf(references, n);
+        }
+        return info.references;
+    }
+
+    private void instance() throws IOException {
+        objects++;
+        long objectId = readId();
+        int stack = readInt();
+        long classId = readId();
+        int length = readInt();
+        if (!keep(objectId)) {
+            droppedObjects++;
+            skip(length);
+            return;
+        }
+        byte[] data = readBytes(length);
+        int[] references = references(classId);
+        if (sample > 1 && references != null) {
+            for (int offset : references) {
+                if (offset + idSize <= length && !keep(id(data, offset))) {
+                    putId(data, offset, 0);
+                }
+            }
+        }
+        DataOutputStream o = begin(1 + 2L * idSize + 8 + length);
+        o.writeByte(HprofFile.INSTANCE_DUMP);
+        writeId(o, objectId);
+        o.writeInt(stack);
+        writeId(o, classId);
+        o.writeInt(length);
+        o.write(data);
+    }
+
+    private void objectArray() throws IOException {
+        objects++;
+        long objectId = readId();
+        int stack = readInt();
+        int length = readInt();
+        long classId = readId();
+        if (!keep(objectId)) {
+            droppedObjects++;
+            skip((long) length * idSize);
+            return;
+        }
+        DataOutputStream o = begin(1 + 2L * idSize + 8 + (long) length * idSize);
+        o.writeByte(HprofFile.OBJECT_ARRAY_DUMP);
+        writeId(o, objectId);
+        o.writeInt(stack);
+        o.writeInt(length);
+        writeId(o, classId);
+        for (int i = 0; i < length; i++) {
+            writeId(o, kept(readId()));
+        }
+    }
+
+    private void primitiveArray() throws IOException {
+        objects++;
+        long objectId = readId();
+        int stack = readInt();
+        int length = readInt();
+        int type = readU1();
+        long bytes = (long) length * typeSize(type);
+        if (!keep(objectId)) {
+            droppedObjects++;
+            skip(bytes);
+            return;
+        }
+        int outLength = arrayMode == ArrayMode.STRIP ? 0 : length;
+        DataOutputStream o = begin(1 + idSize + 9 + (long) outLength * typeSize(type));
+        o.writeByte(HprofFile.PRIMITIVE_ARRAY_DUMP);
+        writeId(o, objectId);
+        o.writeInt(stack);
+        o.writeInt(outLength);
+        o.writeByte(type);
+        switch (arrayMode) {
+            case KEEP:
+                copy(bytes, o);
+                break;
+            case ZERO:
+                skip(bytes);
+                Arrays.fill(copyBuffer, (byte) 0);
+                for (long left = bytes; left > 0; left -= COPY_BUFFER_SIZE) {
+                    o.write(copyBuffer, 0, (int) Math.min(left, COPY_BUFFER_SIZE));
+                }
+                droppedArrayBytes += bytes;
+                break;
+            default:
+                skip(bytes);
+                droppedArrayBytes += bytes;
+                break;
+        }
+    }
+
+    private int typeSize(int type) {
+        switch (type) {
+            case HprofFile.TYPE_OBJECT:
+                return idSize;
+            case HprofFile.TYPE_BOOLEAN:
+            case HprofFile.TYPE_BYTE:
+                return 1;
+            case HprofFile.TYPE_CHAR:
+            case HprofFile.TYPE_SHORT:
+                return 2;
+            case HprofFile.TYPE_FLOAT:
+            case HprofFile.TYPE_INT:
+                return 4;
+            case HprofFile.TYPE_DOUBLE:
+            case HprofFile.TYPE_LONG:
+                return 8;
+            default:
+                throw new IllegalStateException("Unknown basic type " + type);
+        }
+    }
+
+    private int readU1() throws IOException {
+        consumed++;
+        return in.readUnsignedByte();
+    }
+
+    private int readU2() throws IOException {
+        consumed += 2;
+        return in.readUnsignedShort();
+    }
+
+    private int readInt() throws IOException {
+        consumed += 4;
+        return in.readInt();
+    }
+
+    private long readId() throws IOException {
+        consumed += idSize;
+        return idSize == 8 ? in.readLong() : in.readInt() & 0xffffffffL;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] b = new byte[length];
+        in.readFully(b);
+        consumed += length;
+        return b;
+    }
+
+    private void skip(long length) throws IOException {
+        for (long left = length; left > 0; ) {
+            int n = in.read(copyBuffer, 0, (int) Math.min(left, COPY_BUFFER_SIZE));
+            if (n < 0) {
+                throw new EOFException("Truncated HPROF stream");
+            }
+            left -= n;
+        }
+        consumed += length;
+    }
+
+    private void copy(long length, DataOutputStream o) throws IOException {
+        for (long left = length; left > 0; ) {
+            int n = in.read(copyBuffer, 0, (int) Math.min(left, COPY_BUFFER_SIZE));
+            if (n < 0) {
+                throw new EOFException("Truncated HPROF stream");
+            }
+            o.write(copyBuffer, 0, n);
+            left -= n;
+        }
+        consumed += length;
+    }
+
+    private long id(byte[] b, int offset) {
+        long id = 0;
+        for (int i = 0; i < idSize; i++) {
+            id = (id << 8) | (b[offset + i] & 0xff);
+        }
+        return id;
+    }
+
+    private void putId(byte[] b, int offset, long id) {
+        for (int i = idSize - 1; i >= 0; i--) {
+            b[offset + i] = (byte) id;
+            id >>>= 8;
+        }
+    }
+
+    private void writeId(DataOutputStream o, long id) throws IOException {
+        if (idSize == 8) {
+            o.writeLong(id);
+        } else {
+            o.writeInt((int) id);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class Main {
+    private static Set<Command> createCommands() {
+        Set<Command> commands = new LinkedHashSet<>();
+        commands.add(new HistogramCommand("histogram",
+            "Count instances and estimated shallow bytes per class in a heap dump"));
+        commands.add(new DominatorCommand("dominator",
+            "Compute retained sizes, print top retainers and the shortest path from GC roots to an object"));
+        commands.add(new DiffCommand("diff",
+            "Compare two heap dumps of the same process and rank classes by growth"));
+        commands.add(new DuplicateCommand("duplicates",
+            "Find strings and primitive arrays with equal contents and the memory deduplication would save"));
+        commands.add(new OffHeapCommand("offheap",
+            "Attribute direct and mapped byte buffer memory to the objects holding the buffers"));
+        commands.add(new ReduceCommand("reduce",
+            "Rewrite a heap dump with primitive array contents zeroed or stripped and optionally sampled objects"));
+        return commands;
+    }
+
+    private static void usage(Set<Command> commands) {
+        System.err.println("Usage:");
+        System.err.println(Main.class.getSimpleName() + " <subcommand> <hprof file...> <options>");
+        System.err.println();
+        System.err.println("Subcommands:");
+        for (Command cmd : commands) {
+            System.err.println(cmd.toString());
+        }
+    }
+
+    public static void main(String[] args) {
+        Set<Command> commands = createCommands();
+        if (args.length < 1) {
+            usage(commands);
+            return;
+        }
+        for (Command cmd : commands) {
+            if (cmd.getName().equals(args[0])) {
+                try {
+                    cmd.executeCommand(args);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+        }
+        System.err.println("Unknown subcommand " + args[0]);
+        usage(commands);
+    }
+}
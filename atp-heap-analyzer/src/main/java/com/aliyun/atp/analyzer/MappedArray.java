@@ -0,0 +1,101 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed size array of ints or longs kept in a memory-mapped temporary file, so that indexes of
+ * dumps with hundreds of millions of objects do not need a large analysis heap. Elements are
+ * zero initially. Accessing distinct elements from several threads is safe.
+ */
+final class MappedArray implements Closeable {
+    private static final int PAGE_SHIFT = 30;
+    private static final long PAGE_MASK = (1L << PAGE_SHIFT) - 1;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer[] pages;
+    private final long length;
+
+    private MappedArray(File dir, long length, int elementSize) throws IOException {
+        this.length = length;
+        this.file = File.createTempFile(".atp-heap-", ".tmp", dir);
+        this.raf = new RandomAccessFile(file, "rw");
+        long bytes = length * elementSize;
+        raf.setLength(bytes);
+        FileChannel channel = raf.getChannel();
+        this.pages = new MappedByteBuffer[(int) ((bytes + PAGE_MASK) >>> PAGE_SHIFT)];
+        for (int i = 0; i < pages.length; i++) {
+            long start = (long) i << PAGE_SHIFT;
+            pages[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(bytes - start, PAGE_MASK + 1));
+        }
+        // Mappings stay valid after the file is unlinked, where the platform allows it
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    static MappedArray ints(File dir, long length) throws IOException {
+        return new MappedArray(dir, length, 4);
+    }
+
+    static MappedArray longs(File dir, long length) throws IOException {
+        return new MappedArray(dir, length, 8);
+    }
+
+    long length() {
+        return length;
+    }
+
+    int getInt(long index) {
+        long offset = index << 2;
+        return pages[(int) (offset >>> PAGE_SHIFT)].getInt((int) (offset & PAGE_MASK));
+    }
+
+    void putInt(long index, int value) {
+        long offset = index << 2;
+        pages[(int) (offset >>> PAGE_SHIFT)].putInt((int) (offset & PAGE_MASK), value);
+    }
+
+    long getLong(long index) {
+        long offset = index << 3;
+        return pages[(int) (offset >>> PAGE_SHIFT)].getLong((int) (offset & PAGE_MASK));
+    }
+
+    void putLong(long index, long value) {
+        long offset = index << 3;
+        pages[(int) (offset >>> PAGE_SHIFT)].putLong((int) (offset & PAGE_MASK), value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+        file.delete();
+    }
+}
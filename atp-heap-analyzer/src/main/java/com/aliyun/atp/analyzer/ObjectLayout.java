@@ -0,0 +1,69 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+/**
+ * HPROF records field values and array elements but not object headers or padding, so shallow
+ * sizes are estimated for a 64-bit HotSpot VM. Compressed class pointers and oops are assumed
+ * unless the dump has 4-byte ids (32-bit VM) or {@code -uncompressed} is given.
+ */
+final class ObjectLayout {
+    private final int header;
+    private final int arrayHeader;
+    private final int reference;
+    private final int alignment;
+
+    private ObjectLayout(int header, int arrayHeader, int reference, int alignment) {
+        this.header = header;
+        this.arrayHeader = arrayHeader;
+        this.reference = reference;
+        this.alignment = alignment;
+    }
+
+    static ObjectLayout of(HprofFile hprof, boolean uncompressed) {
+        if (hprof.idSize() == 4) {
+            return new ObjectLayout(8, 12, 4, 8);
+        }
+        return uncompressed ? new ObjectLayout(16, 24, 8, 8) : new ObjectLayout(12, 16, 4, 8);
+    }
+
+    private long align(long size) {
+        return (size + alignment - 1) & -alignment;
+    }
+
+    int fieldSize(HprofFile hprof, int type) {
+        return type == HprofFile.TYPE_OBJECT ? reference : hprof.typeSize(type);
+    }
+
+    long instanceSize(long fieldBytes) {
+        return align(header + fieldBytes);
+    }
+
+    long objectArraySize(int length) {
+        return align(arrayHeader + (long) length * reference);
+    }
+
+    long primitiveArraySize(HprofFile hprof, int type, int length) {
+        return align(arrayHeader + (long) length * hprof.typeSize(type));
+    }
+}
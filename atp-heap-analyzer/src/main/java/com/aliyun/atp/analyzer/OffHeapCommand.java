@@ -0,0 +1,260 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Attributes the native memory behind direct and mapped byte buffers to the objects holding
+ * them. A buffer owns its memory when it has a cleaner that frees or unmaps it, mapped buffers
+ * are told apart by their file descriptor, and buffers created by duplicate, slice or views
+ * point to the owner through {@code att} and are not counted again. Buffers with neither wrap
+ * memory allocated elsewhere, by JNI NewDirectByteBuffer or by libraries managing their own
+ * arenas. Cleaners and other buffers are skipped when looking for the holder, a buffer that is
+ * only reachable through its views is attributed to the holder of one of the views.
+ */
+class OffHeapCommand extends Command {
+    private static final String BUFFER_CLASS = "java.nio.Buffer";
+    private static final String OWNER_CLASS = "java.nio.MappedByteBuffer";
+    private static final String REFERENCE_CLASS = "java.lang.ref.Reference";
+    private static final String[] KINDS = {"direct", "mapped", "external"};
+    private static final int KIND_DIRECT = 0;
+    private static final int KIND_MAPPED = 1;
+    private static final int KIND_EXTERNAL = 2;
+
+    public OffHeapCommand(String name, String description) {
+        super(name, description, new CommandOption[]{
+            new CommandOption("-top", "20", false, null),
+            new CommandOption("-threads", String.valueOf(Runtime.getRuntime().availableProcessors()), false, null)});
+    }
+
+    private static final class ClassCollector extends HeapVisitor {
+        final List<long[]> classes = new ArrayList<>();
+
+        @Override
+        void classDump(long classId, long superId, long loaderId, long staticsPos, long fieldsPos) {
+            classes.add(new long[]{classId, superId, fieldsPos});
+        }
+    }
+
+    /**
+     * Offsets of capacity, cleaner, att and fd in instance data, -1 for missing fields
+     */
+    private static final class Fields {
+        final int capacity;
+        final int cleaner;
+        final int att;
+        final int fd;
+
+        Fields(ClassTable classes, long classId) {
+            capacity = classes.fieldOffset(classId, "capacity");
+            cleaner = classes.fieldOffset(classId, "cleaner");
+            att = classes.fieldOffset(classId, "att");
+            fd = classes.fieldOffset(classId, "fd");
+        }
+    }
+
+    private static final class BufferScanner extends HeapVisitor {
+        private final HprofFile hprof;
+        private final Map<Long, Fields> byteBuffers;
+        long[] ids = new long[16];
+        long[] capacities = new long[16];
+        int[] kinds = new int[16];
+        int count;
+        long views;
+        // Owner id to the view with the lowest id
+        final LongLongMap viewIds = new LongLongMap();
+
+        BufferScanner(HprofFile hprof, Map<Long, Fields> byteBuffers) {
+            this.hprof = hprof;
+            this.byteBuffers = byteBuffers;
+        }
+
+        private long reference(long dataPos, int dataLength, int offset) {
+            return offset >= 0 && offset + hprof.idSize() <= dataLength ? hprof.id(dataPos + offset) : 0;
+        }
+
+        @Override
+        void instance(long objectId, long classId, long dataPos, int dataLength) {
+            Fields fields = byteBuffers.get(classId);
+            if (fields == null) {
+                return;
+            }
+            long att = reference(dataPos, dataLength, fields.att);
+            if (att != 0) {
+                views++;
+                if (!viewIds.containsKey(att) || Long.compareUnsigned(objectId, viewIds.get(att, 0)) < 0) {
+                    viewIds.put(att, objectId);
+                }
+                return;
+            }
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                capacities = Arrays.copyOf(capacities, count * 2);
+                kinds = Arrays.copyOf(kinds, count * 2);
+            }
+            ids[count] = objectId;
+            capacities[count] = fields.capacity >= 0 && fields.capacity + 4 <= dataLength
+                ? hprof.u4(dataPos + fields.capacity) & 0xFFFFFFFFL : 0;
+            if (reference(dataPos, dataLength, fields.cleaner) == 0) {
+                kinds[count] = KIND_EXTERNAL;
+            } else {
+                kinds[count] = reference(dataPos, dataLength, fields.fd) != 0 ? KIND_MAPPED : KIND_DIRECT;
+            }
+            count++;
+        }
+    }
+
+    private static boolean extendsClass(HprofFile hprof, ClassTable classes, long classId, String name) {
+        // Guards against broken super class chains like ClassTable does
+        for (int depth = 0; classId != 0 && depth < 1024; depth++) {
+            if (hprof.className(classId).equals(name)) {
+                return true;
+            }
+            classId = classes.superId(classId);
+        }
+        return false;
+    }
+
+    @Override
+    protected void execute(List<String> files) throws Exception {
+        if (files.size() != 1) {
+            throw new Exception("Expect exactly one heap dump file");
+        }
+        int top = getIntOption("-top");
+        int threads = getIntOption("-threads");
+        try (HprofFile hprof = HprofFile.open(files.get(0))) {
+            ClassTable classes = new ClassTable(hprof, ObjectLayout.of(hprof, false));
+            for (ClassCollector c : hprof.scan(threads, ClassCollector::new)) {
+                for (long[] info : c.classes) {
+                    classes.add(info[0], info[1], info[2]);
+                }
+            }
+            Map<Long, Fields> byteBuffers = new HashMap<>();
+            // Buffers and cleaners are never the holder of a buffer
+            Set<Long> ignored = new HashSet<>();
+            for (long classId : classes.classIds()) {
+                if (extendsClass(hprof, classes, classId, OWNER_CLASS)) {
+                    byteBuffers.put(classId, new Fields(classes, classId));
+                }
+                if (extendsClass(hprof, classes, classId, BUFFER_CLASS)
+                    || extendsClass(hprof, classes, classId, REFERENCE_CLASS)) {
+                    ignored.add(classId);
+                }
+            }
+
+            List<BufferScanner> scanners = hprof.scan(threads, () -> new BufferScanner(hprof, byteBuffers));
+            BufferScanner all = scanners.get(0);
+            for (int i = 1; i < scanners.size(); i++) {
+                BufferScanner s = scanners.get(i);
+                for (int k = 0; k < s.count; k++) {
+                    if (all.count == all.ids.length) {
+                        all.ids = Arrays.copyOf(all.ids, all.count * 2);
+                        all.capacities = Arrays.copyOf(all.capacities, all.count * 2);
+                        all.kinds = Arrays.copyOf(all.kinds, all.count * 2);
+                    }
+                    all.ids[all.count] = s.ids[k];
+                    all.capacities[all.count] = s.capacities[k];
+                    all.kinds[all.count] = s.kinds[k];
+                    all.count++;
+                }
+                all.views += s.views;
+                for (int slot = 0; slot < s.viewIds.capacity(); slot++) {
+                    long owner = s.viewIds.keyAt(slot);
+                    long view = s.viewIds.valueAt(slot);
+                    if (owner != 0 && (!all.viewIds.containsKey(owner)
+                        || Long.compareUnsigned(view, all.viewIds.get(owner, 0)) < 0)) {
+                        all.viewIds.put(owner, view);
+                    }
+                }
+            }
+
+            String[] owners = findOwners(hprof, classes, threads, ignored, all);
+            long[] counts = new long[KINDS.length];
+            long[] bytes = new long[KINDS.length];
+            Map<String, long[]> rows = new LinkedHashMap<>();
+            for (int i = 0; i < all.count; i++) {
+                int kind = all.kinds[i];
+                counts[kind]++;
+                bytes[kind] += all.capacities[i];
+                long[] row = rows.computeIfAbsent(KINDS[kind] + "\t" + owners[i], k -> new long[2]);
+                row[0]++;
+                row[1] += all.capacities[i];
+            }
+            List<Map.Entry<String, long[]>> sorted = new ArrayList<>(rows.entrySet());
+            sorted.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+
+            System.out.printf("Direct buffers: %d buffers, %d bytes%n", counts[KIND_DIRECT], bytes[KIND_DIRECT]);
+            System.out.printf("Mapped files: %d buffers, %d bytes%n", counts[KIND_MAPPED], bytes[KIND_MAPPED]);
+            System.out.printf("External memory (JNI or library allocated): %d buffers, %d bytes%n",
+                counts[KIND_EXTERNAL], bytes[KIND_EXTERNAL]);
+            System.out.printf("Views sharing memory of the buffers above: %d buffers%n", all.views);
+            System.out.println(" num       #buffers      #capacity  kind      owner");
+            System.out.println("----------------------------------------------");
+            for (int i = 0; i < sorted.size() && i < top; i++) {
+                String[] key = sorted.get(i).getKey().split("\t", 2);
+                long[] row = sorted.get(i).getValue();
+                System.out.printf("%4d: %14d %14d  %-9s %s%n", i + 1, row[0], row[1], key[0], key[1]);
+            }
+        }
+    }
+
+    /**
+     * Holder of every counted buffer, looking through one of its views if nothing else holds it
+     */
+    private static String[] findOwners(HprofFile hprof, ClassTable classes, int threads, Set<Long> ignored,
+                                       BufferScanner buffers) throws Exception {
+        LongLongMap targets = new LongLongMap();
+        for (int i = 0; i < buffers.count; i++) {
+            targets.put(buffers.ids[i], i);
+        }
+        long[] positions = ReferrerFinder.find(hprof, classes, threads, targets, buffers.count, ignored);
+        String[] owners = new String[buffers.count];
+        LongLongMap views = new LongLongMap();
+        for (int i = 0; i < buffers.count; i++) {
+            owners[i] = ReferrerFinder.describe(hprof, classes, positions[i], buffers.ids[i]);
+            long view = buffers.viewIds.get(buffers.ids[i], 0);
+            if (positions[i] == 0 && view != 0 && !views.containsKey(view)) {
+                views.put(view, i);
+            }
+        }
+        if (views.size() > 0) {
+            positions = ReferrerFinder.find(hprof, classes, threads, views, buffers.count, ignored);
+            for (int slot = 0; slot < views.capacity(); slot++) {
+                long view = views.keyAt(slot);
+                if (view != 0) {
+                    int i = (int) views.valueAt(slot);
+                    owners[i] = ReferrerFinder.describe(hprof, classes, positions[i], view) + " (via view)";
+                }
+            }
+        }
+        return owners;
+    }
+}
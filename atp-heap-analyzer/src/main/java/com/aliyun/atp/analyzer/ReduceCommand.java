@@ -0,0 +1,129 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+class ReduceCommand extends Command {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    public ReduceCommand(String name, String description) {
+        super(name, description, new CommandOption[]{
+            new CommandOption("-file", "", true, null),
+            new CommandOption("-arrays", "zero", false, new String[]{"zero", "strip", "keep"}),
+            new CommandOption("-sample", "1", false, null)});
+    }
+
+    @Override
+    protected void execute(List<String> files) throws Exception {
+        if (files.size() != 1) {
+            throw new Exception("Expect exactly one heap dump file, or - for standard input");
+        }
+        String input = files.get(0);
+        String output = getOption("-file").getValue();
+        HprofReducer.ArrayMode mode = HprofReducer.ArrayMode.valueOf(getOption("-arrays").getValue().toUpperCase());
+        int sample = getIntOption("-sample");
+        if (sample < 1) {
+            throw new Exception("Option -sample expects a positive number but got " + sample);
+        }
+
+        InputStream in = openInput(input);
+        try {
+            long[] written = new long[1];
+            OutputStream out = openOutput(output, written);
+            HprofReducer reducer = new HprofReducer(in, out, mode, sample);
+            try {
+                reducer.reduce();
+            } finally {
+                out.close();
+            }
+            // Standard output may carry the dump, report on standard error
+            System.err.printf("Reduced %s to %s: %d bytes written, %d of %d objects dropped, %d array bytes %s%n",
+                input, output, written[0], reducer.droppedObjects(), reducer.objects(), reducer.droppedArrayBytes(),
+                mode == HprofReducer.ArrayMode.STRIP ? "stripped" : "zeroed");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * File or standard input, gzip compressed dumps such as those of heap -compress are
+     * decompressed on the fly
+     */
+    private static InputStream openInput(String input) throws IOException {
+        InputStream in = new BufferedInputStream(input.equals(STDIO) ? System.in : new FileInputStream(input), BUFFER_SIZE);
+        in.mark(2);
+        int b0 = in.read();
+        int b1 = in.read();
+        in.reset();
+        if (b0 == 0x1f && b1 == 0x8b) {
+            in = new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+        }
+        return in;
+    }
+
+    /**
+     * File, compressed if its name ends with .gz, or standard output which is flushed but not
+     * closed
+     */
+    private static OutputStream openOutput(String output, final long[] written) throws IOException {
+        OutputStream os;
+        if (output.equals(STDIO)) {
+            os = new FilterOutputStream(System.out) {
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        } else {
+            os = new FileOutputStream(output);
+        }
+        os = new FilterOutputStream(os) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                written[0] += len;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                written[0]++;
+            }
+        };
+        if (output.endsWith(".gz")) {
+            return new GZIPOutputStream(os, BUFFER_SIZE);
+        }
+        return new BufferedOutputStream(os, BUFFER_SIZE);
+    }
+}
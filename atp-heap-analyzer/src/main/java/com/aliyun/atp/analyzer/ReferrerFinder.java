@@ -0,0 +1,138 @@
+/**
+ * MIT License
+ * Copyright (c) 2023 Alibaba Cloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.aliyun.atp.analyzer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds for each target the referrer with the lowest id, as record position of the referrer.
+ * Instances of ignored classes never count as referrers.
+ */
+final class ReferrerFinder extends HeapVisitor {
+    private final HprofFile hprof;
+    private final ClassTable classes;
+    private final LongLongMap targets;
+    private final Set<Long> ignoredClasses;
+    private final long[] referrerIds;
+    private final long[] referrerPositions;
+
+    private ReferrerFinder(HprofFile hprof, ClassTable classes, LongLongMap targets, int count, Set<Long> ignoredClasses) {
+        this.hprof = hprof;
+        this.classes = classes;
+        this.targets = targets;
+        this.ignoredClasses = ignoredClasses;
+        this.referrerIds = new long[count];
+        this.referrerPositions = new long[count];
+    }
+
+    /**
+     * Record positions of the referrers, indexed by the values of {@code targets}, 0 where none
+     */
+    static long[] find(HprofFile hprof, ClassTable classes, int threads, LongLongMap targets, int count) throws Exception {
+        return find(hprof, classes, threads, targets, count, Collections.<Long>emptySet());
+    }
+
+    static long[] find(HprofFile hprof, ClassTable classes, int threads, LongLongMap targets, int count,
+                       Set<Long> ignoredClasses) throws Exception {
+        List<ReferrerFinder> finders = hprof.scan(threads,
+            () -> new ReferrerFinder(hprof, classes, targets, count, ignoredClasses));
+        long[] ids = new long[count];
+        long[] positions = new long[count];
+        for (ReferrerFinder f : finders) {
+            for (int i = 0; i < count; i++) {
+                if (f.referrerIds[i] != 0 && (ids[i] == 0 || Long.compareUnsigned(f.referrerIds[i], ids[i]) < 0)) {
+                    ids[i] = f.referrerIds[i];
+                    positions[i] = f.referrerPositions[i];
+                }
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Class and field of the referrer at record position {@code pos} that refers to {@code target}
+     */
+    static String describe(HprofFile hprof, ClassTable classes, long pos, long target) {
+        if (pos == 0) {
+            return "<none>";
+        }
+        int idSize = hprof.idSize();
+        if (hprof.u1(pos) == HprofFile.CLASS_DUMP) {
+            return hprof.className(hprof.id(pos + 1)) + "." + hprof.staticFieldName(pos, target) + " (static)";
+        }
+        if (hprof.u1(pos) == HprofFile.INSTANCE_DUMP) {
+            long classId = hprof.id(pos + 1 + idSize + 4);
+            String field = classes.referenceName(classId, pos + 1 + 2L * idSize + 8, target);
+            return hprof.className(classId) + (field != null ? "." + field : "");
+        }
+        return hprof.className(hprof.id(pos + 1 + idSize + 8));
+    }
+
+    private void check(long objectId, long target) {
+        if (target == 0 || !targets.containsKey(target)) {
+            return;
+        }
+        int i = (int) targets.get(target, 0);
+        if (referrerIds[i] == 0 || Long.compareUnsigned(objectId, referrerIds[i]) < 0) {
+            referrerIds[i] = objectId;
+            referrerPositions[i] = record;
+        }
+    }
+
+    @Override
+    void classDump(long classId, long superId, long loaderId, long staticsPos, long fieldsPos) {
+        int statics = hprof.u2(staticsPos);
+        long pos = staticsPos + 2;
+        for (int i = 0; i < statics; i++) {
+            int type = hprof.u1(pos + hprof.idSize());
+            if (type == HprofFile.TYPE_OBJECT) {
+                check(classId, hprof.id(pos + hprof.idSize() + 1));
+            }
+            pos += hprof.idSize() + 1 + hprof.typeSize(type);
+        }
+    }
+
+    @Override
+    void instance(long objectId, long classId, long dataPos, int dataLength) {
+        if (ignoredClasses.contains(classId)) {
+            return;
+        }
+        int[] references = classes.references(classId);
+        if (references != null) {
+            for (int offset : references) {
+                if (offset + hprof.idSize() <= dataLength) {
+                    check(objectId, hprof.id(dataPos + offset));
+                }
+            }
+        }
+    }
+
+    @Override
+    void objectArray(long objectId, long arrayClassId, long elementsPos, int length) {
+        for (int i = 0; i < length; i++) {
+            check(objectId, hprof.id(elementsPos + (long) i * hprof.idSize()));
+        }
+    }
+}